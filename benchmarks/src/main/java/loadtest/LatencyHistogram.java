@@ -0,0 +1,132 @@
+package loadtest;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histograma de latencias en microsegundos al estilo HdrHistogram: buckets
+ * logarítmicos divididos en 64 sub-buckets lineales, así el error relativo
+ * de cualquier percentil es menor del 1% desde 1 µs hasta horas, con un
+ * array fijo de contadores y sin reservar memoria al registrar.
+ * Se puede registrar desde varios hilos a la vez.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BITS = 7;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF = SUB_COUNT / 2;
+    // Valores por encima (más de una hora) se cuentan en el último bucket
+    private static final long MAX_VALUE = 3_600_000_000L;
+    private static final int SIZE = index(MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(SIZE);
+
+    void recordMicros(long micros) {
+        counts.incrementAndGet(index(Math.max(0, Math.min(micros, MAX_VALUE))));
+    }
+
+    void recordSince(long startNanos) {
+        recordMicros((System.nanoTime() - startNanos) / 1000);
+    }
+
+    /**
+     * Copia de los contadores en este momento
+     */
+    Snapshot snapshot() {
+        long[] copy = new long[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new Snapshot(copy);
+    }
+
+    // 0..127 con resolución de 1; después cada potencia de dos en 64 partes iguales
+    private static int index(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+        return SUB_COUNT + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+    }
+
+    // Mayor valor que cae en el bucket (lo que se informa, como hace HdrHistogram)
+    private static long highestValue(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int j = index - SUB_COUNT;
+        int shift = j / HALF + 1;
+        long sub = j % HALF + HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * Contadores congelados; la resta de dos snapshots da un intervalo
+     */
+    static final class Snapshot {
+        private final long[] counts;
+        private final long total;
+
+        private Snapshot(long[] counts) {
+            this.counts = counts;
+            long sum = 0;
+            for (long c : counts) {
+                sum += c;
+            }
+            this.total = sum;
+        }
+
+        Snapshot minus(Snapshot earlier) {
+            long[] diff = new long[counts.length];
+            for (int i = 0; i < diff.length; i++) {
+                diff[i] = counts[i] - earlier.counts[i];
+            }
+            return new Snapshot(diff);
+        }
+
+        long count() {
+            return total;
+        }
+
+        /**
+         * Percentil (0-100) en microsegundos
+         */
+        long percentile(double p) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(p / 100.0 * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return highestValue(i);
+                }
+            }
+            return highestValue(counts.length - 1);
+        }
+
+        long max() {
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if (counts[i] > 0) {
+                    return highestValue(i);
+                }
+            }
+            return 0;
+        }
+
+        double mean() {
+            if (total == 0) {
+                return 0;
+            }
+            double sum = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) {
+                    // Punto medio del bucket
+                    long high = highestValue(i);
+                    long low = i == 0 ? 0 : highestValue(i - 1) + 1;
+                    sum += counts[i] * (low + high) / 2.0;
+                }
+            }
+            return sum / total;
+        }
+    }
+}
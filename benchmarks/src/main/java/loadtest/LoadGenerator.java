@@ -0,0 +1,304 @@
+package loadtest;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Generador de carga sin interfaz para el servidor de chat.
+ * Abre muchas sesiones simuladas, las registra y hace login, y durante el
+ * tiempo indicado envía una mezcla de LOGIN, MESSAGE, PRIVATE, GET_USERS y
+ * GET_PRIVATE_HISTORY al ritmo total pedido (en bucle abierto: el ritmo no
+ * baja aunque el servidor tarde en responder). Cada pocos segundos muestra
+ * el intervalo y al final el resumen con rendimiento, percentiles de latencia
+ * y errores.
+ *
+ * Por defecto arranca un ChatServer en el mismo proceso con H2 en memoria,
+ * así la prueba no necesita red ni PostgreSQL:
+ *   java -cp benchmarks/target/benchmarks.jar loadtest.LoadGenerator
+ * Contra un servidor ya arrancado (SecureServer: -Dchat.load.tls=true -Dchat.load.port=12345):
+ *   java -Dchat.load.embedded=false -cp benchmarks/target/benchmarks.jar loadtest.LoadGenerator
+ * Ese servidor debe arrancar con -Dchat.maxConnectionsPerIp=0 si hay más
+ * sesiones que ese límite, porque todas salen de la misma IP.
+ *
+ * Opciones (-Dchat.load.xxx):
+ *   sessions (200), rate en operaciones/s (1000), duration en segundos (60),
+ *   mix ("MESSAGE:40,PRIVATE:30,GET_USERS:10,GET_PRIVATE_HISTORY:18,LOGIN:2"),
+ *   messageBytes (64), senders (4), connectThreads (32), reportSeconds (10),
+ *   host (127.0.0.1), port (5000), tls (false), timeoutMs (30000),
+ *   register (true), userPrefix ("load"), embedded (true).
+ */
+public final class LoadGenerator {
+
+    /**
+     * Opciones de la prueba
+     */
+    static final class Config {
+        final String host = System.getProperty("chat.load.host", "127.0.0.1");
+        final int port = Integer.getInteger("chat.load.port", 5000);
+        final boolean tls = Boolean.getBoolean("chat.load.tls");
+        final boolean embedded = Boolean.parseBoolean(System.getProperty("chat.load.embedded", "true"));
+        final int sessions = Integer.getInteger("chat.load.sessions", 200);
+        final double rate = Double.parseDouble(System.getProperty("chat.load.rate", "1000"));
+        final int durationSeconds = Integer.getInteger("chat.load.duration", 60);
+        final String mix = System.getProperty("chat.load.mix",
+                "MESSAGE:40,PRIVATE:30,GET_USERS:10,GET_PRIVATE_HISTORY:18,LOGIN:2");
+        final int messageBytes = Integer.getInteger("chat.load.messageBytes", 64);
+        final int senders = Integer.getInteger("chat.load.senders", 4);
+        final int connectThreads = Integer.getInteger("chat.load.connectThreads", 32);
+        final int reportSeconds = Integer.getInteger("chat.load.reportSeconds", 10);
+        final int timeoutMs = Integer.getInteger("chat.load.timeoutMs", 30000);
+        final boolean register = Boolean.parseBoolean(System.getProperty("chat.load.register", "true"));
+        final String userPrefix = System.getProperty("chat.load.userPrefix", "load");
+    }
+
+    private final Config config;
+    private final LoadStats stats = new LoadStats();
+    private final SimulatedSession[] sessions;
+    private final LoadStats.Op[] mixTable;
+    private final String padding;
+    private final ExecutorService connector;
+    private volatile boolean running = true;
+
+    LoadGenerator(Config config) {
+        this.config = config;
+        this.sessions = new SimulatedSession[config.sessions];
+        for (int i = 0; i < sessions.length; i++) {
+            sessions[i] = new SimulatedSession(config, stats, config.userPrefix + i, "pw-" + config.userPrefix + i);
+        }
+        this.mixTable = parseMix(config.mix);
+        this.padding = "x".repeat(Math.max(0, config.messageBytes - 24));
+        this.connector = Executors.newFixedThreadPool(config.connectThreads, r -> {
+            Thread t = new Thread(r, "lg-connect");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Tabla de 100 casillas con cada operación repetida según su peso, para elegir con un solo aleatorio
+     */
+    static LoadStats.Op[] parseMix(String mix) {
+        Map<LoadStats.Op, Integer> weights = new EnumMap<>(LoadStats.Op.class);
+        int total = 0;
+        for (String part : mix.split(",")) {
+            String[] kv = part.trim().split(":");
+            if (kv.length != 2) {
+                throw new IllegalArgumentException("Mezcla inválida: " + part);
+            }
+            int weight = Integer.parseInt(kv[1].trim());
+            weights.put(LoadStats.Op.valueOf(kv[0].trim().toUpperCase()), weight);
+            total += weight;
+        }
+        if (total <= 0) {
+            throw new IllegalArgumentException("La mezcla no tiene ninguna operación");
+        }
+        List<LoadStats.Op> table = new ArrayList<>();
+        for (Map.Entry<LoadStats.Op, Integer> e : weights.entrySet()) {
+            long slots = Math.round(e.getValue() * 100.0 / total);
+            for (int i = 0; i < slots; i++) {
+                table.add(e.getKey());
+            }
+        }
+        return table.toArray(new LoadStats.Op[0]);
+    }
+
+    void run() throws InterruptedException {
+        System.out.println("Conectando " + sessions.length + " sesiones a " + config.host + ":" + config.port + "...");
+        long connectStart = System.nanoTime();
+        List<Future<?>> pending = new ArrayList<>();
+        for (SimulatedSession session : sessions) {
+            pending.add(connector.submit(session::connect));
+        }
+        for (Future<?> f : pending) {
+            try {
+                f.get();
+            } catch (ExecutionException e) {
+                stats.error("conexión: " + e.getCause());
+            }
+        }
+        System.out.println(String.format("%d sesiones conectadas en %.1f s", connectedCount(),
+                (System.nanoTime() - connectStart) / 1e9));
+
+        System.out.println(String.format("Carga: %.0f operaciones/s durante %d s, mezcla %s",
+                config.rate, config.durationSeconds, config.mix));
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(config.durationSeconds);
+        List<Thread> senders = new ArrayList<>();
+        int senderCount = Math.max(1, Math.min(config.senders, sessions.length));
+        for (int i = 0; i < senderCount; i++) {
+            int index = i;
+            Thread t = new Thread(() -> sendLoop(index, senderCount, start, end), "lg-sender-" + i);
+            t.start();
+            senders.add(t);
+        }
+
+        long nextReport = start + TimeUnit.SECONDS.toNanos(config.reportSeconds);
+        while (System.nanoTime() < end) {
+            long wait = Math.min(nextReport, end) - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            if (System.nanoTime() >= nextReport) {
+                stats.printInterval(System.out, connectedCount());
+                nextReport += TimeUnit.SECONDS.toNanos(config.reportSeconds);
+            }
+        }
+        running = false;
+        for (Thread t : senders) {
+            t.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        // Margen para que lleguen las últimas entregas
+        Thread.sleep(Math.min(2000, config.timeoutMs));
+        stats.printSummary(System.out, seconds);
+
+        connector.shutdownNow();
+        for (SimulatedSession session : sessions) {
+            if (session.isReady()) {
+                session.logout();
+            }
+        }
+    }
+
+    /**
+     * Cada hilo se encarga de las sesiones i, i+n, i+2n... y de su parte del ritmo total
+     */
+    private void sendLoop(int index, int senderCount, long start, long end) {
+        long interval = (long) (1e9 * senderCount / config.rate);
+        long next = start + index * interval / senderCount;
+        int slice = (sessions.length - index + senderCount - 1) / senderCount;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (running && next < end) {
+            long delay = next - System.nanoTime();
+            if (delay > 0) {
+                LockSupport.parkNanos(delay);
+                continue;
+            }
+            if (-delay > TimeUnit.SECONDS.toNanos(1)) {
+                // Más de un segundo por detrás del ritmo: el propio generador no da abasto
+                stats.late.increment();
+            }
+            next += interval;
+            SimulatedSession session = sessions[index + random.nextInt(slice) * senderCount];
+            if (!session.isReady()) {
+                stats.skipped.increment();
+                continue;
+            }
+            execute(session, mixTable[random.nextInt(mixTable.length)], random);
+        }
+    }
+
+    private void execute(SimulatedSession session, LoadStats.Op op, ThreadLocalRandom random) {
+        try {
+            switch (op) {
+                case MESSAGE:
+                    session.sendGeneral(padding);
+                    break;
+                case PRIVATE:
+                    session.sendPrivate(otherUser(session, random), padding);
+                    break;
+                case GET_USERS:
+                    session.requestUsers();
+                    break;
+                case GET_PRIVATE_HISTORY:
+                    session.requestPrivateHistory(otherUser(session, random));
+                    break;
+                case LOGIN:
+                    // Logout y login de nuevo en otro hilo: conectar bloquea
+                    session.logout();
+                    connector.execute(session::connect);
+                    break;
+            }
+        } catch (IOException e) {
+            stats.error("envío " + op + ": " + e.getMessage());
+        }
+    }
+
+    private String otherUser(SimulatedSession session, ThreadLocalRandom random) {
+        if (sessions.length == 1) {
+            return session.username;
+        }
+        SimulatedSession other;
+        do {
+            other = sessions[random.nextInt(sessions.length)];
+        } while (other == session);
+        return other.username;
+    }
+
+    private int connectedCount() {
+        int count = 0;
+        for (SimulatedSession session : sessions) {
+            if (session.isReady()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * ChatServer en este proceso con H2 en memoria. Las propiedades se fijan
+     * antes de cargar las clases del servidor, que las leen al inicializarse.
+     */
+    private static void startEmbeddedServer(Config config) throws InterruptedException {
+        setDefault("chat.db.url", "jdbc:h2:mem:loadtest;MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1");
+        setDefault("chat.db.user", "sa");
+        setDefault("chat.db.password", "");
+        setDefault("chat.db.explainPlans", "false");
+        setDefault("chat.log.file", "loadtest-server.log");
+        setDefault("chat.write.spillFile", "loadtest-messages.spill");
+        // Hash barato para que registrar las sesiones no domine la prueba; para medir
+        // el coste real del login se pasa -Dchat.auth.iterations=310000
+        setDefault("chat.auth.iterations", "10000");
+        // Todas las sesiones salen de la misma IP: solo se dejan los límites por usuario
+        setDefault("chat.limit.ipMessagesPerSec", "0");
+        setDefault("chat.limit.ipQueriesPerSec", "0");
+        setDefault("chat.maxConnectionsPerIp", "0");
+
+        Thread server = new Thread(() -> new server.ChatServer().start(), "embedded-server");
+        server.setDaemon(true);
+        server.start();
+
+        // Se espera a que el puerto acepte conexiones
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        int attempts = 0;
+        while (System.nanoTime() < deadline) {
+            try (Socket probe = new Socket()) {
+                probe.connect(new InetSocketAddress(config.host, config.port), 1000);
+                System.out.println("Servidor embebido listo (H2 en memoria, log en "
+                        + System.getProperty("chat.log.file") + ")");
+                return;
+            } catch (IOException e) {
+                attempts++;
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("El servidor embebido no arrancó tras " + attempts + " intentos");
+    }
+
+    private static void setDefault(String key, String value) {
+        if (System.getProperty(key) == null) {
+            System.setProperty(key, value);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Config config = new Config();
+        if (config.embedded) {
+            startEmbeddedServer(config);
+        }
+        new LoadGenerator(config).run();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,174 @@
+package loadtest;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contadores y latencias de una prueba de carga. Los informes periódicos
+ * muestran el último intervalo; el final, la prueba completa.
+ */
+final class LoadStats {
+
+    /**
+     * Operaciones que envían los clientes simulados
+     */
+    enum Op {
+        LOGIN,
+        MESSAGE,
+        PRIVATE,
+        GET_USERS,
+        GET_PRIVATE_HISTORY
+    }
+
+    /**
+     * Latencias medidas: entrega de extremo a extremo o tiempo de respuesta
+     */
+    enum Latency {
+        LOGIN("login"),
+        GENERAL_DELIVERY("entrega general"),
+        PRIVATE_DELIVERY("entrega privado"),
+        GET_USERS("GET_USERS"),
+        GET_PRIVATE_HISTORY("GET_PRIVATE_HISTORY");
+
+        final String label;
+
+        Latency(String label) {
+            this.label = label;
+        }
+    }
+
+    private final Map<Op, LongAdder> sent = new EnumMap<>(Op.class);
+    private final Map<Latency, LatencyHistogram> latencies = new EnumMap<>(Latency.class);
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    final LongAdder delivered = new LongAdder();
+    final LongAdder presenceUpdates = new LongAdder();
+    final LongAdder connectFailures = new LongAdder();
+    final LongAdder disconnects = new LongAdder();
+    final LongAdder skipped = new LongAdder();
+    final LongAdder late = new LongAdder();
+
+    // Estado del último informe periódico
+    private long lastReportNanos;
+    private long lastSent;
+    private long lastDelivered;
+    private final Map<Latency, LatencyHistogram.Snapshot> lastSnapshots = new EnumMap<>(Latency.class);
+
+    LoadStats() {
+        for (Op op : Op.values()) {
+            sent.put(op, new LongAdder());
+        }
+        for (Latency latency : Latency.values()) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            latencies.put(latency, histogram);
+            lastSnapshots.put(latency, histogram.snapshot());
+        }
+        lastReportNanos = System.nanoTime();
+    }
+
+    void sent(Op op) {
+        sent.get(op).increment();
+    }
+
+    void latency(Latency latency, long startNanos) {
+        latencies.get(latency).recordSince(startNanos);
+    }
+
+    /**
+     * Error con el texto que lo describe; los ERROR: del servidor se agrupan por mensaje
+     */
+    void error(String description) {
+        errors.computeIfAbsent(description, k -> new LongAdder()).increment();
+    }
+
+    private long totalSent() {
+        long total = 0;
+        for (LongAdder adder : sent.values()) {
+            total += adder.sum();
+        }
+        return total;
+    }
+
+    long totalErrors() {
+        long total = 0;
+        for (LongAdder adder : errors.values()) {
+            total += adder.sum();
+        }
+        return total;
+    }
+
+    /**
+     * Una línea por intervalo: ritmo de envío y entrega y p50/p99 de la entrega general
+     */
+    synchronized void printInterval(PrintStream out, int connected) {
+        long now = System.nanoTime();
+        double seconds = (now - lastReportNanos) / 1e9;
+        long totalSent = totalSent();
+        long totalDelivered = delivered.sum();
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("[%s] sesiones=%d enviados/s=%.0f entregados/s=%.0f errores=%d",
+                java.time.LocalTime.now().withNano(0), connected,
+                (totalSent - lastSent) / seconds, (totalDelivered - lastDelivered) / seconds, totalErrors()));
+        for (Latency latency : Latency.values()) {
+            LatencyHistogram.Snapshot current = latencies.get(latency).snapshot();
+            LatencyHistogram.Snapshot interval = current.minus(lastSnapshots.get(latency));
+            lastSnapshots.put(latency, current);
+            if (interval.count() > 0) {
+                sb.append(String.format(" | %s p50=%s p99=%s", latency.label,
+                        formatMicros(interval.percentile(50)), formatMicros(interval.percentile(99))));
+            }
+        }
+        out.println(sb);
+        lastReportNanos = now;
+        lastSent = totalSent;
+        lastDelivered = totalDelivered;
+    }
+
+    /**
+     * Resumen de toda la prueba
+     */
+    void printSummary(PrintStream out, double seconds) {
+        out.println();
+        out.println(String.format("Duración: %.1f s", seconds));
+        out.println("Operaciones enviadas:");
+        for (Op op : Op.values()) {
+            long count = sent.get(op).sum();
+            out.println(String.format("  %-20s %10d  (%.1f/s)", op, count, count / seconds));
+        }
+        out.println(String.format("  %-20s %10d  (%.1f/s)", "total", totalSent(), totalSent() / seconds));
+        out.println(String.format("Mensajes entregados: %d (%.1f/s), actualizaciones de presencia: %d",
+                delivered.sum(), delivered.sum() / seconds, presenceUpdates.sum()));
+        out.println(String.format("Sin sesión disponible: %d, envíos con retraso sobre el ritmo objetivo: %d",
+                skipped.sum(), late.sum()));
+
+        out.println("Latencias (µs):");
+        out.println(String.format("  %-22s %9s %9s %9s %9s %9s %9s %9s",
+                "", "n", "media", "p50", "p90", "p99", "p99.9", "máx"));
+        for (Latency latency : Latency.values()) {
+            LatencyHistogram.Snapshot s = latencies.get(latency).snapshot();
+            out.println(String.format("  %-22s %9d %9.0f %9d %9d %9d %9d %9d", latency.label, s.count(), s.mean(),
+                    s.percentile(50), s.percentile(90), s.percentile(99), s.percentile(99.9), s.max()));
+        }
+
+        out.println(String.format("Errores: %d (fallos de conexión: %d, desconexiones inesperadas: %d)",
+                totalErrors(), connectFailures.sum(), disconnects.sum()));
+        List<Map.Entry<String, Long>> sorted = new ArrayList<>();
+        new TreeMap<>(errors).forEach((k, v) -> sorted.add(Map.entry(k, v.sum())));
+        sorted.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        for (Map.Entry<String, Long> e : sorted) {
+            out.println(String.format("  %8d  %s", e.getValue(), e.getKey()));
+        }
+    }
+
+    private static String formatMicros(long micros) {
+        if (micros >= 10_000) {
+            return (micros / 1000) + "ms";
+        }
+        return micros + "µs";
+    }
+}
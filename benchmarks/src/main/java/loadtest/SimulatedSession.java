@@ -0,0 +1,285 @@
+package loadtest;
+
+import javax.net.ssl.SSLSocketFactory;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Un cliente del chat sin interfaz, con el protocolo de texto. Un hilo lee
+ * todo lo que llega y mide las latencias; los envíos los hacen los hilos
+ * que marcan el ritmo de la prueba.
+ * Los mensajes llevan la marca "#lg:nanoTime#" para medir la entrega de
+ * extremo a extremo en quien los recibe (mismo proceso, mismo reloj).
+ */
+final class SimulatedSession {
+    static final String MARK = "#lg:";
+
+    private final LoadGenerator.Config config;
+    private final LoadStats stats;
+    final String username;
+    private final String password;
+
+    // Instantes de envío de las peticiones que esperan respuesta, en orden
+    private final Queue<Long> pendingUsers = new ConcurrentLinkedQueue<>();
+    private final Queue<Long> pendingHistory = new ConcurrentLinkedQueue<>();
+
+    private Socket socket;
+    private OutputStream out;
+    private volatile boolean ready;
+    private boolean registered;
+
+    SimulatedSession(LoadGenerator.Config config, LoadStats stats, String username, String password) {
+        this.config = config;
+        this.stats = stats;
+        this.username = username;
+        this.password = password;
+    }
+
+    boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Conecta, registra el usuario si hace falta y hace login. Bloquea hasta
+     * tener la respuesta del login; después arranca el hilo lector.
+     */
+    boolean connect() {
+        Socket s = null;
+        BufferedReader in;
+        try {
+            if (config.register && !registered) {
+                register();
+            }
+            s = open();
+            synchronized (this) {
+                socket = s;
+                out = new BufferedOutputStream(s.getOutputStream(), 8192);
+            }
+            in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+
+            String reply = login(in);
+            if (!reply.startsWith("OK:")) {
+                stats.error("login: " + reply);
+                close();
+                return false;
+            }
+            stats.sent(LoadStats.Op.LOGIN);
+            // A partir de aquí el lector espera sin límite: un cliente puede pasar tiempo sin recibir nada
+            s.setSoTimeout(0);
+        } catch (IOException e) {
+            stats.connectFailures.increment();
+            stats.error("conexión: " + e.getClass().getSimpleName() + ": " + e.getMessage());
+            close();
+            return false;
+        }
+        pendingUsers.clear();
+        pendingHistory.clear();
+        ready = true;
+        Socket connection = s;
+        Thread reader = new Thread(null, () -> readLoop(connection, in), "lg-" + username, 256 * 1024);
+        reader.setDaemon(true);
+        reader.start();
+        return true;
+    }
+
+    private Socket open() throws IOException {
+        Socket s = config.tls ? SSLSocketFactory.getDefault().createSocket() : new Socket();
+        s.setTcpNoDelay(true);
+        s.connect(new InetSocketAddress(config.host, config.port), config.timeoutMs);
+        s.setSoTimeout(config.timeoutMs);
+        return s;
+    }
+
+    // El servidor cierra la conexión tras un REGISTER sin sesión: se registra en una conexión aparte
+    private void register() throws IOException {
+        try (Socket s = open()) {
+            OutputStream o = s.getOutputStream();
+            o.write(("REGISTER:" + username + ":" + password + "\n").getBytes(StandardCharsets.UTF_8));
+            o.flush();
+            // "ya existe" no es un error: el usuario quedó de una prueba anterior
+            readReply(new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8)));
+        }
+        registered = true;
+    }
+
+    // Tras un LOGOUT el servidor puede no haber liberado aún el nombre: se reintenta un par de veces
+    private String login(BufferedReader in) throws IOException {
+        String reply = null;
+        for (int attempt = 0; attempt < 3; attempt++) {
+            long start = System.nanoTime();
+            send("LOGIN:" + username + ":" + password);
+            reply = readReply(in);
+            if (reply.startsWith("OK:")) {
+                stats.latency(LoadStats.Latency.LOGIN, start);
+                return reply;
+            }
+            if (!reply.contains("ya conectado")) {
+                return reply;
+            }
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return reply;
+            }
+        }
+        return reply;
+    }
+
+    // Primera respuesta OK:/ERROR:; se ignora lo que llegue antes
+    private static String readReply(BufferedReader in) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.startsWith("OK:") || line.startsWith("ERROR:")) {
+                return line;
+            }
+        }
+        throw new IOException("Conexión cerrada por el servidor");
+    }
+
+    private void readLoop(Socket connection, BufferedReader in) {
+        String cause = "cerrada por el servidor";
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                onLine(line);
+            }
+        } catch (IOException e) {
+            cause = e.getMessage();
+        }
+        // Si la cerramos nosotros (logout o fin de la prueba) ya no es la conexión actual
+        synchronized (this) {
+            if (socket != connection) {
+                return;
+            }
+            ready = false;
+        }
+        stats.disconnects.increment();
+        stats.error("desconexión: " + cause);
+    }
+
+    private void onLine(String line) {
+        if (line.startsWith("GENERAL:")) {
+            delivered(line, LoadStats.Latency.GENERAL_DELIVERY);
+        } else if (line.startsWith("PRIVADO:")) {
+            delivered(line, LoadStats.Latency.PRIVATE_DELIVERY);
+        } else if (line.startsWith("PRESENCE:")) {
+            stats.presenceUpdates.increment();
+        } else if (line.startsWith("USERLIST:")) {
+            // La lista que se recibe al hacer login incluye al propio usuario; la respuesta a GET_USERS no
+            if (containsUser(line, "USERLIST:".length())) {
+                stats.presenceUpdates.increment();
+            } else {
+                answered(pendingUsers, LoadStats.Latency.GET_USERS);
+            }
+        } else if (line.startsWith("HISTORIAL_PRIVADO:")) {
+            answered(pendingHistory, LoadStats.Latency.GET_PRIVATE_HISTORY);
+        } else if (line.startsWith("ERROR:")) {
+            stats.error(line);
+        }
+        // El resto (PENDIENTES y los historiales de otros tipos) no se mide
+    }
+
+    private void delivered(String line, LoadStats.Latency latency) {
+        int mark = line.indexOf(MARK);
+        if (mark < 0) {
+            return;
+        }
+        int start = mark + MARK.length();
+        int end = line.indexOf('#', start);
+        try {
+            long sentNanos = Long.parseLong(line.substring(start, end));
+            stats.latency(latency, sentNanos);
+            stats.delivered.increment();
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            stats.error("marca de tiempo inválida en " + latency.label);
+        }
+    }
+
+    private void answered(Queue<Long> pending, LoadStats.Latency latency) {
+        Long start = pending.poll();
+        if (start != null) {
+            stats.latency(latency, start);
+        }
+    }
+
+    private boolean containsUser(String line, int from) {
+        int pos = from;
+        while (pos <= line.length()) {
+            int comma = line.indexOf(',', pos);
+            int end = comma < 0 ? line.length() : comma;
+            if (end - pos == username.length() && line.startsWith(username, pos)) {
+                return true;
+            }
+            if (comma < 0) {
+                return false;
+            }
+            pos = comma + 1;
+        }
+        return false;
+    }
+
+    void sendGeneral(String padding) throws IOException {
+        send("MESSAGE:" + MARK + System.nanoTime() + "#" + padding);
+        stats.sent(LoadStats.Op.MESSAGE);
+    }
+
+    void sendPrivate(String recipient, String padding) throws IOException {
+        send("PRIVATE:" + recipient + ":" + MARK + System.nanoTime() + "#" + padding);
+        stats.sent(LoadStats.Op.PRIVATE);
+    }
+
+    void requestUsers() throws IOException {
+        pendingUsers.add(System.nanoTime());
+        send("GET_USERS");
+        stats.sent(LoadStats.Op.GET_USERS);
+    }
+
+    void requestPrivateHistory(String otherUser) throws IOException {
+        pendingHistory.add(System.nanoTime());
+        send("GET_PRIVATE_HISTORY:" + otherUser);
+        stats.sent(LoadStats.Op.GET_PRIVATE_HISTORY);
+    }
+
+    /**
+     * Cierra la sesión con LOGOUT para volver a hacer login (LOGIN de la mezcla)
+     */
+    void logout() {
+        ready = false;
+        try {
+            send("LOGOUT");
+        } catch (IOException e) {
+            // Ya estaba cerrada
+        }
+        close();
+    }
+
+    private synchronized void send(String line) throws IOException {
+        if (out == null) {
+            throw new IOException("Sesión cerrada");
+        }
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    synchronized void close() {
+        ready = false;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nada que hacer
+            }
+        }
+        socket = null;
+        out = null;
+    }
+}
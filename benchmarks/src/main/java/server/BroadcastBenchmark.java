@@ -0,0 +1,134 @@
+package server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reparto de un mensaje general a N clientes con ChatServer.broadcast.
+ * Los clientes simulados escriben los bytes en un stream nulo, como haría
+ * el hilo escritor de cada conexión. "perRecipient" codifica el mensaje para
+ * cada destinatario, como se hacía antes de compartir el Frame. "room"
+ * reparte un mensaje a una sala de ROOM_SIZE miembros con los mismos N
+ * clientes conectados: su coste no debería crecer con N.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dchat.metrics.port=0", "-Dchat.log.file=target/bench-broadcast.log"})
+public class BroadcastBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int recipients;
+
+    private static final String MESSAGE = "GENERAL:[2025-05-20 18:30:00.0] user1: Hola a todos, ¿alguien conectado?";
+    private static final int ROOM_SIZE = 10;
+    private static final ChatMessage ROOM_MESSAGE = ChatMessage.createInRoom("user0", "sala", "Hola a la sala");
+
+    private ChatServer server;
+    private MockSession[] sessions;
+
+    /**
+     * Cliente sin socket: escribe cada frame en un stream que lo descarta
+     */
+    static final class MockSession implements ClientSession {
+        private final String username;
+        private final OutputStream out = OutputStream.nullOutputStream();
+
+        MockSession(String username) {
+            this.username = username;
+        }
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+
+        @Override
+        public String getClientAddress() {
+            return "127.0.0.1";
+        }
+
+        @Override
+        public String getRemoteIp() {
+            return "127.0.0.1";
+        }
+
+        @Override
+        public void sendFrame(Frame frame) {
+            try {
+                frame.writeTo(out, false);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void sendBytes(byte[] bytes) {
+            try {
+                out.write(bytes);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public int getQueueDepth() {
+            return 0;
+        }
+
+        @Override
+        public boolean takePresenceResync() {
+            return false;
+        }
+
+        @Override
+        public String getQueueStats() {
+            return "";
+        }
+
+        @Override
+        public void disconnect() {
+        }
+    }
+
+    @Setup
+    public void setup() {
+        server = new ChatServer(ServerConfig.Mode.BLOCKING);
+        sessions = new MockSession[recipients];
+        for (int i = 0; i < recipients; i++) {
+            sessions[i] = new MockSession("user" + i);
+            server.addClient(sessions[i].getUsername(), sessions[i]);
+            if (i < ROOM_SIZE) {
+                server.joinRoom("sala", sessions[i].getUsername());
+            }
+        }
+    }
+
+    @Benchmark
+    public void sharedFrame() throws InterruptedException {
+        server.broadcast(MESSAGE, "user0");
+        // El reparto es asíncrono (hilos de los shards): se mide hasta que termina
+        server.getRegistry().awaitPending();
+    }
+
+    @Benchmark
+    public void room() throws InterruptedException {
+        server.sendRoomMessage(ROOM_MESSAGE);
+        server.getRegistry().awaitPending();
+    }
+
+    @Benchmark
+    public void perRecipient() {
+        for (MockSession session : sessions) {
+            if (!session.getUsername().equals("user0")) {
+                session.sendBytes((MESSAGE + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+}
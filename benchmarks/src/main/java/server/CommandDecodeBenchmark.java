@@ -0,0 +1,76 @@
+package server;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodificación de los comandos del cliente tal como llegan del socket
+ * (bytes de una línea sin el '\n'), hasta tener los campos que usa el handler.
+ * "legacy" reproduce el análisis anterior: String de la línea, cadena de
+ * startsWith, substring y split.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandDecodeBenchmark {
+
+    @Param({"MESSAGE", "PRIVATE", "GET_PRIVATE_HISTORY"})
+    public String command;
+
+    private byte[] line;
+    private final Command decoded = new Command();
+
+    @Setup
+    public void setup() {
+        String text;
+        switch (command) {
+            case "MESSAGE":
+                text = "MESSAGE:Hola a todos, ¿alguien conectado esta tarde?";
+                break;
+            case "PRIVATE":
+                text = "PRIVATE:user2:Te paso el enlace del proyecto: http://localhost:8080/";
+                break;
+            default:
+                text = "GET_PRIVATE_HISTORY:user2";
+        }
+        line = text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public void decoder(Blackhole bh) {
+        CommandDecoder.decodeLine(line, 0, line.length, decoded);
+        // Los handlers solo convierten a String los campos que necesitan
+        for (int i = 0; i < decoded.fieldCount(); i++) {
+            bh.consume(decoded.field(i));
+        }
+        bh.consume(decoded.opcode());
+    }
+
+    @Benchmark
+    public void legacy(Blackhole bh) {
+        String message = new String(line, StandardCharsets.UTF_8);
+        if (message.startsWith("REGISTER:")) {
+            bh.consume(message.substring(9).split(":", 2));
+        } else if (message.startsWith("MESSAGE:")) {
+            bh.consume(message.substring(8));
+        } else if (message.startsWith("PRIVATE:")) {
+            bh.consume(message.substring(8).split(":", 2));
+        } else if (message.equals("GET_USERS")) {
+            bh.consume(message);
+        } else if (message.equals("LOGOUT") || message.startsWith("LOGOUT:")) {
+            bh.consume(message);
+        } else if (message.startsWith("GET_HISTORY_PAGE:")) {
+            bh.consume(message.substring("GET_HISTORY_PAGE:".length()));
+        } else if (message.startsWith("GET_HISTORY_SINCE:")) {
+            bh.consume(message.substring("GET_HISTORY_SINCE:".length()));
+        } else if (message.startsWith("GET_PRIVATE_HISTORY:")) {
+            bh.consume(message.substring("GET_PRIVATE_HISTORY:".length()));
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Páginas del historial privado (MessageManager.getHistoryPage) más el formato
+ * que se envía al cliente, con H2 en memoria en lugar de PostgreSQL.
+ * "newestPage" pide la página más reciente, que está en RecentMessageCache;
+ * "olderPage" pide la anterior con su token, que siempre consulta H2.
+ * "pendingOnLogin" es lo que hace el login: buscar los privados pendientes,
+ * que tras la primera llamada ya no queda ninguno.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {
+        "-Dchat.db.url=jdbc:h2:mem:bench;MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1",
+        "-Dchat.db.user=sa",
+        "-Dchat.db.password=",
+        "-Dchat.db.explainPlans=false",
+        "-Dchat.cache.perConversation=200",
+        "-Dchat.metrics.port=0",
+        "-Dchat.log.file=target/bench-history.log"})
+public class HistoryBenchmark {
+
+    private static final String USER = "user1";
+    private static final int ROWS_PER_TABLE = 1000;
+    private static final String OTHER = "user2";
+    private static final int PAGE_SIZE = 100;
+
+    private String olderToken;
+
+    @Setup(Level.Trial)
+    public void seed() throws SQLException {
+        long base = System.currentTimeMillis() - ROWS_PER_TABLE * 1000L;
+        try (Connection conn = DatabaseConfig.getConnection()) {
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "INSERT INTO usuarios (username, password_hash, salt) SELECT ?, 'x', 'x' "
+                            + "WHERE NOT EXISTS (SELECT 1 FROM usuarios WHERE username = ?)")) {
+                ps.setString(1, "user2");
+                ps.setString(2, "user2");
+                ps.executeUpdate();
+            }
+            try (PreparedStatement general = conn.prepareStatement(
+                         "INSERT INTO mensajes_generales (sender, message, timestamp) VALUES (?, ?, ?)");
+                 PreparedStatement priv = conn.prepareStatement(
+                         "INSERT INTO mensajes (sender, recipient, message, timestamp) VALUES (?, ?, ?, ?)")) {
+                for (int i = 0; i < ROWS_PER_TABLE; i++) {
+                    String sender = i % 2 == 0 ? "user1" : "user2";
+                    general.setString(1, sender);
+                    general.setString(2, "Mensaje general número " + i + " para el historial");
+                    general.setTimestamp(3, new Timestamp(base + i * 1000L));
+                    general.addBatch();
+                    priv.setString(1, sender);
+                    priv.setString(2, sender.equals("user1") ? "user2" : "user1");
+                    priv.setString(3, "Mensaje privado número " + i);
+                    priv.setTimestamp(4, new Timestamp(base + i * 1000L + 500));
+                    priv.addBatch();
+                }
+                general.executeBatch();
+                priv.executeBatch();
+            }
+        }
+        // La primera petición carga la página más reciente en la caché
+        olderToken = MessageManager.getHistoryPage(USER, OTHER, "", PAGE_SIZE).getOlderToken();
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        MessageManager.shutdown(10000);
+        DatabaseConfig.shutdownPool();
+    }
+
+    @Benchmark
+    public String newestPage() {
+        return format(MessageManager.getHistoryPage(USER, OTHER, "", PAGE_SIZE).getMessages());
+    }
+
+    @Benchmark
+    public String olderPage() {
+        return format(MessageManager.getHistoryPage(USER, OTHER, olderToken, PAGE_SIZE).getMessages());
+    }
+
+    @Benchmark
+    public int pendingOnLogin() {
+        return MessageManager.getUnreadMessages(USER, List.of()).size();
+    }
+
+    private static String format(List<ChatMessage> historial) {
+        StringBuilder sb = new StringBuilder();
+        for (ChatMessage msg : historial) {
+            sb.append(MessageManager.formatForUser(msg, USER)).append("\n");
+        }
+        return "HISTORIAL:" + sb;
+    }
+}
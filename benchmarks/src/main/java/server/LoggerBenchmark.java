@@ -0,0 +1,39 @@
+package server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coste de Logger.log para el hilo que registra. "info" publica la entrada en
+ * el buffer del LogWriter (con BLOCK, para que el resultado incluya esperar
+ * al hilo escritor cuando el buffer se llena); "debugDisabled" es una llamada
+ * por debajo del nivel configurado, que no debe construir el mensaje.
+ * Conviene probar también con -t 4 o más hilos.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {
+        "-Dchat.log.file=target/bench-logger.log",
+        "-Dchat.log.level=INFO",
+        "-Dchat.log.overflow=BLOCK",
+        "-Dchat.log.maxBytes=104857600",
+        "-Dchat.log.maxFiles=1",
+        "-Dchat.metrics.port=0"})
+public class LoggerBenchmark {
+
+    private int counter;
+
+    @Benchmark
+    public void info() {
+        Logger.log("Mensaje procesado del usuario user" + (counter++ & 63));
+    }
+
+    @Benchmark
+    public void debugDisabled() {
+        Logger.debug(() -> "Mensaje procesado del usuario user" + (counter++ & 63));
+    }
+}
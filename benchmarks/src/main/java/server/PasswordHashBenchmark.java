@@ -0,0 +1,33 @@
+package server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coste del hash de contraseñas (PBKDF2), que se paga en cada login y registro,
+ * según las iteraciones (-Dchat.auth.iterations).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dchat.metrics.port=0", "-Dchat.log.file=target/bench-hash.log"})
+public class PasswordHashBenchmark {
+
+    @Param({"10000", "100000", "310000"})
+    public int iterations;
+
+    private String salt;
+
+    @Setup
+    public void setup() {
+        salt = UserManager.generateSalt();
+    }
+
+    @Benchmark
+    public String hashPassword() {
+        return PasswordHasher.hash("contraseña-de-prueba", salt, iterations);
+    }
+}
@@ -2,6 +2,10 @@ package client;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import javafx.application.Application;
@@ -11,24 +15,29 @@ import javafx.scene.Scene;
 import javafx.stage.Stage;
 import javafx.stage.Modality;
 import javafx.application.Platform;
-import javafx.collections.FXCollections;
-import javafx.collections.ObservableList;
 import javafx.scene.control.Alert;
+import server.BinaryProtocol;
 import server.ChatServer;
 
 public class ChatClient extends Application {
     // Cambiar a la IP del servidor cuando se conecte desde otro ordenador
     private static final String SERVER_ADDRESS = "localhost";
     private static final int SERVER_PORT = 5000;
+    // Protocolo con el servidor: "text" (líneas) o "binary" (frames con longitud)
+    private static final boolean USE_BINARY = "binary".equalsIgnoreCase(System.getProperty("chat.protocol", "text"));
+    private static final int MAX_FRAME_BYTES = 16 * 1024 * 1024;
     
     private Socket socket;
     private BufferedReader in;
     private PrintWriter out;
+    private InputStream rawIn;
+    private OutputStream rawOut;
+    private boolean binary;
     private String username;
     private String password;
     private ExecutorService executorService;
     private ChatWindowController chatController;
-    private ObservableList<String> userList = FXCollections.observableArrayList();
+    private String pendientesSinVentana; // PENDIENTES: recibido antes de abrir la ventana de chat
     private Stage primaryStage;
     private boolean isConnected = false;
     private ChatServer server;
@@ -116,8 +125,8 @@ public class ChatClient extends Application {
 
     public boolean registerUser(String username, String password) {
         try (Socket regSocket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-             PrintWriter regOut = new PrintWriter(regSocket.getOutputStream(), true);
-             BufferedReader regIn = new BufferedReader(new InputStreamReader(regSocket.getInputStream()))) {
+             PrintWriter regOut = new PrintWriter(new OutputStreamWriter(regSocket.getOutputStream(), StandardCharsets.UTF_8), true);
+             BufferedReader regIn = new BufferedReader(new InputStreamReader(regSocket.getInputStream(), StandardCharsets.UTF_8))) {
             regOut.println("REGISTER:" + username + ":" + password);
             String response = regIn.readLine();
             return response != null && response.startsWith("OK:");
@@ -140,16 +149,18 @@ public class ChatClient extends Application {
     private void connectToServer() {
         try {
             socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
+            if (USE_BINARY) {
+                negotiateBinary();
+            } else {
+                in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            }
             executorService = Executors.newFixedThreadPool(2);
             
             // Enviar el nombre de usuario y contraseña al servidor
-            out.println("LOGIN:" + username + ":" + password);
+            sendLine("LOGIN:" + username + ":" + password);
             isConnected = true;
-            
-            // Solicitar la lista de usuarios tras iniciar sesión
-            out.println("GET_USERS");
+            // La lista de usuarios la envía el servidor al aceptar el login
             
             // Iniciar el hilo de escucha
             startMessageListener();
@@ -159,6 +170,36 @@ public class ChatClient extends Application {
         }
     }
 
+    // Pide el protocolo binario: MAGIC + versión, y el servidor responde igual
+    private void negotiateBinary() throws IOException {
+        rawIn = new BufferedInputStream(socket.getInputStream());
+        rawOut = new BufferedOutputStream(socket.getOutputStream());
+        rawOut.write(BinaryProtocol.MAGIC);
+        rawOut.write(BinaryProtocol.VERSION);
+        rawOut.flush();
+        if (rawIn.read() != BinaryProtocol.MAGIC || rawIn.read() < 1) {
+            throw new IOException("El servidor no admite el protocolo binario");
+        }
+        binary = true;
+    }
+
+    private synchronized void sendLine(String line) {
+        if (!binary) {
+            out.println(line);
+            return;
+        }
+        try {
+            BinaryProtocol.writeFrame(rawOut, line);
+            rawOut.flush();
+        } catch (IOException e) {
+            showError("Error al enviar al servidor: " + e.getMessage());
+        }
+    }
+
+    private String readLine() throws IOException {
+        return binary ? BinaryProtocol.readLine(rawIn, MAX_FRAME_BYTES) : in.readLine();
+    }
+
     private void showChatWindow() {
         try {
             java.net.URL fxmlUrl = ChatClient.class.getResource("/fxml/ChatWindow.fxml");
@@ -169,6 +210,10 @@ public class ChatClient extends Application {
             chatController.setChatClient(this);
             chatController.setUsername(username);
             chatController.setStage(primaryStage);
+            if (pendientesSinVentana != null) {
+                chatController.applyPending(pendientesSinVentana);
+                pendientesSinVentana = null;
+            }
             
             primaryStage.setTitle("Chat App - " + username);
             primaryStage.setScene(new Scene(chatRoot));
@@ -190,7 +235,7 @@ public class ChatClient extends Application {
         executorService.execute(() -> {
             try {
                 while (isConnected && !socket.isClosed()) {
-                    String message = in.readLine();
+                    String message = readLine();
                     if (message != null) {
                         handleServerMessage(message);
                     } else {
@@ -211,11 +256,69 @@ public class ChatClient extends Application {
         Platform.runLater(() -> {
             try {
                 if (message.startsWith("USERLIST:")) {
-                    String[] users = message.substring(9).split(",");
-                    userList.clear();
-                    userList.addAll(users);
                     if (chatController != null) {
-                        chatController.updateUserList(userList);
+                        chatController.updateUserList(Arrays.asList(message.substring(9).split(",")));
+                    }
+                } else if (message.startsWith("PRESENCE:")) {
+                    // PRESENCE:+usuario,-usuario... cambios desde el último aviso
+                    List<String> joined = new ArrayList<>();
+                    List<String> left = new ArrayList<>();
+                    for (String change : message.substring("PRESENCE:".length()).split(",")) {
+                        if (change.length() > 1) {
+                            (change.charAt(0) == '+' ? joined : left).add(change.substring(1));
+                        }
+                    }
+                    if (chatController != null) {
+                        chatController.applyPresence(joined, left);
+                    }
+                } else if (message.startsWith("PENDIENTES:")) {
+                    // PENDIENTES:registros "id|remitente|linea" separados por RS, recibidos sin conexión
+                    String records = message.substring("PENDIENTES:".length());
+                    if (chatController != null) {
+                        chatController.applyPending(records);
+                    } else {
+                        pendientesSinVentana = records;
+                    }
+                } else if (message.startsWith("HISTORIAL_PAGINA:")) {
+                    // HISTORIAL_PAGINA:conversacion:tokenAnterior:registros separados por RS
+                    String data = message.substring("HISTORIAL_PAGINA:".length());
+                    int convSep = data.indexOf(':');
+                    int tokenSep = convSep >= 0 ? data.indexOf(':', convSep + 1) : -1;
+                    if (chatController != null && tokenSep >= 0) {
+                        chatController.applyHistoryPage(data.substring(0, convSep),
+                                data.substring(convSep + 1, tokenSep), data.substring(tokenSep + 1));
+                    }
+                } else if (message.startsWith("HISTORIAL_NUEVO:")) {
+                    // HISTORIAL_NUEVO:conversacion:registros separados por RS
+                    String data = message.substring("HISTORIAL_NUEVO:".length());
+                    int sep = data.indexOf(':');
+                    if (chatController != null && sep >= 0) {
+                        chatController.appendHistoryDelta(data.substring(0, sep), data.substring(sep + 1));
+                    }
+                } else if (message.startsWith("PRIVADO:")) {
+                    // PRIVADO:remitente:linea
+                    String data = message.substring("PRIVADO:".length());
+                    int sep = data.indexOf(':');
+                    if (chatController != null && sep >= 0) {
+                        chatController.receiveLiveMessage(data.substring(0, sep), data.substring(sep + 1));
+                    }
+                } else if (message.startsWith("SALA:")) {
+                    // SALA:sala:linea
+                    String data = message.substring("SALA:".length());
+                    int sep = data.indexOf(':');
+                    if (chatController != null && sep >= 0) {
+                        chatController.appendRoomMessage(data.substring(0, sep), data.substring(sep + 1));
+                    }
+                } else if (message.startsWith("HISTORIAL_SALA:")) {
+                    // HISTORIAL_SALA:sala:registros "id|linea" separados por RS
+                    String data = message.substring("HISTORIAL_SALA:".length());
+                    int sep = data.indexOf(':');
+                    if (chatController != null && sep >= 0) {
+                        chatController.applyRoomHistory(data.substring(0, sep), data.substring(sep + 1));
+                    }
+                } else if (message.startsWith("GENERAL:")) {
+                    if (chatController != null) {
+                        chatController.receiveLiveMessage("", message.substring("GENERAL:".length()));
                     }
                 } else if (message.startsWith("HISTORIAL:")) {
                     String historialMsg = message.substring(10);
@@ -257,7 +360,7 @@ public class ChatClient extends Application {
                 formattedMessage = "PRIVATE:" + recipient + ":" + message;
             }
             // Enviar el mensaje sin cifrar
-            out.println(formattedMessage);
+            sendLine(formattedMessage);
         } catch (Exception e) {
             showError("Error al enviar mensaje: " + e.getMessage());
         }
@@ -266,8 +369,8 @@ public class ChatClient extends Application {
     public void disconnect() {
         isConnected = false;
         try {
-            if (out != null) {
-                out.println("LOGOUT:" + username);
+            if (socket != null && !socket.isClosed()) {
+                sendLine("LOGOUT:" + username);
             }
             if (socket != null && !socket.isClosed()) {
                 socket.close();
@@ -302,11 +405,50 @@ public class ChatClient extends Application {
     }
     
     public void requestPrivateHistory(String otherUser) {
-        if (out != null) {
-            out.println("GET_PRIVATE_HISTORY:" + otherUser);
+        if (socket != null) {
+            sendLine("GET_PRIVATE_HISTORY:" + otherUser);
+        }
+    }
+
+    /**
+     * Pide una página de historial anterior al token (vacío = la más reciente)
+     */
+    public void requestHistoryPage(String otherUser, String beforeToken, int limit) {
+        if (socket != null) {
+            sendLine("GET_HISTORY_PAGE:" + otherUser + ":" + beforeToken + ":" + limit);
+        }
+    }
+
+    /**
+     * Pide solo los mensajes de la conversación posteriores al id indicado
+     */
+    public void requestHistorySince(String otherUser, long lastId) {
+        if (socket != null) {
+            sendLine("GET_HISTORY_SINCE:" + otherUser + ":" + lastId);
         }
     }
     
+    /**
+     * Entra en una sala; el servidor responde con sus últimos mensajes
+     */
+    public void joinRoom(String room) {
+        if (socket != null) {
+            sendLine("JOIN_ROOM:" + room);
+        }
+    }
+
+    public void leaveRoom(String room) {
+        if (socket != null) {
+            sendLine("LEAVE_ROOM:" + room);
+        }
+    }
+
+    public void sendRoomMessage(String room, String message) {
+        if (socket != null) {
+            sendLine("ROOM_MESSAGE:" + room + ":" + message);
+        }
+    }
+
     public static void main(String[] args) {
         launch(args);
     }
@@ -12,13 +12,26 @@ import java.util.Optional;
 import javafx.scene.control.ListCell;
 import javafx.util.Callback;
 import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.time.LocalTime;
 import java.time.format.DateTimeFormatter;
 import javafx.scene.layout.HBox;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import javafx.geometry.Orientation;
+import javafx.scene.Node;
 
 public class ChatWindowController {
+    private static final int HISTORY_PAGE_SIZE = 50;
+    private static final int ROOM_LINES = 200; // Líneas que se guardan de cada sala
+    private static final int SAVED_CONVERSATIONS = 20; // Conversaciones cerradas que se recuerdan
+
     @FXML private ListView<String> userListView;
     @FXML private ListView<MensajeChat> chatListView;
     @FXML private TextField messageField;
@@ -34,9 +47,39 @@ public class ChatWindowController {
     private ObservableList<String> userList = FXCollections.observableArrayList();
     private ObservableList<MensajeChat> mensajes = FXCollections.observableArrayList();
     private String currentSelectedUser = null;
-    private java.util.Timer historyTimer = null;
+    private long lastMessageId = 0; // Cursor del historial de la conversación abierta
+    private String olderPageToken = null; // null = no hay mensajes más antiguos
+    private boolean historyLoaded = false;
+    private boolean loadingOlder = false;
     private LocalDate lastDateHeader = null;
     private Set<String> mensajeIds = new HashSet<>();
+    private Set<String> usuariosEnLista = new HashSet<>(); // Usuarios de userList, sin "General"
+    private Map<String, List<String>> roomLines = new HashMap<>(); // Sala -> últimas líneas recibidas
+    // Conversaciones ya cargadas que se han dejado de ver, para reabrirlas pidiendo solo lo nuevo
+    private Map<String, Conversacion> conversaciones = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Conversacion> eldest) {
+            return size() > SAVED_CONVERSATIONS;
+        }
+    };
+
+    // Lo que se ve de una conversación y su cursor al dejarla
+    private static final class Conversacion {
+        final List<MensajeChat> mensajes;
+        final Set<String> ids;
+        final LocalDate lastDateHeader;
+        final long lastMessageId;
+        final String olderPageToken;
+
+        Conversacion(List<MensajeChat> mensajes, Set<String> ids, LocalDate lastDateHeader,
+                     long lastMessageId, String olderPageToken) {
+            this.mensajes = mensajes;
+            this.ids = ids;
+            this.lastDateHeader = lastDateHeader;
+            this.lastMessageId = lastMessageId;
+            this.olderPageToken = olderPageToken;
+        }
+    }
 
     @FXML
     public void initialize() {
@@ -44,24 +87,49 @@ public class ChatWindowController {
         userList.add("General");
         userListView.setItems(userList);
         userListView.getSelectionModel().selectedItemProperty().addListener((obs, oldVal, newVal) -> {
+            if (oldVal != null && historyLoaded && !isRoom(oldVal) && lastMessageId > 0) {
+                conversaciones.put(oldVal, new Conversacion(new ArrayList<>(mensajes), new HashSet<>(mensajeIds),
+                        lastDateHeader, lastMessageId, olderPageToken));
+            }
             if (newVal != null) {
                 recipientField.setText(newVal.equals("General") ? "" : newVal);
                 currentSelectedUser = newVal;
-                mensajes.clear(); // Limpiar mensajes al cambiar de usuario
+                clearChat(); // Limpiar mensajes al cambiar de usuario
+                lastMessageId = 0;
+                olderPageToken = null;
+                historyLoaded = false;
                 chatListView.setItems(mensajes);
-                // Solicitar historial adecuado
-                if (chatClient != null) {
-                    if (newVal.equals("General")) {
-                        chatClient.requestPrivateHistory(""); // Usar vacío para general
-                    } else {
-                        chatClient.requestPrivateHistory(newVal);
+                if (isRoom(newVal)) {
+                    // El historial de la sala llega al entrar; aquí se muestra lo guardado
+                    historyLoaded = true;
+                    showRoom(newVal.substring(1));
+                    return;
+                }
+                Conversacion saved = conversaciones.remove(newVal);
+                if (saved != null) {
+                    // Ya cargada antes: se muestra lo que había y se piden solo los mensajes posteriores
+                    mensajes.setAll(saved.mensajes);
+                    mensajeIds.addAll(saved.ids);
+                    lastDateHeader = saved.lastDateHeader;
+                    lastMessageId = saved.lastMessageId;
+                    olderPageToken = saved.olderPageToken;
+                    historyLoaded = true;
+                    loadingOlder = false;
+                    scrollToEnd();
+                    if (chatClient != null) {
+                        chatClient.requestHistorySince(toConversation(newVal), lastMessageId);
                     }
-                    startHistoryTimer();
+                    return;
+                }
+                // Cargar solo la última página; después llegan los mensajes en vivo
+                // y las páginas anteriores se piden al hacer scroll hacia arriba
+                if (chatClient != null) {
+                    loadingOlder = true;
+                    chatClient.requestHistoryPage(toConversation(newVal), "", HISTORY_PAGE_SIZE);
                 }
             } else {
                 recipientField.clear();
                 currentSelectedUser = null;
-                stopHistoryTimer();
             }
         });
         // Configurar celdas personalizadas para el chat
@@ -107,6 +175,9 @@ public class ChatWindowController {
             }
         });
 
+        // Al llegar arriba del todo se carga la página anterior
+        chatListView.skinProperty().addListener((obs, oldSkin, newSkin) -> Platform.runLater(this::hookTopScroll));
+
         // Configurar los botones
         sendButton.setOnAction(e -> sendMessage());
         clearButton.setOnAction(e -> clearChat());
@@ -115,12 +186,13 @@ public class ChatWindowController {
         messageField.setOnAction(e -> sendMessage());
         
         // Configurar el campo de destinatario
-        recipientField.setPromptText("Todos (dejar vacío para mensaje general)");
+        recipientField.setPromptText("Todos (dejar vacío para mensaje general, #sala para una sala)");
     }
 
     public void setChatClient(ChatClient chatClient) {
         this.chatClient = chatClient;
-        stopHistoryTimer();
+        // El login ya no trae historial: se abre el chat general y se pide su última página
+        userListView.getSelectionModel().selectFirst();
     }
 
     public void setUsername(String username) {
@@ -132,36 +204,301 @@ public class ChatWindowController {
         this.stage = stage;
     }
 
-    public void updateUserList(ObservableList<String> users) {
-        userList.clear();
-        userList.add("General"); // Siempre primero
-        userList.addAll(users);
-        userList.remove(username); // No mostrar el usuario actual en la lista
-        updateStatus("Usuarios conectados: " + users.size());
+    /**
+     * Lista completa de usuarios conectados. Solo se quitan los que ya no
+     * están y se añaden los nuevos, sin vaciar la lista, para no perder la
+     * conversación seleccionada.
+     */
+    public void updateUserList(List<String> users) {
+        Set<String> conectados = new HashSet<>(users);
+        conectados.remove(username); // No mostrar el usuario actual en la lista
+        List<String> desconectados = new ArrayList<>();
+        for (String user : usuariosEnLista) {
+            if (!conectados.contains(user)) {
+                desconectados.add(user);
+            }
+        }
+        applyPresence(users, desconectados);
+    }
+
+    /**
+     * Cambios de usuarios conectados desde el último aviso (PRESENCE:)
+     */
+    public void applyPresence(List<String> joined, List<String> left) {
+        if (!left.isEmpty()) {
+            Set<String> salen = new HashSet<>(left);
+            usuariosEnLista.removeAll(salen);
+            // "General" siempre queda el primero
+            userList.removeIf(user -> salen.contains(user) && !user.equals("General"));
+        }
+        List<String> nuevos = new ArrayList<>();
+        for (String user : joined) {
+            if (!user.isEmpty() && !user.equals(username) && usuariosEnLista.add(user)) {
+                nuevos.add(user);
+            }
+        }
+        userList.addAll(nuevos);
+        updateStatus("Usuarios conectados: " + usuariosEnLista.size());
     }
 
     public void appendMessage(String message) {
-        MensajeChat msg = parseMensaje(message);
-        if (msg != null) {
-            String id = msg.getFecha() + "_" + msg.getHora() + "_" + msg.getTexto();
-            if (!mensajeIds.contains(id)) {
-                // Encabezado de día si cambia la fecha
-                if (lastDateHeader == null || !msg.getFecha().equals(lastDateHeader)) {
-                    lastDateHeader = msg.getFecha();
-                    MensajeChat header = new MensajeChat("--- " + lastDateHeader.toString() + " ---", "", false, lastDateHeader, msg.getHora());
-                    mensajes.add(header);
+        if (addMensaje(message)) {
+            scrollToEnd();
+        }
+    }
+
+    /**
+     * Privados recibidos mientras no estaba conectado: se muestran los de la
+     * conversación abierta y se avisa de quién ha escrito
+     */
+    public void applyPending(String records) {
+        Set<String> senders = new LinkedHashSet<>();
+        for (String record : records.split("\u001E")) {
+            int idSep = record.indexOf('|');
+            int senderSep = idSep < 0 ? -1 : record.indexOf('|', idSep + 1);
+            if (senderSep < 0) {
+                continue;
+            }
+            String sender = record.substring(idSep + 1, senderSep);
+            senders.add(sender);
+            if (sender.equals(currentSelectedUser)) {
+                appendMessage(record.substring(senderSep + 1));
+            }
+        }
+        if (!senders.isEmpty()) {
+            updateStatus("Mensajes recibidos sin conexión de: " + String.join(", ", senders));
+        }
+    }
+
+    /**
+     * Historial de una sala al entrar en ella (registros "id|linea" separados
+     * por RS). La sala se añade a la lista como "#sala".
+     */
+    public void applyRoomHistory(String room, String records) {
+        List<String> lines = new ArrayList<>();
+        if (!records.isEmpty()) {
+            for (String record : records.split("\u001E")) {
+                int sep = record.indexOf('|');
+                if (sep >= 0) {
+                    lines.add(record.substring(sep + 1));
+                }
+            }
+        }
+        // Lo que ya había (el propio mensaje con el que se entró) va detrás del historial
+        List<String> previous = roomLines.get(room);
+        if (previous != null) {
+            lines.addAll(previous);
+        }
+        roomLines.put(room, lines);
+        trimRoom(lines);
+        if (!userList.contains("#" + room)) {
+            userList.add("#" + room);
+        }
+        if (("#" + room).equals(currentSelectedUser)) {
+            clearChat();
+            showRoom(room);
+        }
+    }
+
+    /**
+     * Mensaje en vivo de una sala (la línea "[fecha] remitente: texto" sin la sala)
+     */
+    public void appendRoomMessage(String room, String line) {
+        List<String> lines = roomLines.computeIfAbsent(room, r -> new ArrayList<>());
+        lines.add(line);
+        trimRoom(lines);
+        if (("#" + room).equals(currentSelectedUser)) {
+            appendMessage(line);
+        } else {
+            updateStatus("Nuevo mensaje en #" + room);
+        }
+    }
+
+    private void showRoom(String room) {
+        List<String> lines = roomLines.get(room);
+        if (lines != null) {
+            for (String line : lines) {
+                addMensaje(line);
+            }
+        }
+        scrollToEnd();
+    }
+
+    private static void trimRoom(List<String> lines) {
+        if (lines.size() > ROOM_LINES) {
+            lines.subList(0, lines.size() - ROOM_LINES).clear();
+        }
+    }
+
+    private static boolean isRoom(String selected) {
+        return selected != null && selected.startsWith("#");
+    }
+
+    /**
+     * Añade al final de la conversación abierta los mensajes nuevos recibidos
+     * con GET_HISTORY_SINCE y avanza el cursor.
+     */
+    public void appendHistoryDelta(String conversation, String records) {
+        if (!conversation.equals(toConversation(currentSelectedUser)) || records.isEmpty()) {
+            return;
+        }
+        boolean added = false;
+        for (String record : records.split("\u001E")) {
+            String line = parseRecord(record);
+            if (line != null) {
+                added |= addMensaje(line);
+            }
+        }
+        if (added) {
+            scrollToEnd();
+        }
+    }
+
+    /**
+     * Coloca delante de los mensajes actuales una página de historial
+     * (la más reciente al abrir la conversación, o una anterior al hacer scroll).
+     */
+    public void applyHistoryPage(String conversation, String token, String records) {
+        if (!conversation.equals(toConversation(currentSelectedUser))) {
+            return;
+        }
+        boolean firstPage = !historyLoaded;
+        historyLoaded = true;
+        loadingOlder = false;
+        olderPageToken = token.isEmpty() ? null : token;
+
+        List<MensajeChat> page = new ArrayList<>();
+        if (!records.isEmpty()) {
+            for (String record : records.split("\u001E")) {
+                String line = parseRecord(record);
+                MensajeChat msg = line == null ? null : parseMensaje(line);
+                if (msg != null && mensajeIds.add(mensajeId(msg))) {
+                    page.add(msg);
                 }
-                mensajes.add(msg);
-                mensajeIds.add(id);
-                
-                // Scroll automático hacia el último mensaje
-                Platform.runLater(() -> {
-                    chatListView.scrollTo(mensajes.size() - 1);
+            }
+        }
+        int inserted = prependMensajes(page);
+        if (firstPage) {
+            scrollToEnd();
+        } else if (inserted > 0) {
+            // Mantener a la vista el mensaje que estaba arriba antes de cargar
+            chatListView.scrollTo(inserted);
+        }
+    }
+
+    // Reconstruye la lista con la página delante y recalcula los encabezados de día
+    private int prependMensajes(List<MensajeChat> page) {
+        if (page.isEmpty()) {
+            return 0;
+        }
+        int before = mensajes.size();
+        List<MensajeChat> rebuilt = new ArrayList<>(before + page.size() + 4);
+        LocalDate header = null;
+        List<MensajeChat> all = new ArrayList<>(page);
+        for (MensajeChat msg : mensajes) {
+            if (!isHeader(msg)) {
+                all.add(msg);
+            }
+        }
+        for (MensajeChat msg : all) {
+            if (header == null || !msg.getFecha().equals(header)) {
+                header = msg.getFecha();
+                rebuilt.add(new MensajeChat("--- " + header.toString() + " ---", "", false, header, msg.getHora()));
+            }
+            rebuilt.add(msg);
+        }
+        mensajes.setAll(rebuilt);
+        lastDateHeader = header;
+        return mensajes.size() - before;
+    }
+
+    private void hookTopScroll() {
+        for (Node node : chatListView.lookupAll(".scroll-bar")) {
+            if (node instanceof ScrollBar && ((ScrollBar) node).getOrientation() == Orientation.VERTICAL) {
+                ScrollBar bar = (ScrollBar) node;
+                bar.valueProperty().addListener((obs, oldVal, newVal) -> {
+                    if (newVal.doubleValue() <= bar.getMin()) {
+                        loadOlderPage();
+                    }
                 });
             }
         }
     }
 
+    private void loadOlderPage() {
+        if (chatClient == null || loadingOlder || olderPageToken == null || currentSelectedUser == null) {
+            return;
+        }
+        loadingOlder = true;
+        chatClient.requestHistoryPage(toConversation(currentSelectedUser), olderPageToken, HISTORY_PAGE_SIZE);
+    }
+
+    // Separa "id|linea", avanza el cursor de mensajes nuevos y devuelve la línea
+    private String parseRecord(String record) {
+        int sep = record.indexOf('|');
+        if (sep < 0) {
+            return null;
+        }
+        try {
+            lastMessageId = Math.max(lastMessageId, Long.parseLong(record.substring(0, sep)));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return record.substring(sep + 1);
+    }
+
+    private static boolean isHeader(MensajeChat msg) {
+        return msg.getTexto().startsWith("--- ");
+    }
+
+    private static String mensajeId(MensajeChat msg) {
+        return msg.getFecha() + "_" + msg.getHora() + "_" + msg.getTexto();
+    }
+
+    /**
+     * Mensaje entregado en vivo por el servidor ("" = chat general)
+     */
+    public void receiveLiveMessage(String conversation, String message) {
+        if (conversation.equals(toConversation(currentSelectedUser))) {
+            appendMessage(message);
+        } else if (!conversation.isEmpty()) {
+            updateStatus("Nuevo mensaje de " + conversation);
+        }
+    }
+
+    // Devuelve true si el mensaje era nuevo y se ha añadido a la lista
+    private boolean addMensaje(String message) {
+        MensajeChat msg = parseMensaje(message);
+        if (msg == null) {
+            return false;
+        }
+        String id = mensajeId(msg);
+        if (mensajeIds.contains(id)) {
+            return false;
+        }
+        // Encabezado de día si cambia la fecha
+        if (lastDateHeader == null || !msg.getFecha().equals(lastDateHeader)) {
+            lastDateHeader = msg.getFecha();
+            MensajeChat header = new MensajeChat("--- " + lastDateHeader.toString() + " ---", "", false, lastDateHeader, msg.getHora());
+            mensajes.add(header);
+        }
+        mensajes.add(msg);
+        mensajeIds.add(id);
+        return true;
+    }
+
+    private void scrollToEnd() {
+        // Scroll automático hacia el último mensaje
+        Platform.runLater(() -> {
+            chatListView.scrollTo(mensajes.size() - 1);
+        });
+    }
+
+    // Nombre de conversación que entiende el servidor ("" para el chat general)
+    private static String toConversation(String selectedUser) {
+        return selectedUser == null || selectedUser.equals("General") ? "" : selectedUser;
+    }
+
     private MensajeChat parseMensaje(String message) {
         try {
             if (!message.startsWith("[")) return null;
@@ -191,18 +528,37 @@ public class ChatWindowController {
         String message = messageField.getText().trim();
         if (!message.isEmpty()) {
             String recipient = recipientField.getText().trim();
-            // Validar destinatario
-            if (!recipient.isEmpty() && !userList.contains(recipient)) {
-                showError("El usuario seleccionado no es válido.");
+            String now = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+            if (isRoom(recipient)) {
+                // "#sala": si aún no se está en ella se entra antes de enviar
+                String room = recipient.substring(1);
+                if (!roomLines.containsKey(room)) {
+                    chatClient.joinRoom(room);
+                }
+                chatClient.sendRoomMessage(room, message);
+                appendRoomMessage(room, "[" + now + "] Tú: " + message);
+                messageField.clear();
+                messageField.requestFocus();
+                return;
+            }
+            // Se puede escribir a un usuario desconectado: el servidor comprueba que existe
+            // y se lo entrega cuando entre. Los dos puntos separan los campos del protocolo
+            if (recipient.contains(":")) {
+                showError("El nombre de usuario no es válido.");
                 return;
             }
             chatClient.sendMessage(message, recipient);
+            if (!recipient.isEmpty() && !userList.contains(recipient)) {
+                updateStatus("Mensaje para " + recipient + " (sin conexión): lo recibirá al entrar");
+            }
             
-            // Mostrar el mensaje localmente
-            String displayMessage = recipient.isEmpty() ? 
-                "Tú (a todos): " + message :
-                "Tú (a " + recipient + "): " + message;
-            appendMessage(displayMessage);
+            // Mostrar el mensaje localmente con el mismo formato que el historial
+            String displayMessage = recipient.isEmpty() ?
+                "[" + now + "] Tú: " + message :
+                "[" + now + "] Tú -> " + recipient + ": " + message;
+            if (recipient.equals(toConversation(currentSelectedUser))) {
+                appendMessage(displayMessage);
+            }
             
             messageField.clear();
             messageField.requestFocus();
@@ -221,26 +577,6 @@ public class ChatWindowController {
         }
     }
 
-    private void startHistoryTimer() {
-        stopHistoryTimer();
-        if (currentSelectedUser != null && chatClient != null) {
-            historyTimer = new java.util.Timer();
-            historyTimer.schedule(new java.util.TimerTask() {
-                @Override
-                public void run() {
-                    chatClient.requestPrivateHistory(currentSelectedUser);
-                }
-            }, 5000, 5000); // cada 5 segundos
-        }
-    }
-
-    private void stopHistoryTimer() {
-        if (historyTimer != null) {
-            historyTimer.cancel();
-            historyTimer = null;
-        }
-    }
-
     public void setHistorial(String historial) {
         mensajes.clear();
         mensajeIds.clear();
@@ -5,6 +5,7 @@ import javafx.scene.control.*;
 import javafx.stage.Stage;
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 
 public class RegisterDialogController {
     private static final String SERVER_ADDRESS = "localhost";
@@ -72,8 +73,8 @@ public class RegisterDialogController {
         try {
             // Crear una conexión independiente para el registro
             Socket regSocket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-            PrintWriter regOut = new PrintWriter(regSocket.getOutputStream(), true);
-            BufferedReader regIn = new BufferedReader(new InputStreamReader(regSocket.getInputStream()));
+            PrintWriter regOut = new PrintWriter(new OutputStreamWriter(regSocket.getOutputStream(), StandardCharsets.UTF_8), true);
+            BufferedReader regIn = new BufferedReader(new InputStreamReader(regSocket.getInputStream(), StandardCharsets.UTF_8));
             
             // Enviar el comando de registro
             regOut.println("REGISTER:" + username + ":" + password);
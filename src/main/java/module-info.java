@@ -3,6 +3,8 @@ module yeray.priede.projecte_uf3_psp_final {
     requires javafx.fxml;
     requires java.desktop;
     requires java.sql;
+    requires java.management;
+    requires jdk.httpserver;
 
     opens client to javafx.fxml;
     exports client;
@@ -0,0 +1,109 @@
+package server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Hilos dedicados a los hashes de contraseñas (login y registro). Con un KDF
+ * iterado cada login cuesta CPU de verdad; así una ola de reconexiones ocupa
+ * como mucho estos hilos y no los que reparten mensajes. La cola está
+ * acotada: si se llena, o si una tarea no termina en LOGIN_WAIT_MS, se lanza
+ * RejectedExecutionException y el cliente recibe "servidor ocupado".
+ */
+final class AuthExecutor {
+
+    private static final class AuthThread extends Thread {
+        AuthThread(Runnable r, int n) {
+            super(r, "auth-" + n);
+            setDaemon(true);
+        }
+    }
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final ThreadPoolExecutor pool = new ThreadPoolExecutor(
+            ServerConfig.AUTH_THREADS, ServerConfig.AUTH_THREADS, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(ServerConfig.AUTH_QUEUE_CAPACITY),
+            r -> new AuthThread(r, threadCount.incrementAndGet()));
+
+    private static final Metrics.Histogram QUEUE_WAIT = Metrics.histogram("chat_auth_queue_wait_seconds",
+            "Espera en la cola de autenticación", null, null);
+    private static final Metrics.Counter REJECTED = Metrics.counter("chat_auth_rejected_total",
+            "Logins y registros rechazados por la cola de autenticación llena o lenta", null, null);
+
+    static {
+        Metrics.gauge("chat_auth_queue_depth", "Tareas esperando en la cola de autenticación", null, null,
+                () -> pool.getQueue().size());
+    }
+
+    private AuthExecutor() {
+    }
+
+    /**
+     * Ejecuta la tarea en un hilo de autenticación y espera el resultado.
+     * Si ya se está en uno (login completo enviado al pool) se ejecuta directamente.
+     */
+    static <T> T call(Supplier<T> task) {
+        if (Thread.currentThread() instanceof AuthThread) {
+            return task.get();
+        }
+        long submitted = System.nanoTime();
+        Future<T> future;
+        try {
+            future = pool.submit(() -> {
+                QUEUE_WAIT.observeSince(submitted);
+                return task.get();
+            });
+        } catch (RejectedExecutionException e) {
+            REJECTED.inc();
+            throw e;
+        }
+        try {
+            return future.get(ServerConfig.LOGIN_WAIT_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            REJECTED.inc();
+            throw new RejectedExecutionException("Autenticación sin terminar tras " + ServerConfig.LOGIN_WAIT_MS + " ms");
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Autenticación interrumpida", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Ejecutor para los comandos de una conexión que aún no ha hecho login
+     * (modo NIO): corren enteros en los hilos de autenticación. Si la cola está
+     * llena la tarea va a fallback, donde call() rechazará el login enseguida.
+     */
+    static Executor loginExecutor(Executor fallback) {
+        return task -> {
+            long submitted = System.nanoTime();
+            try {
+                pool.execute(() -> {
+                    QUEUE_WAIT.observeSince(submitted);
+                    task.run();
+                });
+            } catch (RejectedExecutionException e) {
+                fallback.execute(task);
+            }
+        };
+    }
+
+    static String getStats() {
+        return "Autenticación: hilos=" + pool.getPoolSize() + " activos=" + pool.getActiveCount()
+                + " cola=" + pool.getQueue().size() + " completadas=" + pool.getCompletedTaskCount();
+    }
+}
@@ -0,0 +1,223 @@
+package server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Protocolo binario opcional, equivalente al de líneas de texto.
+ * <p>
+ * Negociación: el cliente abre la conexión enviando {@link #MAGIC} y su
+ * versión; el servidor responde con {@link #MAGIC} y la versión acordada.
+ * Si el primer byte no es {@link #MAGIC} la conexión sigue en modo texto.
+ * <p>
+ * Cada frame es: opcode (1 byte), longitud del cuerpo (varint sin signo,
+ * 7 bits por byte) y el cuerpo en UTF-8. El opcode sustituye al prefijo
+ * del comando ("MESSAGE:", "HISTORIAL:"...) y el cuerpo es el resto de la
+ * línea, que puede contener saltos de línea: el historial viaja en un solo
+ * frame. Las líneas sin prefijo conocido usan {@link #OP_RAW} con la línea
+ * completa como cuerpo.
+ */
+public final class BinaryProtocol {
+    // Primer byte de la negociación; ningún comando de texto empieza así
+    public static final int MAGIC = 0xB1;
+    public static final int VERSION = 1;
+
+    public static final int OP_RAW = 0x00;
+    // Cliente -> servidor
+    public static final int OP_LOGIN = 0x01;
+    public static final int OP_REGISTER = 0x02;
+    public static final int OP_MESSAGE = 0x03;
+    public static final int OP_PRIVATE = 0x04;
+    public static final int OP_GET_USERS = 0x05;
+    public static final int OP_LOGOUT = 0x06;
+    public static final int OP_GET_PRIVATE_HISTORY = 0x07;
+    public static final int OP_GET_HISTORY_PAGE = 0x08;
+    public static final int OP_GET_HISTORY_SINCE = 0x09;
+    public static final int OP_JOIN_ROOM = 0x0A;
+    public static final int OP_LEAVE_ROOM = 0x0B;
+    public static final int OP_ROOM_MESSAGE = 0x0C;
+
+    // Prefijo de texto equivalente a cada opcode
+    private static final String[] PREFIXES = new String[128];
+
+    static {
+        PREFIXES[OP_LOGIN] = "LOGIN:";
+        PREFIXES[OP_REGISTER] = "REGISTER:";
+        PREFIXES[OP_MESSAGE] = "MESSAGE:";
+        PREFIXES[OP_PRIVATE] = "PRIVATE:";
+        PREFIXES[OP_GET_USERS] = "GET_USERS";
+        PREFIXES[OP_LOGOUT] = "LOGOUT";
+        PREFIXES[OP_GET_PRIVATE_HISTORY] = "GET_PRIVATE_HISTORY:";
+        PREFIXES[OP_GET_HISTORY_PAGE] = "GET_HISTORY_PAGE:";
+        PREFIXES[OP_GET_HISTORY_SINCE] = "GET_HISTORY_SINCE:";
+        PREFIXES[OP_JOIN_ROOM] = "JOIN_ROOM:";
+        PREFIXES[OP_LEAVE_ROOM] = "LEAVE_ROOM:";
+        PREFIXES[OP_ROOM_MESSAGE] = "ROOM_MESSAGE:";
+        // Servidor -> cliente
+        PREFIXES[0x41] = "OK:";
+        PREFIXES[0x42] = "ERROR:";
+        PREFIXES[0x43] = "USERLIST:";
+        PREFIXES[0x44] = "HISTORIAL:";
+        PREFIXES[0x45] = "HISTORIAL_PRIVADO:";
+        PREFIXES[0x46] = "HISTORIAL_PAGINA:";
+        PREFIXES[0x47] = "HISTORIAL_NUEVO:";
+        PREFIXES[0x48] = "GENERAL:";
+        PREFIXES[0x49] = "PRIVADO:";
+        PREFIXES[0x4A] = "PRESENCE:";
+        PREFIXES[0x4B] = "SALA:";
+        PREFIXES[0x4C] = "HISTORIAL_SALA:";
+        PREFIXES[0x4D] = "PENDIENTES:";
+    }
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * Opcode de una línea de texto (el del prefijo más largo que coincida)
+     */
+    public static int opcodeOf(String line) {
+        int best = OP_RAW;
+        int bestLength = 0;
+        for (int op = 1; op < PREFIXES.length; op++) {
+            String prefix = PREFIXES[op];
+            if (prefix != null && prefix.length() > bestLength && line.startsWith(prefix)) {
+                best = op;
+                bestLength = prefix.length();
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Prefijo de texto del opcode ("" para {@link #OP_RAW}), o null si no existe
+     */
+    public static String prefixOf(int opcode) {
+        if (opcode == OP_RAW) {
+            return "";
+        }
+        return opcode > 0 && opcode < PREFIXES.length ? PREFIXES[opcode] : null;
+    }
+
+    /**
+     * Codifica una línea de texto como frame binario
+     */
+    public static byte[] encode(String line) {
+        int opcode = opcodeOf(line);
+        byte[] body = line.substring(prefixOf(opcode).length()).getBytes(StandardCharsets.UTF_8);
+        byte[] frame = new byte[1 + varintSize(body.length) + body.length];
+        frame[0] = (byte) opcode;
+        int pos = writeVarint(frame, 1, body.length);
+        System.arraycopy(body, 0, frame, pos, body.length);
+        return frame;
+    }
+
+    public static void writeFrame(OutputStream out, String line) throws IOException {
+        out.write(encode(line));
+    }
+
+    /**
+     * Lee un frame completo y lo devuelve como la línea de texto equivalente.
+     * Devuelve null si la conexión se cierra entre frames.
+     */
+    public static String readLine(InputStream in, int maxBodyBytes) throws IOException {
+        int opcode = in.read();
+        if (opcode < 0) {
+            return null;
+        }
+        String prefix = prefixOf(opcode);
+        if (prefix == null) {
+            throw new IOException("Opcode desconocido: " + opcode);
+        }
+        int length = readVarint(in);
+        if (length > maxBodyBytes) {
+            throw new IOException("Frame demasiado grande: " + length + " bytes");
+        }
+        byte[] body = in.readNBytes(length);
+        if (body.length < length) {
+            throw new EOFException("Conexión cerrada a mitad de frame");
+        }
+        return prefix + new String(body, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Longitud total del frame que empieza en off si ya está completo en el
+     * buffer, o -1 si faltan bytes. Lanza IOException si el frame no es válido.
+     */
+    static int frameLength(byte[] buf, int off, int available, int maxBodyBytes) throws IOException {
+        if (available < 2) {
+            return -1;
+        }
+        if (prefixOf(buf[off] & 0xFF) == null) {
+            throw new IOException("Opcode desconocido: " + (buf[off] & 0xFF));
+        }
+        int length = 0;
+        int shift = 0;
+        int pos = off + 1;
+        while (true) {
+            if (pos >= off + available) {
+                return -1;
+            }
+            byte b = buf[pos++];
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            shift += 7;
+            if (shift > 28) {
+                throw new IOException("Longitud de frame inválida");
+            }
+        }
+        if (length < 0 || length > maxBodyBytes) {
+            throw new IOException("Frame demasiado grande: " + length + " bytes");
+        }
+        int total = pos - off + length;
+        return total <= available ? total : -1;
+    }
+
+    /**
+     * Posición del cuerpo de un frame completo que empieza en off
+     */
+    static int bodyOffset(byte[] buf, int off) {
+        int pos = off + 1;
+        while ((buf[pos++] & 0x80) != 0) {
+            // Saltar la longitud: ya validada por frameLength
+        }
+        return pos;
+    }
+
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    // Escribe value en buf a partir de pos y devuelve la posición siguiente
+    static int writeVarint(byte[] buf, int pos, int value) {
+        while ((value & ~0x7F) != 0) {
+            buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte) value;
+        return pos;
+    }
+
+    static int readVarint(InputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift <= 28; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Conexión cerrada a mitad de frame");
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Longitud de frame inválida");
+    }
+}
@@ -0,0 +1,111 @@
+package server;
+
+import java.sql.Timestamp;
+import java.util.Objects;
+
+/**
+ * Mensaje de chat tal y como se guarda: de sala si tiene sala, privado si
+ * tiene destinatario y general si no tiene ninguno de los dos.
+ */
+public class ChatMessage {
+    private volatile long id;
+    // Privado ya entregado al destinatario: se guarda como leído
+    private volatile boolean delivered;
+    // Valor de leído con el que lo escribió el almacén, y si esa escritura ya es definitiva
+    private volatile boolean storedRead;
+    private volatile boolean stored;
+    private final String sender;
+    private final String recipient;
+    private final String room;
+    private final String message;
+    private final Timestamp timestamp;
+
+    public ChatMessage(long id, String sender, String recipient, String message, Timestamp timestamp) {
+        this(id, sender, recipient, null, message, timestamp);
+    }
+
+    ChatMessage(long id, String sender, String recipient, String room, String message, Timestamp timestamp) {
+        this.id = id;
+        this.sender = sender;
+        this.recipient = recipient;
+        this.room = room;
+        this.message = message;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Mensaje nuevo, todavía sin id asignado por la base de datos
+     */
+    public static ChatMessage create(String sender, String recipient, String message) {
+        return new ChatMessage(0, sender, recipient, message, new Timestamp(System.currentTimeMillis()));
+    }
+
+    /**
+     * Mensaje nuevo para una sala, todavía sin id
+     */
+    public static ChatMessage createInRoom(String sender, String room, String message) {
+        return new ChatMessage(0, sender, null, room, message, new Timestamp(System.currentTimeMillis()));
+    }
+
+    public long getId() { return id; }
+    public String getSender() { return sender; }
+    public String getRecipient() { return recipient; }
+    public String getRoom() { return room; }
+    public String getMessage() { return message; }
+    public Timestamp getTimestamp() { return timestamp; }
+
+    public boolean isGeneral() {
+        return room == null && (recipient == null || recipient.isEmpty());
+    }
+
+    public boolean isRoom() {
+        return room != null;
+    }
+
+    public boolean isDelivered() {
+        return delivered;
+    }
+
+    void markDelivered() {
+        this.delivered = true;
+    }
+
+    /**
+     * Lo llama el almacén al escribir un privado: devuelve si va como leído y
+     * lo anota, para saber después si se entregó mientras se guardaba
+     */
+    boolean readForStore() {
+        boolean read = delivered;
+        storedRead = read;
+        return read;
+    }
+
+    boolean isStoredRead() {
+        return storedRead;
+    }
+
+    /**
+     * Guardado de forma definitiva (tras el commit del lote)
+     */
+    boolean isStored() {
+        return stored;
+    }
+
+    void markStored() {
+        this.stored = true;
+    }
+
+    /**
+     * Mismo mensaje aunque sea otra copia (por ejemplo la que se reescribe desde
+     * el fichero de desbordamiento, que solo guarda milisegundos y no tiene id)
+     */
+    boolean sameAs(ChatMessage other) {
+        return this == other || (timestamp.getTime() == other.timestamp.getTime()
+                && sender.equals(other.sender) && message.equals(other.message)
+                && Objects.equals(recipient, other.recipient) && Objects.equals(room, other.room));
+    }
+
+    void setId(long id) {
+        this.id = id;
+    }
+}
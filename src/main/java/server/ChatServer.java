@@ -8,33 +8,68 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ChatServer {
     private static final int PORT = 5000;
+    private final ServerConfig.Mode mode;
     private final ExecutorService pool;
-    private final Map<String, ClientHandler> clients;
-    private final Set<String> connectedUsers;
+    private final SessionRegistry clients;
+    private final PresenceTracker presence;
+    private final RoomRegistry rooms;
+    private final OfflineQueue offline;
     private final AtomicBoolean isRunning;
     private ServerSocket serverSocket;
+    private NioChatServer nioServer;
 
     public ChatServer() {
-        this.pool = Executors.newCachedThreadPool();
-        this.clients = new ConcurrentHashMap<>();
-        this.connectedUsers = ConcurrentHashMap.newKeySet();
+        this(ServerConfig.MODE);
+    }
+
+    public ChatServer(ServerConfig.Mode mode) {
+        this.mode = mode;
+        // En modo NIO el pool solo ejecuta comandos, no mantiene conexiones
+        this.pool = mode == ServerConfig.Mode.NIO
+                ? Executors.newFixedThreadPool(ServerConfig.NIO_WORKERS)
+                : VirtualThreads.newConnectionExecutor();
+        this.clients = SessionRegistry.fromConfig();
+        this.presence = PresenceTracker.fromConfig(clients);
+        this.rooms = RoomRegistry.fromConfig();
+        this.offline = OfflineQueue.fromConfig();
+        // Los privados dejan la cola sin conexión en cuanto el escritor los guarda
+        MessageManager.onPrivateStored(offline::stored);
         this.isRunning = new AtomicBoolean(true);
+        Metrics.gauge("chat_sessions_active", "Usuarios con sesión iniciada", null, null, clients::size);
+        Metrics.gauge("chat_outbound_queued_frames", "Mensajes pendientes en las colas de salida", null, null,
+                this::totalQueueDepth);
+        Metrics.gauge("chat_outbound_queue_max", "Cola de salida más larga entre los clientes", null, null,
+                this::maxQueueDepth);
+        Metrics.gauge("chat_rooms_active", "Salas con algún miembro", null, null, rooms::size);
+        Metrics.gauge("chat_offline_pending", "Privados pendientes en memoria para usuarios desconectados", null, null,
+                offline::size);
+        Metrics.gauge("chat_fanout_pending", "Repartos encolados en los hilos de los shards", null, null,
+                clients::pendingTasks);
+        // Con Ctrl+C o SIGTERM también se guarda lo que quede en la cola del escritor (su hilo es daemon)
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "chat-server-shutdown"));
     }
 
     public void start() {
         Logger.log("Iniciando servidor de chat...");
+        MetricsServer.start();
+
+        if (mode == ServerConfig.Mode.NIO) {
+            startNio();
+            return;
+        }
         
         try {
             serverSocket = new ServerSocket(PORT);
-            Logger.log("Servidor iniciado en el puerto " + PORT);
+            Logger.log("Servidor iniciado en el puerto " + PORT
+                    + (ServerConfig.THREADS == ServerConfig.Threads.VIRTUAL ? " (hilos virtuales)" : ""));
             Logger.log("Esperando conexiones...");
             
             startServerCommandThread();
@@ -45,7 +80,14 @@ public class ChatServer {
                     Logger.log("Nueva conexión desde: " + clientSocket.getInetAddress().getHostAddress());
                     
                     ClientHandler clientHandler = new ClientHandler(clientSocket, this);
-                    pool.execute(clientHandler);
+                    try {
+                        pool.execute(clientHandler);
+                    } catch (RejectedExecutionException e) {
+                        // El pool se está cerrando: no se deja el socket abierto ni la plaza ocupada
+                        Logger.log(Logger.Level.WARNING, "Conexión no atendida, el servidor se está cerrando: "
+                                + clientSocket.getInetAddress().getHostAddress());
+                        clientHandler.abort();
+                    }
                     
                 } catch (IOException e) {
                     if (isRunning.get()) {
@@ -60,6 +102,18 @@ public class ChatServer {
         }
     }
 
+    private void startNio() {
+        try {
+            nioServer = new NioChatServer(this, PORT, ServerConfig.NIO_IO_LOOPS, pool);
+            startServerCommandThread();
+            nioServer.run();
+        } catch (IOException e) {
+            Logger.error("Error iniciando el servidor", e);
+        } finally {
+            shutdown();
+        }
+    }
+
     private void startServerCommandThread() {
         new Thread(() -> {
             while (isRunning.get()) {
@@ -81,11 +135,39 @@ public class ChatServer {
     private void listConnectedClients() {
         Logger.log("Clientes conectados:");
         clients.forEach((username, handler) -> 
-            Logger.log("- " + username + " (" + handler.getClientAddress() + ")"));
+            Logger.log("- " + username + " (" + handler.getClientAddress() + ") " + handler.getQueueStats()));
+        Logger.log(DatabaseConfig.getPoolStats());
+        Logger.log(MessageManager.getWriterStats());
+        Logger.log(MessageManager.getStoreStats());
+        Logger.log(MessageManager.getCacheStats());
+        Logger.log(UserManager.getDirectoryStats());
+        Logger.log(AuthExecutor.getStats());
+        Logger.log(ConnectionLimits.getStats());
+        Logger.log(ProtocolHandler.getLimitStats());
+        Logger.log(rooms.getStats());
+        Logger.log(offline.getStats());
+        for (String line : Metrics.summary(clients.size(), totalQueueDepth(), maxQueueDepth())) {
+            Logger.log(line);
+        }
+    }
+
+    private long totalQueueDepth() {
+        long[] total = {0};
+        clients.forEach((username, session) -> total[0] += session.getQueueDepth());
+        return total[0];
+    }
+
+    private long maxQueueDepth() {
+        long[] max = {0};
+        clients.forEach((username, session) -> max[0] = Math.max(max[0], session.getQueueDepth()));
+        return max[0];
     }
 
     public void shutdown() {
-        isRunning.set(false);
+        // Se llama desde el comando q, al terminar start() y desde el hook de cierre: solo actúa la primera vez
+        if (!isRunning.getAndSet(false)) {
+            return;
+        }
         try {
             if (serverSocket != null && !serverSocket.isClosed()) {
                 serverSocket.close();
@@ -93,6 +175,9 @@ public class ChatServer {
         } catch (IOException e) {
             Logger.error("Error cerrando el servidor", e);
         }
+        if (nioServer != null) {
+            nioServer.shutdown();
+        }
         
         pool.shutdown();
         try {
@@ -103,48 +188,124 @@ public class ChatServer {
             pool.shutdownNow();
             Thread.currentThread().interrupt();
         }
+        presence.shutdown();
+        clients.shutdown();
+        // Vaciar la cola de persistencia antes de cerrar el pool de conexiones
+        MessageManager.shutdown(ServerConfig.WRITE_SHUTDOWN_MS);
+        DatabaseConfig.shutdownPool();
+        MetricsServer.stop();
         
         Logger.log("Servidor detenido");
     }
 
-    public boolean addClient(String username, ClientHandler handler) {
-        if (connectedUsers.contains(username)) {
+    public boolean addClient(String username, ClientSession handler) {
+        // Comprobar y registrar en un solo paso: dos logins a la vez con el mismo nombre no pueden entrar ambos
+        if (!clients.putIfAbsent(username, handler)) {
             return false;
         }
-        connectedUsers.add(username);
-        clients.put(username, handler);
-        broadcastUserList();
+        presence.joined(username, handler);
         return true;
     }
 
-    public void removeClient(String username) {
-        connectedUsers.remove(username);
-        clients.remove(username);
-        broadcastUserList();
+    public void removeClient(String username, ClientSession handler) {
+        // Solo se elimina si el nombre sigue asociado a esta misma conexión. Las salas se dejan
+        // antes de liberar el nombre: después otra sesión del mismo usuario podría entrar en alguna
+        if (clients.get(username) == handler) {
+            rooms.leaveAll(username);
+        }
+        if (clients.remove(username, handler)) {
+            presence.left(username);
+        }
+    }
+
+    /**
+     * Entra en la sala; false si el usuario ya está en el máximo de salas
+     */
+    boolean joinRoom(String room, String username) {
+        return rooms.join(room, username);
+    }
+
+    boolean leaveRoom(String room, String username) {
+        return rooms.leave(room, username);
+    }
+
+    boolean isInRoom(String room, String username) {
+        return rooms.isMember(room, username);
+    }
+
+    /**
+     * Reparte un mensaje de sala solo a sus miembros conectados, menos al remitente.
+     * Formato: SALA:sala:[fecha] remitente: texto
+     */
+    void sendRoomMessage(ChatMessage message) {
+        Frame frame = Frame.of("SALA:" + message.getRoom() + ":" + MessageManager.formatForUser(message, null));
+        clients.multicast(rooms.members(message.getRoom()), frame, message.getSender());
     }
 
     public void broadcast(String message, String sender) {
-        clients.forEach((username, handler) -> {
-            if (!username.equals(sender)) {
-                handler.sendMessage(message);
+        // Se codifica una sola vez para todos los destinatarios y se reparte en los hilos de los shards
+        clients.broadcast(Frame.of(message), sender);
+    }
+
+    /**
+     * Entrega en vivo un mensaje privado al destinatario si está conectado; si
+     * no, queda pendiente hasta su próximo login.
+     * Formato: PRIVADO:remitente:[fecha] remitente -> Tú: texto
+     */
+    public void sendPrivateMessage(ChatMessage message) {
+        String recipient = message.getRecipient();
+        Frame frame = Frame.of("PRIVADO:" + message.getSender() + ":"
+                + MessageManager.formatForUser(message, recipient));
+        if (clients.sendTo(recipient, frame)) {
+            message.markDelivered();
+            return;
+        }
+        offline.add(message);
+        // Si acaba de entrar, su login puede haber vaciado ya la cola: entonces se le entrega en vivo
+        if (clients.contains(recipient) && offline.remove(message)) {
+            if (clients.sendTo(recipient, frame)) {
+                message.markDelivered();
+            } else {
+                offline.add(message);
             }
-        });
+        }
     }
 
-    public void sendPrivateMessage(String sender, String recipient, String message) {
-        ClientHandler handler = clients.get(recipient);
-        if (handler != null) {
-            handler.sendMessage(sender + " (privado): " + message);
+    boolean isConnected(String username) {
+        return clients.contains(username);
+    }
+
+    /**
+     * Tras el login, los privados recibidos sin conexión en un solo frame:
+     * PENDIENTES:registros "id|remitente|línea" separados por RS. Va por el
+     * hilo del shard del usuario, antes de lo que se le reparta después.
+     */
+    void deliverPending(String username, ClientSession session) {
+        List<ChatMessage> pending = MessageManager.getUnreadMessages(username, offline.take(username));
+        if (pending.isEmpty()) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder("PENDIENTES:");
+        for (ChatMessage m : pending) {
+            if (sb.length() > "PENDIENTES:".length()) {
+                sb.append(ProtocolHandler.RECORD_SEPARATOR);
+            }
+            sb.append(m.getId()).append('|').append(m.getSender()).append('|')
+                    .append(MessageManager.formatForUser(m, username));
         }
+        clients.send(username, session, Frame.of(sb.toString()));
+        Metrics.OFFLINE_DELIVERED.add(pending.size());
     }
 
-    private void broadcastUserList() {
-        String userList = "USERLIST:" + String.join(",", connectedUsers);
-        clients.forEach((username, handler) -> handler.sendMessage(userList));
+    /**
+     * Usuarios conectados ahora mismo (sin consultar la base de datos)
+     */
+    public List<String> getConnectedUsers() {
+        return presence.snapshot();
     }
 
-    public java.util.List<String> getAllRegisteredUsers() {
-        return server.DatabaseConfig.getAllUsers();
+    SessionRegistry getRegistry() {
+        return clients;
     }
 
     public static void main(String[] args) {
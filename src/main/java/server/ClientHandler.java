@@ -4,199 +4,197 @@ import java.io.*;
 import java.net.Socket;
 import javax.net.ssl.SSLSocket;
 import java.util.concurrent.atomic.AtomicBoolean;
-import server.UserManager;
-import server.MessageManager;
-import server.DatabaseConfig;
 
-public class ClientHandler implements Runnable {
+public class ClientHandler implements Runnable, ClientSession {
     private final Socket socket;
-    private final PrintWriter out;
-    private final BufferedReader in;
-    private String username;
+    private final OutputStream out;
+    private final BufferedInputStream rawIn;
+    private InboundReader in;
+    // Protocolo negociado al conectar: texto (por defecto) o binario
+    private volatile boolean binary;
     private final AtomicBoolean isRunning;
-    private final ChatServer server;
+    private final ProtocolHandler protocol;
     private final boolean isSecure;
+    // Los envíos se encolan y un hilo propio los escribe, así un cliente lento no frena a los demás
+    private final OutboundQueue outbound;
 
     public ClientHandler(Socket socket, ChatServer server) throws IOException {
         this.socket = socket;
-        this.server = server;
         this.isSecure = socket instanceof SSLSocket;
-        this.out = new PrintWriter(socket.getOutputStream(), true);
-        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        this.out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+        this.rawIn = new BufferedInputStream(socket.getInputStream());
         this.isRunning = new AtomicBoolean(true);
+        this.protocol = new ProtocolHandler(server, this, isSecure);
+        this.outbound = OutboundQueue.fromConfig();
     }
 
     @Override
     public void run() {
+        // El escritor se arranca aquí y no en el constructor: si el pool rechaza la tarea no queda un hilo colgado
+        VirtualThreads.newThread("client-writer-" + socket.getInetAddress().getHostAddress(), this::writeLoop).start();
         try {
             handleClient();
         } catch (IOException e) {
-            Logger.error("Error en la conexión con el cliente", e);
+            if (isRunning.get()) {
+                Logger.error("Error en la conexión con el cliente", e);
+            }
         } finally {
             disconnect();
         }
     }
 
     private void handleClient() throws IOException {
-        // Esperar login o registro
-        String initialMessage = in.readLine();
-        
-        // Permitir registro antes del login
-        if (initialMessage != null && initialMessage.startsWith("REGISTER:")) {
-            String registerData = initialMessage.substring(9);
-            handleRegister(registerData);
+        if (!protocol.isAdmitted()) {
+            Logger.log(Logger.Level.WARNING, "Conexión rechazada por el límite de conexiones: " + getClientAddress());
+            // Con TLS no se gasta un handshake en avisar: se cierra sin más
+            if (!isSecure) {
+                sendMessage(ConnectionLimits.FULL_MESSAGE);
+            }
             return;
         }
-        
-        // Continuar con el proceso de login
-        if (initialMessage == null || !initialMessage.startsWith("LOGIN:")) {
-            sendMessage("ERROR: Formato de login inválido");
-            return;
+        // El handshake TLS es costoso en CPU: se limita junto con los logins
+        if (isSecure) {
+            if (!LoginGate.enter()) {
+                Logger.log("Handshake rechazado por exceso de carga: " + getClientAddress());
+                return;
+            }
+            try {
+                ((SSLSocket) socket).startHandshake();
+            } finally {
+                LoginGate.exit();
+            }
         }
 
-        // Obtener username y password del mensaje de login (formato LOGIN:username:password)
-        String[] loginParts = initialMessage.substring(6).split(":", 2);
-        if (loginParts.length != 2) {
-            sendMessage("ERROR: Formato de login inválido (debe incluir usuario y contraseña)");
-            return;
-        }
-        
-        Logger.log("Procesando mensaje: " + loginParts[0]);
-
-        username = loginParts[0];
-        String password = loginParts[1];
-        
-        // Verificar credenciales usando UserManager
-        if (!UserManager.authenticateUser(username, password)) {
-            sendMessage("ERROR: Usuario o contraseña incorrectos");
-            return;
-        }
-        
-        if (!server.addClient(username, this)) {
-            sendMessage("ERROR: Usuario ya conectado");
+        negotiateProtocol();
+
+        // Esperar login o registro
+        if (!readCommand()) {
+            sendMessage("ERROR: Formato de login inválido");
             return;
         }
 
-        sendMessage("OK: Conectado como " + username);
-        Logger.log("Cliente conectado: " + username + (isSecure ? " (conexión segura)" : ""));
+        // Manejar mensajes hasta que el protocolo pida cerrar
+        do {
+            if (!protocol.handleCommand(in.opcode(), in.buffer(), in.start(), in.length())) {
+                return;
+            }
+        } while (isRunning.get() && readCommand());
+    }
 
-        // Enviar historial de mensajes al usuario tras login
-        java.util.List<String> historial = MessageManager.getMessageHistory(username);
-        StringBuilder sb = new StringBuilder();
-        for (String msg : historial) {
-            sb.append(msg).append("\n");
+    // El cliente binario empieza con MAGIC y su versión; cualquier otra cosa es texto
+    private void negotiateProtocol() throws IOException {
+        rawIn.mark(1);
+        if (rawIn.read() == BinaryProtocol.MAGIC) {
+            int version = rawIn.read();
+            if (version < 0) {
+                throw new EOFException("Conexión cerrada durante la negociación");
+            }
+            binary = true;
+            sendFrame(Frame.binaryHandshake(Math.min(version, BinaryProtocol.VERSION)));
+        } else {
+            rawIn.reset();
         }
-        sendMessage("HISTORIAL:" + sb.toString());
+        in = new InboundReader(rawIn, ServerConfig.MAX_LINE_BYTES);
+    }
 
-        // Manejar mensajes
-        String message;
-        while (isRunning.get() && (message = in.readLine()) != null) {
-            handleMessage(message);
-        }
+    private boolean readCommand() throws IOException {
+        return binary ? in.readFrame() : in.readLine();
     }
 
-    private void handleMessage(String message) {
+    // Hilo escritor: junta en el buffer todo lo encolado y lo envía con un solo flush
+    private void writeLoop() {
         try {
-            if (message.startsWith("REGISTER:")) {
-                handleRegister(message.substring(9));
-            } else if (message.startsWith("MESSAGE:")) {
-                handleGeneralMessage(message.substring(8));
-            } else if (message.startsWith("PRIVATE:")) {
-                handlePrivateMessage(message.substring(8));
-            } else if (message.equals("GET_USERS")) {
-                handleGetUsers();
-            } else if (message.equals("LOGOUT")) {
-                disconnect();
-            } else if (message.startsWith("GET_PRIVATE_HISTORY:")) {
-                String otherUser = message.substring("GET_PRIVATE_HISTORY:".length());
-                java.util.List<String> historial = MessageManager.getPrivateHistory(username, otherUser);
-                StringBuilder sb = new StringBuilder();
-                for (String msg : historial) {
-                    sb.append(msg).append("\n");
+            Frame frame;
+            while ((frame = outbound.take()) != null) {
+                frame.writeTo(out, binary);
+                while ((frame = outbound.poll()) != null) {
+                    frame.writeTo(out, binary);
                 }
-                sendMessage("HISTORIAL_PRIVADO:" + sb.toString());
-            } else {
-                sendMessage("ERROR: Comando no reconocido");
+                out.flush();
             }
-        } catch (Exception e) {
-            Logger.error("Error procesando mensaje", e);
-            sendMessage("ERROR: Error procesando mensaje");
+        } catch (IOException e) {
+            // El cliente ha cerrado o la red ha fallado: se desconecta abajo
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // Cola cerrada y vacía o error de escritura: el lector verá el socket cerrado
+            disconnect(true);
+            closeSocket();
         }
     }
 
-    private void handleRegister(String data) {
-        String[] parts = data.split(":", 2);
-        if (parts.length != 2) {
-            sendMessage("ERROR: Formato de registro inválido");
-            return;
-        }
-        String newUser = parts[0];
-        String newPass = parts[1];
-        boolean ok = UserManager.registerUser(newUser, newPass);
-        if (ok) {
-            sendMessage("OK: Usuario registrado correctamente");
-        } else {
-            sendMessage("ERROR: Usuario ya existe o error en el registro");
+    @Override
+    public void sendFrame(Frame frame) {
+        if (!outbound.offer(frame)) {
+            Logger.log(Logger.Level.WARNING, "Cliente lento desconectado: " + getUsername()
+                    + " (" + getClientAddress() + ") " + outbound.getStats());
+            disconnect(true);
         }
     }
 
-    private void handleGeneralMessage(String message) {
-        // Guardar el mensaje original (sin cifrar) en la base de datos
-        MessageManager.saveMessage(username, null, message);
-        
-        // Enviar el mensaje a todos los clientes
-        server.broadcast(username + ": " + message, username);
+    @Override
+    public void disconnect() {
+        disconnect(false);
     }
 
-    private void handlePrivateMessage(String message) {
-        String[] parts = message.split(":", 2);
-        if (parts.length != 2) {
-            sendMessage("ERROR: Formato de mensaje privado inválido");
-            return;
+    /**
+     * Cierra una conexión que no llegó a atenderse (el pool rechazó la tarea):
+     * libera su plaza en ConnectionLimits y cierra el socket
+     */
+    void abort() {
+        disconnect(true);
+    }
+
+    /**
+     * Cierra la conexión. Si immediate es false se envían antes los mensajes
+     * pendientes (p.ej. ERROR:); si es true se descartan y se cierra ya.
+     */
+    private void disconnect(boolean immediate) {
+        if (isRunning.compareAndSet(true, false)) {
+            protocol.connectionClosed();
+            outbound.close();
+            if (immediate) {
+                outbound.clear();
+                closeSocket();
+            }
         }
+    }
 
-        String recipient = parts[0];
-        String content = parts[1];
-        
-        // Guardar el mensaje sin cifrar en la base de datos
-        MessageManager.saveMessage(username, recipient, content);
-        
-        // Enviar el mensaje al destinatario
-        server.sendPrivateMessage(username, recipient, content);
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Logger.error("Error cerrando conexión", e);
+        }
     }
 
-    private void handleGetUsers() {
-        // Obtener todos los usuarios menos el actual y admin
-        java.util.List<String> users = server.getAllRegisteredUsers();
-        users.remove(username);
-        users.remove("admin");
-        sendMessage("USERLIST:" + String.join(",", users));
+    @Override
+    public int getQueueDepth() {
+        return outbound.size();
     }
 
-    public void sendMessage(String message) {
-        out.println(message);
+    @Override
+    public String getQueueStats() {
+        return outbound.getStats();
     }
 
-    public void disconnect() {
-        if (isRunning.compareAndSet(true, false)) {
-            try {
-                if (username != null) {
-                    server.removeClient(username);
-                    Logger.log("Cliente desconectado: " + username);
-                }
-                socket.close();
-            } catch (IOException e) {
-                Logger.error("Error cerrando conexión", e);
-            }
-        }
+    @Override
+    public boolean takePresenceResync() {
+        return outbound.takePresenceLost();
     }
 
+    @Override
     public String getUsername() {
-        return username;
+        return protocol.getUsername();
     }
 
+    @Override
     public String getClientAddress() {
-        return socket.getInetAddress().getHostAddress() + (isSecure ? " (SSL)" : "");
+        return getRemoteIp() + (isSecure ? " (SSL)" : "") + (binary ? " (binario)" : "");
     }
-}
 
+    @Override
+    public String getRemoteIp() {
+        return socket.getInetAddress().getHostAddress();
+    }
+}
@@ -0,0 +1,47 @@
+package server;
+
+/**
+ * Conexión de un cliente ya aceptada, independiente del modelo de E/S
+ * (hilo bloqueante o bucle NIO).
+ */
+public interface ClientSession {
+
+    String getUsername();
+
+    String getClientAddress();
+
+    /**
+     * IP del cliente sin adornos (InetAddress.getHostAddress()), para los límites por IP
+     */
+    String getRemoteIp();
+
+    /**
+     * Envía una línea del protocolo al cliente
+     */
+    default void sendMessage(String message) {
+        sendFrame(Frame.of(message));
+    }
+
+    /**
+     * Envía una línea ya codificada; el mismo Frame se puede enviar a varios clientes
+     */
+    void sendFrame(Frame frame);
+
+    /**
+     * Mensajes encolados pendientes de enviar
+     */
+    int getQueueDepth();
+
+    /**
+     * Resumen de la cola de salida (profundidad, máximo, descartados)
+     */
+    String getQueueStats();
+
+    /**
+     * true si la cola de salida descartó algún aviso de presencia desde la
+     * última llamada: el cliente necesita otra vez la lista completa
+     */
+    boolean takePresenceResync();
+
+    void disconnect();
+}
@@ -0,0 +1,104 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Comando del cliente ya decodificado. No copia nada: guarda el opcode y la
+ * posición de cada campo dentro de los bytes recibidos. Cada conexión
+ * reutiliza el mismo objeto, así que solo es válido hasta el siguiente
+ * comando; los campos se convierten a String únicamente cuando hace falta.
+ */
+final class Command {
+    // Línea o frame que no corresponde a ningún comando del cliente
+    static final int UNKNOWN = -1;
+    static final int MAX_FIELDS = 3;
+
+    private int opcode = UNKNOWN;
+    private byte[] buf;
+    private int fieldCount;
+    private final int[] starts = new int[MAX_FIELDS];
+    private final int[] ends = new int[MAX_FIELDS];
+
+    void reset(int opcode, byte[] buf) {
+        this.opcode = opcode;
+        this.buf = buf;
+        this.fieldCount = 0;
+    }
+
+    void addField(int start, int end) {
+        starts[fieldCount] = start;
+        ends[fieldCount] = end;
+        fieldCount++;
+    }
+
+    int opcode() {
+        return opcode;
+    }
+
+    int fieldCount() {
+        return fieldCount;
+    }
+
+    int fieldStart(int i) {
+        return starts[i];
+    }
+
+    int fieldLength(int i) {
+        return ends[i] - starts[i];
+    }
+
+    byte[] buffer() {
+        return buf;
+    }
+
+    /**
+     * Copia del campo como String (UTF-8)
+     */
+    String field(int i) {
+        return new String(buf, starts[i], ends[i] - starts[i], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Campo numérico leído directamente de los bytes, con las mismas reglas que Long.parseLong
+     */
+    long longField(int i) {
+        int pos = starts[i];
+        int end = ends[i];
+        boolean negative = false;
+        if (pos < end && (buf[pos] == '-' || buf[pos] == '+')) {
+            negative = buf[pos] == '-';
+            pos++;
+        }
+        if (pos == end) {
+            throw new NumberFormatException("Número vacío");
+        }
+        // Se acumula en negativo para admitir Long.MIN_VALUE
+        long value = 0;
+        for (; pos < end; pos++) {
+            int digit = buf[pos] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Carácter no numérico en el campo " + i);
+            }
+            try {
+                value = Math.subtractExact(Math.multiplyExact(value, 10), digit);
+            } catch (ArithmeticException e) {
+                throw new NumberFormatException("Número fuera de rango en el campo " + i);
+            }
+        }
+        if (negative) {
+            return value;
+        }
+        if (value == Long.MIN_VALUE) {
+            throw new NumberFormatException("Número fuera de rango en el campo " + i);
+        }
+        return -value;
+    }
+
+    int intField(int i) {
+        long value = longField(i);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new NumberFormatException("Número fuera de rango en el campo " + i);
+        }
+        return (int) value;
+    }
+}
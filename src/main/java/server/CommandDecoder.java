@@ -0,0 +1,166 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static server.BinaryProtocol.*;
+
+/**
+ * Decodifica los comandos del cliente directamente sobre el buffer de
+ * lectura, sin substring ni split. Una línea de texto se identifica por su
+ * prefijo comparando bytes (solo con los comandos que empiezan por la misma
+ * letra) y un frame binario trae ya el opcode; a partir de ahí ambos se
+ * trocean igual, según la tabla de campos de cada opcode.
+ */
+final class CommandDecoder {
+
+    // Cómo se separan los campos del cuerpo de cada comando
+    private static final int NO_BODY = 0;       // Sin cuerpo (GET_USERS)
+    private static final int IGNORED_BODY = 1;  // Vacío o ":loquesea" (LOGOUT)
+    private static final int WHOLE = 2;         // Un campo: todo el cuerpo
+    private static final int FIRST_COLON = 3;   // a:b, cortando en el primer ':'
+    private static final int LAST_COLON = 4;    // a:b, cortando en el último ':' (a puede faltar)
+    private static final int LAST_TWO = 5;      // a:b:c, cortando en los dos últimos ':'
+
+    private static final int[] LAYOUTS = new int[OP_ROOM_MESSAGE + 1];
+    private static final byte[][] PREFIX_BYTES = new byte[LAYOUTS.length][];
+    // Opcodes candidatos según el primer byte de la línea
+    private static final int[][] BY_FIRST_BYTE = new int[128][];
+
+    static {
+        Arrays.fill(LAYOUTS, -1);
+        LAYOUTS[OP_LOGIN] = FIRST_COLON;
+        LAYOUTS[OP_REGISTER] = FIRST_COLON;
+        LAYOUTS[OP_MESSAGE] = WHOLE;
+        LAYOUTS[OP_PRIVATE] = FIRST_COLON;
+        LAYOUTS[OP_GET_USERS] = NO_BODY;
+        LAYOUTS[OP_LOGOUT] = IGNORED_BODY;
+        LAYOUTS[OP_GET_PRIVATE_HISTORY] = WHOLE;
+        LAYOUTS[OP_GET_HISTORY_PAGE] = LAST_TWO;
+        LAYOUTS[OP_GET_HISTORY_SINCE] = LAST_COLON;
+        LAYOUTS[OP_JOIN_ROOM] = WHOLE;
+        LAYOUTS[OP_LEAVE_ROOM] = WHOLE;
+        LAYOUTS[OP_ROOM_MESSAGE] = FIRST_COLON;
+
+        for (int op = 1; op < LAYOUTS.length; op++) {
+            byte[] prefix = prefixOf(op).getBytes(StandardCharsets.US_ASCII);
+            PREFIX_BYTES[op] = prefix;
+            int[] current = BY_FIRST_BYTE[prefix[0]];
+            int[] extended = current == null ? new int[1] : Arrays.copyOf(current, current.length + 1);
+            extended[extended.length - 1] = op;
+            BY_FIRST_BYTE[prefix[0]] = extended;
+        }
+    }
+
+    private CommandDecoder() {
+    }
+
+    /**
+     * Decodifica una línea de texto (sin el salto de línea final)
+     */
+    static void decodeLine(byte[] buf, int off, int len, Command out) {
+        int first = len > 0 ? buf[off] : -1;
+        int[] candidates = first >= 0 ? BY_FIRST_BYTE[first] : null;
+        if (candidates != null) {
+            for (int op : candidates) {
+                byte[] prefix = PREFIX_BYTES[op];
+                if (startsWith(buf, off, len, prefix)) {
+                    decodeBody(op, buf, off + prefix.length, off + len, out);
+                    return;
+                }
+            }
+        }
+        out.reset(Command.UNKNOWN, buf);
+    }
+
+    /**
+     * Decodifica el cuerpo de un frame binario. Con {@link BinaryProtocol#OP_RAW}
+     * el cuerpo es una línea de texto completa.
+     */
+    static void decodeFrame(int opcode, byte[] buf, int off, int len, Command out) {
+        if (opcode == OP_RAW) {
+            decodeLine(buf, off, len, out);
+        } else if (opcode > 0 && opcode < LAYOUTS.length) {
+            decodeBody(opcode, buf, off, off + len, out);
+        } else {
+            out.reset(Command.UNKNOWN, buf);
+        }
+    }
+
+    private static void decodeBody(int op, byte[] buf, int start, int end, Command out) {
+        out.reset(op, buf);
+        switch (LAYOUTS[op]) {
+            case NO_BODY:
+                if (start != end) {
+                    out.reset(Command.UNKNOWN, buf);
+                }
+                break;
+            case IGNORED_BODY:
+                if (start != end && buf[start] != ':') {
+                    out.reset(Command.UNKNOWN, buf);
+                }
+                break;
+            case WHOLE:
+                out.addField(start, end);
+                break;
+            case FIRST_COLON: {
+                int sep = indexOf(buf, start, end, (byte) ':');
+                if (sep < 0) {
+                    out.addField(start, end);
+                } else {
+                    out.addField(start, sep);
+                    out.addField(sep + 1, end);
+                }
+                break;
+            }
+            case LAST_COLON: {
+                int sep = lastIndexOf(buf, start, end, (byte) ':');
+                out.addField(start, sep < 0 ? start : sep);
+                out.addField(sep < 0 ? start : sep + 1, end);
+                break;
+            }
+            case LAST_TWO: {
+                int limitSep = lastIndexOf(buf, start, end, (byte) ':');
+                int tokenSep = limitSep > start ? lastIndexOf(buf, start, limitSep, (byte) ':') : -1;
+                if (tokenSep >= 0) {
+                    out.addField(start, tokenSep);
+                    out.addField(tokenSep + 1, limitSep);
+                    out.addField(limitSep + 1, end);
+                }
+                break;
+            }
+            default:
+                out.reset(Command.UNKNOWN, buf);
+        }
+    }
+
+    private static boolean startsWith(byte[] buf, int off, int len, byte[] prefix) {
+        if (len < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buf[off + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] buf, int start, int end, byte b) {
+        for (int i = start; i < end; i++) {
+            if (buf[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(byte[] buf, int start, int end, byte b) {
+        for (int i = end - 1; i >= start; i--) {
+            if (buf[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
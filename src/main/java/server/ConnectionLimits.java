@@ -0,0 +1,81 @@
+package server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Máximo de conexiones abiertas y de conexiones que aún no han hecho login.
+ * Cada conexión ocupa una plaza desde que se acepta hasta que se cierra; las
+ * que no han hecho login ocupan además una plaza previa al login, así
+ * muchas conexiones que no llegan a autenticarse no dejan sin sitio a los
+ * usuarios. Además se limitan las conexiones abiertas desde una misma IP,
+ * para que un solo cliente no ocupe todas las plazas.
+ */
+final class ConnectionLimits {
+    static final String FULL_MESSAGE = "ERROR: Servidor lleno, inténtalo más tarde";
+
+    private static final AtomicInteger open = new AtomicInteger();
+    private static final AtomicInteger preAuth = new AtomicInteger();
+    // Conexiones abiertas por IP; la entrada se quita al cerrar la última
+    private static final ConcurrentHashMap<String, Integer> perIp = new ConcurrentHashMap<>();
+    private static final Metrics.Counter REJECTED = Metrics.counter("chat_connections_rejected_total",
+            "Conexiones rechazadas por el límite de conexiones", null, null);
+
+    static {
+        Metrics.gauge("chat_connections_pre_auth", "Conexiones abiertas sin login", null, null, preAuth::get);
+    }
+
+    private ConnectionLimits() {
+    }
+
+    /**
+     * Ocupa una plaza para una conexión nueva; false si no hay sitio
+     */
+    static boolean tryOpen(String ip) {
+        if (open.incrementAndGet() > ServerConfig.MAX_CONNECTIONS) {
+            open.decrementAndGet();
+            REJECTED.inc();
+            return false;
+        }
+        if (preAuth.incrementAndGet() > ServerConfig.MAX_PRE_AUTH_CONNECTIONS) {
+            preAuth.decrementAndGet();
+            open.decrementAndGet();
+            REJECTED.inc();
+            return false;
+        }
+        boolean[] fits = {true};
+        perIp.compute(ip, (key, count) -> {
+            int current = count == null ? 0 : count;
+            if (ServerConfig.MAX_CONNECTIONS_PER_IP > 0 && current >= ServerConfig.MAX_CONNECTIONS_PER_IP) {
+                fits[0] = false;
+                return count;
+            }
+            return current + 1;
+        });
+        if (!fits[0]) {
+            preAuth.decrementAndGet();
+            open.decrementAndGet();
+            REJECTED.inc();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Deja la plaza previa al login (al hacer login o al cerrar sin haberlo hecho)
+     */
+    static void leavePreAuth() {
+        preAuth.decrementAndGet();
+    }
+
+    static void closed(String ip) {
+        open.decrementAndGet();
+        perIp.computeIfPresent(ip, (key, count) -> count > 1 ? count - 1 : null);
+    }
+
+    static String getStats() {
+        return "Conexiones: abiertas=" + open.get() + "/" + ServerConfig.MAX_CONNECTIONS
+                + " sin login=" + preAuth.get() + "/" + ServerConfig.MAX_PRE_AUTH_CONNECTIONS
+                + " IPs=" + perIp.size() + " (máx. " + ServerConfig.MAX_CONNECTIONS_PER_IP + " por IP)";
+    }
+}
@@ -0,0 +1,322 @@
+package server;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool acotado de conexiones JDBC.
+ * Las conexiones que se entregan son envoltorios: al llamar a close() vuelven
+ * al pool en lugar de cerrarse, así el código existente con try-with-resources
+ * no necesita cambios.
+ */
+class ConnectionPool {
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int minIdle;
+    private final int maxSize;
+    private final long maxLifetimeMs;
+    private final long borrowTimeoutMs;
+    private final long validateAfterMs;
+
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final Semaphore permits;
+    private final AtomicInteger total = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger waiters = new AtomicInteger();
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong borrowTimeouts = new AtomicLong();
+    private final AtomicLong borrowNanosTotal = new AtomicLong();
+    private final AtomicLong borrowNanosMax = new AtomicLong();
+    private final ScheduledExecutorService maintenance;
+
+    ConnectionPool(String url, String user, String password, int minIdle, int maxSize,
+                   long maxLifetimeMs, long borrowTimeoutMs, long validateAfterMs) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.minIdle = Math.min(minIdle, maxSize);
+        this.maxSize = maxSize;
+        this.maxLifetimeMs = maxLifetimeMs;
+        this.borrowTimeoutMs = borrowTimeoutMs;
+        this.validateAfterMs = validateAfterMs;
+        this.permits = new Semaphore(maxSize, true);
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "db-pool-maintenance");
+            t.setDaemon(true);
+            return t;
+        });
+        maintenance.scheduleWithFixedDelay(this::maintain, 0, 5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Obtiene una conexión del pool, esperando como máximo borrowTimeoutMs
+     */
+    Connection getConnection() throws SQLException {
+        long start = System.nanoTime();
+        waiters.incrementAndGet();
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(borrowTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrumpido esperando una conexión del pool", e);
+        } finally {
+            waiters.decrementAndGet();
+        }
+        if (!acquired) {
+            borrowTimeouts.incrementAndGet();
+            throw new SQLException("Tiempo de espera agotado: no hay conexiones libres en el pool");
+        }
+
+        try {
+            PooledConnection pooled = takeUsable();
+            active.incrementAndGet();
+            recordBorrow(System.nanoTime() - start);
+            return pooled.newHandle();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    // Reutiliza la conexión libre más reciente o abre una nueva
+    private PooledConnection takeUsable() throws SQLException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(borrowTimeoutMs);
+        PooledConnection pooled = idle.pollFirst();
+        while (true) {
+            if (pooled == null) {
+                if (reserveSlot()) {
+                    return openPhysical();
+                }
+                // Con el permiso ya tomado, si están todas abiertas alguna está libre o la está
+                // abriendo el mantenimiento: se espera a que llegue a las libres
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    borrowTimeouts.incrementAndGet();
+                    throw new SQLException("Tiempo de espera agotado: no hay conexiones libres en el pool");
+                }
+                try {
+                    pooled = idle.pollFirst(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(10)), TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Interrumpido esperando una conexión del pool", e);
+                }
+                continue;
+            }
+            if (pooled.isExpired()) {
+                closePhysical(pooled);
+                pooled = idle.pollFirst();
+                continue;
+            }
+            // Solo se valida si lleva un rato parada, para no añadir un viaje a la BD en cada uso
+            if (System.currentTimeMillis() - pooled.lastReturned > validateAfterMs && !pooled.isValid()) {
+                Logger.log(Logger.Level.WARNING, "Conexión del pool inválida, se descarta");
+                closePhysical(pooled);
+                pooled = idle.pollFirst();
+                continue;
+            }
+            return pooled;
+        }
+    }
+
+    // Ocupa una plaza de total antes de abrir, así ni el mantenimiento ni los préstamos pasan de maxSize
+    private boolean reserveSlot() {
+        int current;
+        do {
+            current = total.get();
+            if (current >= maxSize) {
+                return false;
+            }
+        } while (!total.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    // Solo con una plaza ya reservada con reserveSlot(); si falla la devuelve
+    private PooledConnection openPhysical() throws SQLException {
+        try {
+            return new PooledConnection(DriverManager.getConnection(url, user, password));
+        } catch (SQLException | RuntimeException e) {
+            total.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private void closePhysical(PooledConnection pooled) {
+        total.decrementAndGet();
+        try {
+            pooled.raw.close();
+        } catch (SQLException e) {
+            Logger.error("Error cerrando conexión del pool", e);
+        }
+    }
+
+    private void release(PooledConnection pooled) {
+        active.decrementAndGet();
+        try {
+            if (pooled.isExpired() || pooled.raw.isClosed()) {
+                closePhysical(pooled);
+                return;
+            }
+            if (!pooled.raw.getAutoCommit()) {
+                pooled.raw.rollback();
+                pooled.raw.setAutoCommit(true);
+            }
+            pooled.lastReturned = System.currentTimeMillis();
+            idle.offerFirst(pooled);
+        } catch (SQLException e) {
+            closePhysical(pooled);
+        } finally {
+            permits.release();
+        }
+    }
+
+    // Retira conexiones caducadas y mantiene el mínimo de conexiones calientes
+    private void maintain() {
+        try {
+            for (PooledConnection pooled : idle) {
+                if (pooled.isExpired() && idle.remove(pooled)) {
+                    closePhysical(pooled);
+                }
+            }
+            while (idle.size() < minIdle && reserveSlot()) {
+                idle.offerLast(openPhysical());
+            }
+        } catch (SQLException e) {
+            Logger.log(Logger.Level.WARNING, "No se pudo mantener el mínimo de conexiones del pool: " + e.getMessage());
+        } catch (RuntimeException e) {
+            Logger.error("Error inesperado en el mantenimiento del pool", e);
+        }
+    }
+
+    void shutdown() {
+        maintenance.shutdownNow();
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            closePhysical(pooled);
+        }
+    }
+
+    private void recordBorrow(long nanos) {
+        borrows.incrementAndGet();
+        borrowNanosTotal.addAndGet(nanos);
+        borrowNanosMax.accumulateAndGet(nanos, Math::max);
+    }
+
+    int getActive() {
+        return active.get();
+    }
+
+    int getIdle() {
+        return idle.size();
+    }
+
+    int getWaiters() {
+        return waiters.get();
+    }
+
+    long getBorrowTimeouts() {
+        return borrowTimeouts.get();
+    }
+
+    double getAverageBorrowMillis() {
+        long count = borrows.get();
+        return count == 0 ? 0 : borrowNanosTotal.get() / (count * 1_000_000.0);
+    }
+
+    double getMaxBorrowMillis() {
+        return borrowNanosMax.get() / 1_000_000.0;
+    }
+
+    /**
+     * Resumen de una línea con las métricas del pool
+     */
+    String getStats() {
+        return String.format("Pool BD: abiertas=%d/%d activas=%d libres=%d esperando=%d préstamos=%d timeouts=%d espera media=%.2fms máx=%.2fms",
+                total.get(), maxSize, getActive(), getIdle(), getWaiters(), borrows.get(), getBorrowTimeouts(),
+                getAverageBorrowMillis(), getMaxBorrowMillis());
+    }
+
+    /**
+     * Conexión física con su fecha de creación y de última devolución
+     */
+    private final class PooledConnection {
+        private final Connection raw;
+        private final long createdAt = System.currentTimeMillis();
+        private volatile long lastReturned = createdAt;
+
+        PooledConnection(Connection raw) {
+            this.raw = raw;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() - createdAt > maxLifetimeMs;
+        }
+
+        boolean isValid() {
+            try {
+                return raw.isValid(2);
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        Connection newHandle() {
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, new Handle(this));
+        }
+    }
+
+    /**
+     * Envoltorio entregado al código: close() devuelve la conexión al pool una sola vez
+     */
+    private final class Handle implements InvocationHandler {
+        private final PooledConnection pooled;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        Handle(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (closed.compareAndSet(false, true)) {
+                        release(pooled);
+                    }
+                    return null;
+                case "isClosed":
+                    return closed.get() || pooled.raw.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled[" + pooled.raw + "]";
+                default:
+                    if (closed.get()) {
+                        throw new SQLException("La conexión ya se ha devuelto al pool");
+                    }
+                    try {
+                        return method.invoke(pooled.raw, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+            }
+        }
+    }
+}
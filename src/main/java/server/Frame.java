@@ -0,0 +1,89 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Línea del protocolo ya codificada en UTF-8 (con el '\n' final).
+ * Se codifica una sola vez y el mismo array se escribe en todas las
+ * conexiones que la reciben, así un broadcast a mil clientes no hace mil
+ * conversiones a bytes. Los bytes no se modifican nunca. La versión del
+ * protocolo binario se genera la primera vez que la pide una conexión
+ * binaria y también se comparte.
+ */
+public final class Frame {
+    private final String text;
+    private final byte[] bytes;
+    private final boolean presence;
+    private final boolean presenceSnapshot;
+    private volatile byte[] binary;
+
+    private Frame(String text, byte[] bytes, byte[] binary) {
+        this.text = text;
+        this.bytes = bytes;
+        this.binary = binary;
+        this.presenceSnapshot = text.startsWith("USERLIST:");
+        this.presence = presenceSnapshot || text.startsWith("PRESENCE:");
+    }
+
+    public static Frame of(String text) {
+        return new Frame(text, (text + "\n").getBytes(StandardCharsets.UTF_8), null);
+    }
+
+    /**
+     * Respuesta del servidor a la negociación del protocolo binario
+     */
+    static Frame binaryHandshake(int version) {
+        byte[] reply = {(byte) BinaryProtocol.MAGIC, (byte) version};
+        return new Frame("", reply, reply);
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public int length() {
+        return bytes.length;
+    }
+
+    // Bytes en el formato de la conexión
+    private byte[] bytes(boolean binaryProtocol) {
+        if (!binaryProtocol) {
+            return bytes;
+        }
+        byte[] b = binary;
+        if (b == null) {
+            // Si dos hilos lo calculan a la vez ambos obtienen lo mismo
+            b = BinaryProtocol.encode(text);
+            binary = b;
+        }
+        return b;
+    }
+
+    /**
+     * Aviso de presencia: lista completa de usuarios o cambios
+     */
+    boolean isPresence() {
+        return presence;
+    }
+
+    /**
+     * Lista completa de usuarios: deja sin efecto los avisos de presencia anteriores
+     */
+    boolean isPresenceSnapshot() {
+        return presenceSnapshot;
+    }
+
+    /**
+     * Vista de solo lectura sobre los bytes compartidos, con su propia posición
+     */
+    ByteBuffer buffer(boolean binaryProtocol) {
+        return ByteBuffer.wrap(bytes(binaryProtocol)).asReadOnlyBuffer();
+    }
+
+    void writeTo(OutputStream out, boolean binaryProtocol) throws IOException {
+        out.write(bytes(binaryProtocol));
+    }
+}
@@ -0,0 +1,108 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Lee líneas de texto o frames binarios de una conexión bloqueante sobre un
+ * buffer propio que se reutiliza. No crea Strings: después de cada lectura
+ * el comando está en {@link #buffer()} entre {@link #start()} y
+ * {@link #start()} + {@link #length()}, y solo es válido hasta la siguiente.
+ */
+class InboundReader {
+    private final InputStream in;
+    private final int maxBytes;
+    private byte[] buf = new byte[1024];
+    private int pos;
+    private int limit;
+
+    private int opcode;
+    private int start;
+    private int length;
+
+    InboundReader(InputStream in, int maxBytes) {
+        this.in = in;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Siguiente línea terminada en '\n' (sin el '\r' final). Devuelve false si
+     * la conexión se ha cerrado.
+     */
+    boolean readLine() throws IOException {
+        int scanned = 0;
+        while (true) {
+            for (int i = pos + scanned; i < limit; i++) {
+                if (buf[i] == '\n') {
+                    int end = i > pos && buf[i - 1] == '\r' ? i - 1 : i;
+                    opcode = BinaryProtocol.OP_RAW;
+                    start = pos;
+                    length = end - pos;
+                    pos = i + 1;
+                    return true;
+                }
+            }
+            scanned = limit - pos;
+            if (scanned > maxBytes) {
+                throw new IOException("Línea demasiado larga");
+            }
+            if (!fill()) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Siguiente frame binario completo. Devuelve false si la conexión se ha cerrado.
+     */
+    boolean readFrame() throws IOException {
+        while (true) {
+            int total = BinaryProtocol.frameLength(buf, pos, limit - pos, maxBytes);
+            if (total > 0) {
+                opcode = buf[pos] & 0xFF;
+                start = BinaryProtocol.bodyOffset(buf, pos);
+                length = pos + total - start;
+                pos += total;
+                return true;
+            }
+            if (!fill()) {
+                return false;
+            }
+        }
+    }
+
+    // Mueve lo pendiente al principio y lee más bytes; false al llegar al final
+    private boolean fill() throws IOException {
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        if (limit == buf.length) {
+            buf = Arrays.copyOf(buf, buf.length * 2);
+        }
+        int read = in.read(buf, limit, buf.length - limit);
+        if (read < 0) {
+            return false;
+        }
+        limit += read;
+        return true;
+    }
+
+    int opcode() {
+        return opcode;
+    }
+
+    byte[] buffer() {
+        return buf;
+    }
+
+    int start() {
+        return start;
+    }
+
+    int length() {
+        return length;
+    }
+}
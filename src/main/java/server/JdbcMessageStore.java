@@ -0,0 +1,302 @@
+package server;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Mensajes en las tablas mensajes, mensajes_generales y mensajes_sala, con
+ * las conexiones del pool de DatabaseConfig.
+ */
+class JdbcMessageStore implements MessageStore {
+
+    // Conversación privada por su clave canónica (el par ordenado de usuarios),
+    // que coincide con el índice idx_mensajes_conversacion. Parámetros: usuario, otro, usuario, otro
+    // El orden del par lo calcula la base de datos para que coincida con la intercalación del índice
+    private static final String PARAM = "CAST(? AS VARCHAR(50))";
+    static final String CONVERSATION_FILTER =
+            "LEAST(sender, recipient) = LEAST(" + PARAM + ", " + PARAM + ") AND " +
+            "GREATEST(sender, recipient) = GREATEST(" + PARAM + ", " + PARAM + ")";
+    static final String CONVERSATION_SELECT =
+            "SELECT id, sender, recipient, message, timestamp FROM mensajes WHERE " + CONVERSATION_FILTER;
+
+    // is_read es BOOLEAN: comparar con FALSE permite usar el índice parcial idx_mensajes_no_leidos.
+    // Se marcan solo hasta el último id leído: los que lleguen entre las dos sentencias siguen pendientes
+    static final String UNREAD_SQL =
+            "SELECT id, sender, recipient, message, timestamp FROM mensajes WHERE recipient = ? AND is_read = FALSE " +
+            "ORDER BY timestamp, id";
+    static final String MARK_READ_SQL =
+            "UPDATE mensajes SET is_read = TRUE WHERE recipient = ? AND is_read = FALSE AND id <= ?";
+    private static final String MARK_READ_BY_ID_SQL = "UPDATE mensajes SET is_read = TRUE WHERE id = ?";
+
+    private static final String INSERT_PRIVATE =
+            "INSERT INTO mensajes (sender, recipient, message, timestamp, is_read) VALUES (?, ?, ?, ?, ?)";
+    private static final String INSERT_GENERAL =
+            "INSERT INTO mensajes_generales (sender, message, timestamp) VALUES (?, ?, ?)";
+    private static final String INSERT_ROOM =
+            "INSERT INTO mensajes_sala (room, sender, message, timestamp) VALUES (?, ?, ?, ?)";
+    // Usa el índice idx_mensajes_sala_ts: solo se leen las filas de la sala
+    static final String ROOM_HISTORY_SQL =
+            "SELECT id, room, sender, message, timestamp FROM mensajes_sala WHERE room = ? " +
+            "ORDER BY timestamp DESC, id DESC LIMIT ?";
+    private static final String[] GENERATED_ID = {"id"};
+
+    // Escribe el lote en una sola transacción
+    @Override
+    public void append(List<ChatMessage> batch) throws StoreException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try (Connection conn = DatabaseConfig.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement privateStmt = conn.prepareStatement(INSERT_PRIVATE, GENERATED_ID);
+                 PreparedStatement generalStmt = conn.prepareStatement(INSERT_GENERAL, GENERATED_ID);
+                 PreparedStatement roomStmt = conn.prepareStatement(INSERT_ROOM, GENERATED_ID)) {
+                List<ChatMessage> privates = new ArrayList<>();
+                List<ChatMessage> generals = new ArrayList<>();
+                List<ChatMessage> rooms = new ArrayList<>();
+                for (ChatMessage m : batch) {
+                    if (m.isRoom()) {
+                        roomStmt.setString(1, m.getRoom());
+                        roomStmt.setString(2, m.getSender());
+                        roomStmt.setString(3, m.getMessage());
+                        roomStmt.setTimestamp(4, m.getTimestamp());
+                        roomStmt.addBatch();
+                        rooms.add(m);
+                    } else if (m.isGeneral()) {
+                        generalStmt.setString(1, m.getSender());
+                        generalStmt.setString(2, m.getMessage());
+                        generalStmt.setTimestamp(3, m.getTimestamp());
+                        generalStmt.addBatch();
+                        generals.add(m);
+                    } else {
+                        privateStmt.setString(1, m.getSender());
+                        privateStmt.setString(2, m.getRecipient());
+                        privateStmt.setString(3, m.getMessage());
+                        privateStmt.setTimestamp(4, m.getTimestamp());
+                        privateStmt.setBoolean(5, m.readForStore());
+                        privateStmt.addBatch();
+                        privates.add(m);
+                    }
+                }
+                if (!privates.isEmpty()) {
+                    privateStmt.executeBatch();
+                    assignIds(privateStmt, privates);
+                }
+                if (!generals.isEmpty()) {
+                    generalStmt.executeBatch();
+                    assignIds(generalStmt, generals);
+                }
+                if (!rooms.isEmpty()) {
+                    roomStmt.executeBatch();
+                    assignIds(roomStmt, rooms);
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                // Los ids asignados ya no existen tras deshacer la transacción
+                for (ChatMessage m : batch) {
+                    m.setId(0);
+                }
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new StoreException("Error guardando lote de " + batch.size() + " mensajes", e, isDataError(e));
+        }
+    }
+
+    // Clases SQLSTATE 22 (dato inválido) y 23 (restricción de integridad), también dentro de un BatchUpdateException
+    private static boolean isDataError(SQLException e) {
+        for (SQLException cur = e; cur != null; cur = cur.getNextException()) {
+            if (isDataState(cur.getSQLState()) || (cur.getCause() instanceof SQLException
+                    && isDataState(((SQLException) cur.getCause()).getSQLState()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isDataState(String state) {
+        return state != null && (state.startsWith("22") || state.startsWith("23"));
+    }
+
+    // Copia a cada mensaje el id generado, en el mismo orden del lote
+    private static void assignIds(PreparedStatement stmt, List<ChatMessage> messages) throws SQLException {
+        try (ResultSet keys = stmt.getGeneratedKeys()) {
+            for (ChatMessage m : messages) {
+                if (!keys.next()) {
+                    return;
+                }
+                m.setId(keys.getLong(1));
+            }
+        }
+    }
+
+    @Override
+    public List<ChatMessage> conversation(String user1, String user2) throws StoreException {
+        List<ChatMessage> conversation = new ArrayList<>();
+        try (Connection conn = DatabaseConfig.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(CONVERSATION_SELECT + " ORDER BY timestamp ASC, id ASC")) {
+            setPair(stmt, 1, user1, user2);
+            readAll(stmt, conversation);
+        } catch (SQLException e) {
+            throw new StoreException("Error obteniendo historial privado", e);
+        }
+        return conversation;
+    }
+
+    @Override
+    public List<ChatMessage> since(String username, String otherUser, long lastId) throws StoreException {
+        List<ChatMessage> messages = new ArrayList<>();
+        boolean general = otherUser == null || otherUser.isEmpty();
+        String sql = general
+                ? "SELECT id, sender, NULL AS recipient, message, timestamp FROM mensajes_generales WHERE id > ? ORDER BY id"
+                : CONVERSATION_SELECT + " AND id > ? ORDER BY id";
+        try (Connection conn = DatabaseConfig.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            int i = general ? 1 : setPair(stmt, 1, username, otherUser);
+            stmt.setLong(i, lastId);
+            readAll(stmt, messages);
+        } catch (SQLException e) {
+            throw new StoreException("Error obteniendo historial incremental", e);
+        }
+        return messages;
+    }
+
+    @Override
+    public List<ChatMessage> page(String username, String otherUser, Timestamp beforeTs, long beforeId, int limit)
+            throws StoreException {
+        boolean general = otherUser == null || otherUser.isEmpty();
+        StringBuilder sql = new StringBuilder(general
+                ? "SELECT id, sender, NULL AS recipient, message, timestamp FROM mensajes_generales WHERE 1 = 1"
+                : CONVERSATION_SELECT);
+        if (beforeTs != null) {
+            sql.append(" AND (timestamp, id) < (?, ?)");
+        }
+        sql.append(" ORDER BY timestamp DESC, id DESC LIMIT ?");
+
+        List<ChatMessage> messages = new ArrayList<>();
+        try (Connection conn = DatabaseConfig.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
+            int i = general ? 1 : setPair(stmt, 1, username, otherUser);
+            if (beforeTs != null) {
+                stmt.setTimestamp(i++, beforeTs);
+                stmt.setLong(i++, beforeId);
+            }
+            stmt.setInt(i, limit);
+            readAll(stmt, messages);
+        } catch (SQLException e) {
+            throw new StoreException("Error obteniendo página de historial", e);
+        }
+        return messages;
+    }
+
+    @Override
+    public List<ChatMessage> roomHistory(String room, int limit) throws StoreException {
+        List<ChatMessage> messages = new ArrayList<>();
+        try (Connection conn = DatabaseConfig.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(ROOM_HISTORY_SQL)) {
+            stmt.setString(1, room);
+            stmt.setInt(2, limit);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    messages.add(new ChatMessage(rs.getLong("id"), rs.getString("sender"), null,
+                            rs.getString("room"), rs.getString("message"), rs.getTimestamp("timestamp")));
+                }
+            }
+        } catch (SQLException e) {
+            throw new StoreException("Error obteniendo historial de la sala " + room, e);
+        }
+        return messages;
+    }
+
+    @Override
+    public List<ChatMessage> takeUnread(String username) throws StoreException {
+        List<ChatMessage> messages = new ArrayList<>();
+        try (Connection conn = DatabaseConfig.getConnection()) {
+            try (PreparedStatement stmt = conn.prepareStatement(UNREAD_SQL)) {
+                stmt.setString(1, username);
+                readAll(stmt, messages);
+            }
+            // Marcar mensajes como leídos, todos con un solo UPDATE
+            if (!messages.isEmpty()) {
+                long maxId = 0;
+                for (ChatMessage m : messages) {
+                    maxId = Math.max(maxId, m.getId());
+                }
+                try (PreparedStatement stmt = conn.prepareStatement(MARK_READ_SQL)) {
+                    stmt.setString(1, username);
+                    stmt.setLong(2, maxId);
+                    stmt.executeUpdate();
+                }
+            }
+        } catch (SQLException e) {
+            throw new StoreException("Error obteniendo mensajes no leídos", e);
+        }
+        return messages;
+    }
+
+    @Override
+    public void markRead(List<ChatMessage> messages) throws StoreException {
+        if (messages.isEmpty()) {
+            return;
+        }
+        try (Connection conn = DatabaseConfig.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(MARK_READ_BY_ID_SQL)) {
+            for (ChatMessage m : messages) {
+                stmt.setLong(1, m.getId());
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        } catch (SQLException e) {
+            throw new StoreException("Error marcando " + messages.size() + " mensajes como leídos", e);
+        }
+    }
+
+    @Override
+    public void clear() throws StoreException {
+        String[] tables = {"mensajes", "mensajes_generales", "mensajes_sala"};
+        for (String table : tables) {
+            try (Connection conn = DatabaseConfig.getConnection();
+                 PreparedStatement stmt = conn.prepareStatement("DELETE FROM " + table)) {
+                stmt.executeUpdate();
+                Logger.log("Historial de mensajes borrado: " + table);
+            } catch (SQLException e) {
+                throw new StoreException("Error borrando historial de mensajes", e);
+            }
+        }
+    }
+
+    @Override
+    public String getStats() {
+        return "Almacén de mensajes: JDBC";
+    }
+
+    @Override
+    public void close() {
+        // El pool lo cierra el servidor con DatabaseConfig.shutdownPool()
+    }
+
+    // Parámetros del filtro de conversación; devuelve el siguiente índice libre
+    private static int setPair(PreparedStatement stmt, int i, String user, String otherUser) throws SQLException {
+        stmt.setString(i++, user);
+        stmt.setString(i++, otherUser);
+        stmt.setString(i++, user);
+        stmt.setString(i++, otherUser);
+        return i;
+    }
+
+    // Lee filas con las columnas id, sender, recipient (NULL en generales), message y timestamp
+    private static void readAll(PreparedStatement stmt, List<ChatMessage> out) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                out.add(new ChatMessage(rs.getLong("id"), rs.getString("sender"), rs.getString("recipient"),
+                        rs.getString("message"), rs.getTimestamp("timestamp")));
+            }
+        }
+    }
+}
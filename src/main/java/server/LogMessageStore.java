@@ -0,0 +1,625 @@
+package server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Almacén de mensajes local, sin base de datos: un log de solo añadir
+ * repartido en segmentos de tamaño fijo proyectados en memoria (mmap).
+ * Guardar un lote es copiar bytes al segmento actual, sin llamadas al sistema.
+ *
+ * Cada registro apunta al registro anterior de su conversación y de cada uno
+ * de sus usuarios, así leer el final de una conversación es seguir punteros
+ * hacia atrás sin pasar por las demás. En memoria solo se guarda, por clave
+ * (las de {@link RecentMessageCache}: general, sala y par de usuarios, más una
+ * por usuario con sus privados para buscar los no leídos), la
+ * posición del último registro y una entrada cada {@value #CHECKPOINT_EVERY}
+ * mensajes con su id (índice disperso), para empezar cerca al buscar por id.
+ *
+ * Formato de un registro:
+ *   int longitud del cuerpo, int crc32 del cuerpo, y el cuerpo:
+ *   long id, long milisegundos, int nanos (el bit alto marca un privado ya
+ *   entregado en vivo), long anterior de la conversación,
+ *   long anterior del remitente, long anterior del destinatario,
+ *   short + remitente, short + destinatario (0 en generales; en salas un byte 0
+ *   seguido del nombre de la sala), int + texto (UTF-8)
+ * Una longitud 0 marca el final. Al arrancar se recorren los segmentos para
+ * reconstruir el índice y se descarta lo que haya tras el último registro
+ * con crc correcto (una escritura a medias).
+ *
+ * El orden del log es el orden de id: las páginas se cortan por id, no por fecha.
+ */
+final class LogMessageStore implements MessageStore {
+    private static final int HEADER = 8;
+    private static final int FIXED_BODY = 8 + 8 + 4 + 8 + 8 + 8 + 2 + 2 + 4;
+    private static final int CHECKPOINT_EVERY = 64;
+    private static final long NONE = -1;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String MARKS_FILE = "read.marks";
+    // Delante del nombre de la sala en el campo destinatario; como en pairKey, se supone que no aparece en un nombre de usuario
+    private static final char ROOM_MARK = '\0';
+    // En el campo nanos, que nunca llega a 2^30
+    private static final int DELIVERED_BIT = 1 << 31;
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final boolean fsync;
+    private final Path marksFile;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Protegido por lock
+    private final List<Segment> segments = new ArrayList<>();
+    private final Map<String, Chain> chains = new HashMap<>();
+    private final Map<String, Long> readMarks = new HashMap<>();
+    // Privados marcados como leídos uno a uno, por encima de la marca de su destinatario
+    private final Map<String, Set<Long>> readIds = new HashMap<>();
+    private long nextId = 1;
+    private long messages;
+
+    // Solo lo usa el hilo que escribe (con el lock de escritura)
+    private ByteBuffer scratch = ByteBuffer.allocate(4096);
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Segmento proyectado en memoria; end es el final de los datos válidos
+     */
+    private static final class Segment {
+        final Path path;
+        final MappedByteBuffer buffer;
+        int end;
+
+        Segment(Path path, MappedByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Índice de una clave: último registro y un punto de entrada cada CHECKPOINT_EVERY mensajes
+     */
+    private static final class Chain {
+        long head = NONE;
+        long count;
+        long[] checkpointIds = new long[4];
+        long[] checkpointPositions = new long[4];
+        int checkpoints;
+
+        void add(long id, long position) {
+            if (count % CHECKPOINT_EVERY == 0) {
+                if (checkpoints == checkpointIds.length) {
+                    checkpointIds = Arrays.copyOf(checkpointIds, checkpoints * 2);
+                    checkpointPositions = Arrays.copyOf(checkpointPositions, checkpoints * 2);
+                }
+                checkpointIds[checkpoints] = id;
+                checkpointPositions[checkpoints] = position;
+                checkpoints++;
+            }
+            head = position;
+            count++;
+        }
+
+        /**
+         * Registro desde el que recorrer hacia atrás para llegar a los ids menores que beforeId:
+         * el primer punto de entrada con id >= beforeId, o el último registro si no hay ninguno
+         */
+        long startBefore(long beforeId) {
+            int i = Arrays.binarySearch(checkpointIds, 0, checkpoints, beforeId);
+            if (i < 0) {
+                i = -i - 1;
+            }
+            return i < checkpoints ? checkpointPositions[i] : head;
+        }
+    }
+
+    /**
+     * Registro leído: el mensaje y sus punteros hacia atrás
+     */
+    private static final class Entry {
+        final ChatMessage message;
+        final long prevConversation;
+        final long prevSender;
+        final long prevRecipient;
+
+        Entry(ChatMessage message, long prevConversation, long prevSender, long prevRecipient) {
+            this.message = message;
+            this.prevConversation = prevConversation;
+            this.prevSender = prevSender;
+            this.prevRecipient = prevRecipient;
+        }
+
+        // Siguiente registro hacia atrás de la cadena de un usuario
+        long prevFor(String username) {
+            return message.getSender().equals(username) ? prevSender : prevRecipient;
+        }
+    }
+
+    LogMessageStore(Path dir, int segmentBytes, boolean fsync) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.fsync = fsync;
+        this.marksFile = dir.resolve(MARKS_FILE);
+        try {
+            Files.createDirectories(dir);
+            recover();
+            loadReadMarks();
+        } catch (IOException e) {
+            Logger.error("No se pudo abrir el almacén de mensajes en " + dir, e);
+            throw new UncheckedIOException(e);
+        }
+        Logger.log("Almacén de mensajes local en " + dir + ": " + messages + " mensajes en "
+                + segments.size() + " segmentos");
+    }
+
+    // ---- Escritura ----
+
+    @Override
+    public void append(List<ChatMessage> batch) throws StoreException {
+        lock.writeLock().lock();
+        try {
+            Segment first = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            for (ChatMessage m : batch) {
+                appendOne(m);
+            }
+            if (fsync) {
+                // El segmento en el que empezó el lote y los que se hayan abierto después
+                for (int i = first == null ? 0 : segments.indexOf(first); i < segments.size(); i++) {
+                    segments.get(i).buffer.force();
+                }
+            }
+        } catch (IOException e) {
+            // Los mensajes ya escritos conservan su id; el resto queda con id 0
+            throw new StoreException("Error escribiendo en el almacén de mensajes", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void appendOne(ChatMessage m) throws IOException {
+        // Los mensajes generales y de sala solo están en la cadena de su conversación
+        boolean shared = m.isGeneral() || m.isRoom();
+        String recipient = m.isRoom() ? ROOM_MARK + m.getRoom() : m.isGeneral() ? "" : m.getRecipient();
+        Chain conversation = chain(conversationKey(m));
+        Chain senderChain = shared ? null : chain(userKey(m.getSender()));
+        Chain recipientChain = shared ? null : chain(userKey(recipient));
+
+        byte[] sender = m.getSender().getBytes(StandardCharsets.UTF_8);
+        byte[] to = recipient.getBytes(StandardCharsets.UTF_8);
+        byte[] text = m.getMessage().getBytes(StandardCharsets.UTF_8);
+        int bodyLength = FIXED_BODY + sender.length + to.length + text.length;
+        long id = nextId;
+
+        if (scratch.capacity() < bodyLength) {
+            scratch = ByteBuffer.allocate(Math.max(bodyLength, scratch.capacity() * 2));
+        }
+        ByteBuffer body = scratch;
+        body.clear();
+        body.putLong(id)
+                .putLong(m.getTimestamp().getTime())
+                .putInt(m.getTimestamp().getNanos() | (!shared && m.readForStore() ? DELIVERED_BIT : 0))
+                .putLong(conversation.head)
+                .putLong(shared ? NONE : senderChain.head)
+                .putLong(shared ? NONE : recipientChain.head)
+                .putShort((short) sender.length).put(sender)
+                .putShort((short) to.length).put(to)
+                .putInt(text.length).put(text);
+        crc.reset();
+        crc.update(body.array(), 0, bodyLength);
+
+        Segment segment = segmentFor(HEADER + bodyLength);
+        int offset = segment.end;
+        // El cuerpo primero y la longitud al final: una escritura a medias no tiene crc válido
+        segment.buffer.put(offset + HEADER, body.array(), 0, bodyLength);
+        segment.buffer.putInt(offset + 4, (int) crc.getValue());
+        segment.buffer.putInt(offset, bodyLength);
+        segment.end = offset + HEADER + bodyLength;
+
+        long position = position(segments.size() - 1, offset);
+        conversation.add(id, position);
+        if (!shared) {
+            senderChain.add(id, position);
+            if (recipientChain != senderChain) {
+                recipientChain.add(id, position);
+            }
+        }
+        nextId++;
+        messages++;
+        m.setId(id);
+    }
+
+    // Segmento con sitio para el registro (y para la marca de final); si no, se abre otro
+    private Segment segmentFor(int recordBytes) throws IOException {
+        Segment current = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (current != null && current.end + recordBytes + 4 <= current.buffer.capacity()) {
+            return current;
+        }
+        Path path = dir.resolve(String.format("%020d%s", nextId, SEGMENT_SUFFIX));
+        Segment segment = new Segment(path, map(path, Math.max(segmentBytes, recordBytes + 4)));
+        segments.add(segment);
+        return segment;
+    }
+
+    private static MappedByteBuffer map(Path path, long size) throws IOException {
+        // La proyección sigue siendo válida después de cerrar el canal
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+        }
+    }
+
+    private static String conversationKey(ChatMessage m) {
+        if (m.isRoom()) {
+            return RecentMessageCache.roomKey(m.getRoom());
+        }
+        return m.isGeneral() ? RecentMessageCache.generalKey()
+                : RecentMessageCache.pairKey(m.getSender(), m.getRecipient());
+    }
+
+    // Cadena de los privados enviados o recibidos por el usuario
+    private static String userKey(String username) {
+        return "U:" + username;
+    }
+
+    private Chain chain(String key) {
+        return chains.computeIfAbsent(key, k -> new Chain());
+    }
+
+    private static long position(int segment, int offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    // ---- Lectura ----
+
+    private Entry read(long position) {
+        MappedByteBuffer buffer = segments.get((int) (position >>> 32)).buffer;
+        int pos = (int) position + HEADER;
+        long id = buffer.getLong(pos);
+        long millis = buffer.getLong(pos + 8);
+        int nanosAndFlag = buffer.getInt(pos + 16);
+        long prevConversation = buffer.getLong(pos + 20);
+        long prevSender = buffer.getLong(pos + 28);
+        long prevRecipient = buffer.getLong(pos + 36);
+        pos += 44;
+        int senderLength = buffer.getShort(pos);
+        String sender = string(buffer, pos + 2, senderLength);
+        pos += 2 + senderLength;
+        int recipientLength = buffer.getShort(pos);
+        String recipient = recipientLength == 0 ? null : string(buffer, pos + 2, recipientLength);
+        String room = null;
+        if (recipient != null && recipient.charAt(0) == ROOM_MARK) {
+            room = recipient.substring(1);
+            recipient = null;
+        }
+        pos += 2 + recipientLength;
+        String text = string(buffer, pos + 4, buffer.getInt(pos));
+
+        Timestamp timestamp = new Timestamp(millis);
+        timestamp.setNanos(nanosAndFlag & ~DELIVERED_BIT);
+        ChatMessage message = new ChatMessage(id, sender, recipient, room, text, timestamp);
+        if ((nanosAndFlag & DELIVERED_BIT) != 0) {
+            message.markDelivered();
+        }
+        return new Entry(message, prevConversation, prevSender, prevRecipient);
+    }
+
+    private static String string(ByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Cabeza de la conversación: chat general con otherUser vacío
+    private Chain conversationChain(String username, String otherUser) {
+        String key = otherUser == null || otherUser.isEmpty()
+                ? RecentMessageCache.generalKey()
+                : RecentMessageCache.pairKey(username, otherUser);
+        return chains.get(key);
+    }
+
+    // Hasta limit mensajes de una conversación desde position hacia atrás
+    private void walkConversation(long position, int limit, List<ChatMessage> out) {
+        while (position != NONE && out.size() < limit) {
+            Entry e = read(position);
+            out.add(e.message);
+            position = e.prevConversation;
+        }
+    }
+
+    @Override
+    public List<ChatMessage> conversation(String user1, String user2) {
+        lock.readLock().lock();
+        try {
+            List<ChatMessage> conversation = new ArrayList<>();
+            Chain chain = chains.get(RecentMessageCache.pairKey(user1, user2));
+            if (chain != null) {
+                walkConversation(chain.head, Integer.MAX_VALUE, conversation);
+                Collections.reverse(conversation);
+            }
+            return conversation;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<ChatMessage> since(String username, String otherUser, long lastId) {
+        lock.readLock().lock();
+        try {
+            List<ChatMessage> result = new ArrayList<>();
+            Chain chain = conversationChain(username, otherUser);
+            long position = chain == null ? NONE : chain.head;
+            while (position != NONE) {
+                Entry e = read(position);
+                if (e.message.getId() <= lastId) {
+                    break;
+                }
+                result.add(e.message);
+                position = e.prevConversation;
+            }
+            Collections.reverse(result);
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<ChatMessage> page(String username, String otherUser, Timestamp beforeTs, long beforeId, int limit) {
+        lock.readLock().lock();
+        try {
+            List<ChatMessage> result = new ArrayList<>();
+            Chain chain = conversationChain(username, otherUser);
+            if (chain == null) {
+                return result;
+            }
+            long position = chain.head;
+            if (beforeTs != null) {
+                // Como mucho CHECKPOINT_EVERY registros hasta pasar por debajo de beforeId
+                position = chain.startBefore(beforeId);
+                while (position != NONE) {
+                    Entry e = read(position);
+                    if (e.message.getId() < beforeId) {
+                        break;
+                    }
+                    position = e.prevConversation;
+                }
+            }
+            walkConversation(position, limit, result);
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<ChatMessage> roomHistory(String room, int limit) {
+        lock.readLock().lock();
+        try {
+            List<ChatMessage> result = new ArrayList<>();
+            Chain chain = chains.get(RecentMessageCache.roomKey(room));
+            if (chain != null) {
+                walkConversation(chain.head, limit, result);
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<ChatMessage> takeUnread(String username) throws StoreException {
+        lock.writeLock().lock();
+        try {
+            List<ChatMessage> unread = new ArrayList<>();
+            Chain chain = chains.get(userKey(username));
+            if (chain == null) {
+                return unread;
+            }
+            long mark = readMarks.getOrDefault(username, 0L);
+            Set<Long> read = readIds.getOrDefault(username, Set.of());
+            long position = chain.head;
+            long newest = 0;
+            while (position != NONE) {
+                Entry e = read(position);
+                if (e.message.getId() <= mark) {
+                    break;
+                }
+                newest = Math.max(newest, e.message.getId());
+                if (username.equals(e.message.getRecipient()) && !e.message.isDelivered()
+                        && !read.contains(e.message.getId())) {
+                    unread.add(e.message);
+                }
+                position = e.prevFor(username);
+            }
+            if (newest > mark) {
+                readMarks.put(username, newest);
+                readIds.remove(username);
+                Files.write(marksFile, (username + "\t" + newest + "\n").getBytes(StandardCharsets.UTF_8),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            Collections.reverse(unread);
+            return unread;
+        } catch (IOException e) {
+            throw new StoreException("Error guardando los mensajes leídos", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void markRead(List<ChatMessage> messages) throws StoreException {
+        lock.writeLock().lock();
+        try {
+            StringBuilder lines = new StringBuilder();
+            for (ChatMessage m : messages) {
+                String recipient = m.getRecipient();
+                if (m.getId() > readMarks.getOrDefault(recipient, 0L)
+                        && readIds.computeIfAbsent(recipient, u -> new HashSet<>()).add(m.getId())) {
+                    lines.append(recipient).append("\t+").append(m.getId()).append('\n');
+                }
+            }
+            if (lines.length() > 0) {
+                Files.write(marksFile, lines.toString().getBytes(StandardCharsets.UTF_8),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+        } catch (IOException e) {
+            throw new StoreException("Error guardando los mensajes leídos", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // ---- Mantenimiento ----
+
+    @Override
+    public void clear() throws StoreException {
+        lock.writeLock().lock();
+        try {
+            for (Segment segment : segments) {
+                Files.deleteIfExists(segment.path);
+            }
+            Files.deleteIfExists(marksFile);
+            segments.clear();
+            chains.clear();
+            readMarks.clear();
+            readIds.clear();
+            messages = 0;
+            // Los ids no se reutilizan: los clientes pueden tener guardado el último que vieron
+            Logger.log("Historial de mensajes borrado: " + dir);
+        } catch (IOException e) {
+            throw new StoreException("Error borrando el almacén de mensajes", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public String getStats() {
+        lock.readLock().lock();
+        try {
+            long bytes = 0;
+            for (Segment segment : segments) {
+                bytes += segment.end;
+            }
+            return "Almacén de mensajes: LOG mensajes=" + messages + " segmentos=" + segments.size()
+                    + " bytes=" + bytes + " claves=" + chains.size() + " siguienteId=" + nextId;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            for (Segment segment : segments) {
+                segment.buffer.force();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Recorre los segmentos en orden, valida cada registro y reconstruye el índice
+    private void recover() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SEGMENT_SUFFIX)) {
+            files.forEach(paths::add);
+        }
+        Collections.sort(paths);
+        for (Path path : paths) {
+            Segment segment = new Segment(path, map(path, 0));
+            segments.add(segment);
+            int index = segments.size() - 1;
+            MappedByteBuffer buffer = segment.buffer;
+            int offset = 0;
+            while (offset + HEADER <= buffer.capacity()) {
+                int length = buffer.getInt(offset);
+                if (length < FIXED_BODY || offset + HEADER + length > buffer.capacity()
+                        || !validCrc(buffer, offset, length)) {
+                    if (length != 0) {
+                        truncate(segment, offset);
+                    }
+                    break;
+                }
+                Entry e = read(position(index, offset));
+                ChatMessage m = e.message;
+                long position = position(index, offset);
+                chain(conversationKey(m)).add(m.getId(), position);
+                if (!m.isGeneral() && !m.isRoom()) {
+                    Chain senderChain = chain(userKey(m.getSender()));
+                    Chain recipientChain = chain(userKey(m.getRecipient()));
+                    senderChain.add(m.getId(), position);
+                    if (recipientChain != senderChain) {
+                        recipientChain.add(m.getId(), position);
+                    }
+                }
+                nextId = Math.max(nextId, m.getId() + 1);
+                messages++;
+                offset += HEADER + length;
+            }
+            segment.end = offset;
+        }
+    }
+
+    private boolean validCrc(ByteBuffer buffer, int offset, int length) {
+        byte[] body = new byte[length];
+        buffer.get(offset + HEADER, body);
+        crc.reset();
+        crc.update(body, 0, length);
+        return (int) crc.getValue() == buffer.getInt(offset + 4);
+    }
+
+    // Borra los restos de una escritura a medias para que no se confundan con registros
+    private static void truncate(Segment segment, int offset) {
+        Logger.log(Logger.Level.WARNING, "Registro incompleto en " + segment.path.getFileName()
+                + " (posición " + offset + "), se descarta el resto del segmento");
+        byte[] zeros = new byte[8192];
+        for (int pos = offset; pos < segment.buffer.capacity(); pos += zeros.length) {
+            segment.buffer.put(pos, zeros, 0, Math.min(zeros.length, segment.buffer.capacity() - pos));
+        }
+        segment.buffer.force();
+    }
+
+    private void loadReadMarks() throws IOException {
+        if (!Files.exists(marksFile)) {
+            return;
+        }
+        // Una línea por cada vez que se marcan como leídos; vale la última de cada usuario.
+        // Las líneas "usuario\t+id" son un mensaje suelto marcado con markRead
+        for (String line : Files.readAllLines(marksFile, StandardCharsets.UTF_8)) {
+            int tab = line.lastIndexOf('\t');
+            if (tab > 0) {
+                String user = line.substring(0, tab);
+                try {
+                    if (line.startsWith("+", tab + 1)) {
+                        readIds.computeIfAbsent(user, u -> new HashSet<>()).add(Long.parseLong(line.substring(tab + 2)));
+                    } else {
+                        readMarks.put(user, Long.parseLong(line.substring(tab + 1)));
+                        readIds.remove(user);
+                    }
+                } catch (NumberFormatException e) {
+                    // Línea a medias del último arranque
+                }
+            }
+        }
+    }
+}
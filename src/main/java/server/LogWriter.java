@@ -0,0 +1,297 @@
+package server;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Escritura del log en segundo plano.
+ * Los hilos que registran solo publican la entrada en un {@link RingBuffer};
+ * un único hilo les pone la fecha, las escribe en el fichero por lotes con
+ * un FileChannel que se mantiene abierto y rota el fichero por tamaño o al
+ * cambiar de día (server.log -> server.log.1 -> server.log.2...).
+ */
+class LogWriter {
+
+    // Qué hacer cuando el buffer está lleno
+    enum OverflowPolicy {
+        DROP,      // Descartar la entrada
+        DROP_LOW,  // Descartar DEBUG e INFO; esperar con IMPORTANT, WARNING y ERROR
+        BLOCK      // Esperar a que haya sitio
+    }
+
+    /**
+     * Línea pendiente de escribir
+     */
+    static final class Entry {
+        final Logger.Level level;
+        final long millis;
+        final String message;
+        final Throwable error;
+        final boolean console;
+
+        Entry(Logger.Level level, long millis, String message, Throwable error, boolean console) {
+            this.level = level;
+            this.millis = millis;
+            this.message = message;
+            this.error = error;
+            this.console = console;
+        }
+    }
+
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+            .withZone(ZoneId.systemDefault());
+    private static final long MAX_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final RingBuffer<Entry> buffer;
+    private final OverflowPolicy policy;
+    private final Path file;
+    private final long maxBytes;
+    private final int maxFiles;
+    private final boolean rotateDaily;
+    private final PrintStream console;
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile boolean sleeping;
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    // Estado del hilo escritor
+    private final ByteBuffer out = ByteBuffer.allocateDirect(64 * 1024);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final StringBuilder line = new StringBuilder(256);
+    private FileChannel channel;
+    private long fileSize;
+    private long nextDayMillis;
+    private long stampSecond = -1;
+    private String stamp;
+
+    LogWriter(Path file, int capacity, OverflowPolicy policy, long maxBytes, int maxFiles, boolean rotateDaily,
+              PrintStream console) {
+        this.buffer = new RingBuffer<>(capacity);
+        this.policy = policy;
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+        this.rotateDaily = rotateDaily;
+        this.console = console;
+        this.thread = new Thread(this::run, "log-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+        // Lo que quede en el buffer se escribe antes de que termine la JVM
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "log-writer-shutdown"));
+    }
+
+    void publish(Entry entry) {
+        if (!buffer.offer(entry)) {
+            boolean wait = policy == OverflowPolicy.BLOCK
+                    || (policy == OverflowPolicy.DROP_LOW && entry.level.getValue() >= Logger.Level.IMPORTANT.getValue());
+            if (!wait || !running || Thread.currentThread() == thread) {
+                dropped.incrementAndGet();
+                return;
+            }
+            do {
+                wake();
+                LockSupport.parkNanos(50_000);
+            } while (!buffer.offer(entry) && running);
+        }
+        if (sleeping) {
+            wake();
+        }
+    }
+
+    private void wake() {
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Escribe lo pendiente y cierra el fichero
+     */
+    void close() {
+        running = false;
+        wake();
+        try {
+            thread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        while (true) {
+            Entry entry = buffer.poll();
+            if (entry != null) {
+                write(entry);
+                continue;
+            }
+            // Sin nada pendiente: se vuelca el lote y se espera a la siguiente entrada
+            reportDropped();
+            writeOut();
+            if (!running && buffer.isEmpty()) {
+                break;
+            }
+            sleeping = true;
+            if (buffer.isEmpty() && running) {
+                LockSupport.parkNanos(MAX_IDLE_NANOS);
+            }
+            sleeping = false;
+        }
+        closeChannel();
+    }
+
+    private void reportDropped() {
+        long count = dropped.getAndSet(0);
+        if (count > 0) {
+            write(new Entry(Logger.Level.WARNING, System.currentTimeMillis(),
+                    count + " mensajes de log descartados por buffer lleno", null, false));
+        }
+    }
+
+    private void write(Entry entry) {
+        line.setLength(0);
+        appendLine(entry.millis, entry.message);
+        if (entry.error != null) {
+            appendLine(entry.millis, "Exception: " + entry.error.getMessage());
+            for (StackTraceElement element : entry.error.getStackTrace()) {
+                appendLine(entry.millis, "  at " + element);
+            }
+            if (entry.error.getCause() != null) {
+                appendLine(entry.millis, "Causa: " + entry.error.getCause());
+            }
+        }
+        if (entry.console) {
+            console.print(line);
+        }
+        // Se rota entre entradas, así ninguna queda partida entre dos ficheros
+        long pending = fileSize + out.position();
+        if (channel != null && (rotateDaily && entry.millis >= nextDayMillis
+                || pending > 0 && pending + line.length() > maxBytes)) {
+            writeOut();
+            try {
+                rotate();
+            } catch (IOException e) {
+                System.err.println("Error rotando el archivo de log: " + e.getMessage());
+                closeChannel();
+            }
+        }
+        encode();
+    }
+
+    private void appendLine(long millis, String text) {
+        long second = millis / 1000;
+        if (second != stampSecond) {
+            stampSecond = second;
+            stamp = DATE_FORMAT.format(Instant.ofEpochMilli(millis));
+        }
+        line.append('[').append(stamp).append("] ").append(text).append('\n');
+    }
+
+    // Pasa la línea a bytes dentro del lote; si no cabe se vuelca antes
+    private void encode() {
+        CharBuffer chars = CharBuffer.wrap(line);
+        encoder.reset();
+        while (true) {
+            CoderResult result = encoder.encode(chars, out, true);
+            if (result.isOverflow()) {
+                writeOut();
+                continue;
+            }
+            break;
+        }
+        while (encoder.flush(out).isOverflow()) {
+            writeOut();
+        }
+    }
+
+    private void writeOut() {
+        if (out.position() == 0) {
+            return;
+        }
+        out.flip();
+        try {
+            if (channel == null) {
+                open();
+            }
+            while (out.hasRemaining()) {
+                fileSize += channel.write(out);
+            }
+        } catch (IOException e) {
+            // No se puede registrar con el propio Logger: se avisa por la salida de error
+            System.err.println("Error escribiendo en el archivo de log: " + e.getMessage());
+            closeChannel();
+        } finally {
+            out.clear();
+        }
+    }
+
+    // Abre el fichero; si el que hay está lleno o es de otro día se rota antes
+    private void open() throws IOException {
+        if (Files.exists(file) && (Files.size(file) >= maxBytes || rotateDaily && !modifiedToday())) {
+            shiftFiles();
+        }
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        fileSize = channel.size();
+        nextDayMillis = LocalDate.now().plusDays(1).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private void rotate() throws IOException {
+        closeChannel();
+        shiftFiles();
+        open();
+    }
+
+    private boolean modifiedToday() throws IOException {
+        Instant modified = Files.getLastModifiedTime(file).toInstant();
+        return LocalDate.ofInstant(modified, ZoneId.systemDefault()).equals(LocalDate.now());
+    }
+
+    // server.log -> server.log.1 -> server.log.2...; el más antiguo se pierde
+    private void shiftFiles() throws IOException {
+        if (maxFiles <= 0) {
+            Files.deleteIfExists(file);
+            return;
+        }
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            Path older = numbered(i);
+            if (Files.exists(older)) {
+                Files.move(older, numbered(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(file, numbered(1), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private Path numbered(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error cerrando el archivo de log: " + e.getMessage());
+            }
+            channel = null;
+        }
+    }
+}
@@ -1,15 +1,15 @@
 package server;
 
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.PrintWriter;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.nio.file.Paths;
+import java.util.function.Supplier;
 
+/**
+ * Log del servidor. Las llamadas no escriben nada: comprueban el nivel y
+ * dejan la entrada en el buffer de un {@link LogWriter}, que la escribe en
+ * segundo plano en el fichero (y en consola si el nivel lo pide).
+ */
 public class Logger {
-    private static final String LOG_FILE = "server.log";
-    private static final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-    
+
     // Niveles de log
     public enum Level {
         DEBUG(0),      // Información detallada, útil para depuración
@@ -17,86 +17,114 @@ public class Logger {
         IMPORTANT(2),  // Información importante (registro de usuarios, conexiones)
         WARNING(3),    // Advertencias
         ERROR(4);      // Errores
-        
+
         private final int value;
-        
+
         Level(int value) {
             this.value = value;
         }
-        
+
         public int getValue() {
             return value;
         }
     }
-    
+
     // Nivel mínimo que se mostrará en consola (se puede cambiar según necesidades)
-    private static Level consoleLevel = Level.ERROR;
-    
-    // Nivel mínimo que se guardará en archivo (se guardarán todos los logs)
-    private static Level fileLevel = Level.DEBUG;
-    
+    private static volatile Level consoleLevel = Level.ERROR;
+
+    // Nivel mínimo que se guardará en archivo (-Dchat.log.level, INFO por defecto)
+    private static volatile Level fileLevel = Level.valueOf(ServerConfig.LOG_LEVEL);
+
+    // Menor de los dos niveles: por debajo no se hace nada
+    private static volatile int minLevel = Math.min(consoleLevel.getValue(), fileLevel.getValue());
+
+    private static final LogWriter writer = new LogWriter(Paths.get(ServerConfig.LOG_FILE),
+            ServerConfig.LOG_BUFFER_SIZE, LogWriter.OverflowPolicy.valueOf(ServerConfig.LOG_OVERFLOW),
+            ServerConfig.LOG_MAX_BYTES, ServerConfig.LOG_MAX_FILES, ServerConfig.LOG_ROTATE_DAILY, System.out);
+
     /**
      * Configura el nivel mínimo de log para la consola
      */
     public static void setConsoleLevel(Level level) {
         consoleLevel = level;
+        minLevel = Math.min(consoleLevel.getValue(), fileLevel.getValue());
     }
-    
+
+    /**
+     * Configura el nivel mínimo de log para el archivo
+     */
+    public static void setFileLevel(Level level) {
+        fileLevel = level;
+        minLevel = Math.min(consoleLevel.getValue(), fileLevel.getValue());
+    }
+
+    /**
+     * Indica si un mensaje de ese nivel se registraría. Sirve para no construir
+     * mensajes caros que se van a descartar.
+     */
+    public static boolean isEnabled(Level level) {
+        return level.getValue() >= minLevel;
+    }
+
     /**
      * Log genérico con nivel especificado
      */
     public static void log(Level level, String message) {
-        String timestamp = dateFormat.format(new Date());
-        String logMessage = "[" + timestamp + "] " + message;
-        
-        // Imprimir en consola solo si el nivel es suficiente
-        if (level.getValue() >= consoleLevel.getValue()) {
-            System.out.println(logMessage);
+        publish(level, message, null);
+    }
+
+    /**
+     * Log genérico cuyo mensaje solo se construye si el nivel está activo
+     */
+    public static void log(Level level, Supplier<String> message) {
+        if (isEnabled(level)) {
+            publish(level, message.get(), null);
         }
-        
-        // Guardar en archivo solo si el nivel es suficiente
-        if (level.getValue() >= fileLevel.getValue()) {
-            try (PrintWriter out = new PrintWriter(new FileWriter(LOG_FILE, true))) {
-                out.println(logMessage);
-            } catch (IOException e) {
-                if (level.getValue() >= Level.ERROR.getValue()) {
-                    System.err.println("Error escribiendo en el archivo de log: " + e.getMessage());
-                }
-            }
+    }
+
+    private static void publish(Level level, String message, Throwable error) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        boolean toConsole = level.getValue() >= consoleLevel.getValue();
+        if (!toConsole && level.getValue() < fileLevel.getValue()) {
+            return;
         }
+        writer.publish(new LogWriter.Entry(level, System.currentTimeMillis(), message, error, toConsole));
     }
-    
+
     /**
      * Log de nivel INFO (compatibilidad con código existente)
      */
     public static void log(String message) {
         log(Level.INFO, message);
     }
-    
+
     /**
      * Log para información importante (registro, conexiones nuevas)
      */
     public static void important(String message) {
         log(Level.IMPORTANT, message);
     }
-    
+
     /**
      * Log para depuración
      */
     public static void debug(String message) {
         log(Level.DEBUG, message);
     }
-    
+
+    /**
+     * Log para depuración; el mensaje solo se construye si DEBUG está activo
+     */
+    public static void debug(Supplier<String> message) {
+        log(Level.DEBUG, message);
+    }
+
     /**
-     * Log para errores
+     * Log para errores. La traza se escribe entera en una sola entrada.
      */
     public static void error(String message, Exception e) {
-        log(Level.ERROR, "ERROR: " + message);
-        if (e != null) {
-            log(Level.ERROR, "Exception: " + e.getMessage());
-            for (StackTraceElement element : e.getStackTrace()) {
-                log(Level.ERROR, "  at " + element.toString());
-            }
-        }
+        publish(Level.ERROR, "ERROR: " + message, e);
     }
-} 
\ No newline at end of file
+}
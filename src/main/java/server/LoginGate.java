@@ -0,0 +1,36 @@
+package server;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limita cuántos handshakes TLS y logins se procesan a la vez.
+ * Con miles de hilos virtuales reconectando, evita que todos golpeen la base
+ * de datos y la CPU al mismo tiempo.
+ */
+final class LoginGate {
+    private static final Semaphore permits = new Semaphore(ServerConfig.MAX_CONCURRENT_LOGINS, true);
+
+    private LoginGate() {
+    }
+
+    /**
+     * Espera un turno. Devuelve false si no se consigue a tiempo.
+     */
+    static boolean enter() {
+        try {
+            return permits.tryAcquire(ServerConfig.LOGIN_WAIT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    static void exit() {
+        permits.release();
+    }
+
+    static int inProgress() {
+        return ServerConfig.MAX_CONCURRENT_LOGINS - permits.availablePermits();
+    }
+}
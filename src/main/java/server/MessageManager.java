@@ -1,169 +1,340 @@
 package server;
 
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
+import java.nio.file.Paths;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
 
 public class MessageManager {
-    public static void saveMessage(String sender, String recipient, String message) {
-        if (recipient == null || recipient.isEmpty()) {
-            DatabaseConfig.saveGeneralMessage(sender, message);
-        } else {
-            DatabaseConfig.saveMessage(sender, recipient, message);
-        }
-    }
-
-    public static List<String> getMessageHistory(String username) {
-        List<String> messages = new ArrayList<>();
-        
-        // Obtener mensajes generales
-        String generalSql = "SELECT sender, message, timestamp FROM mensajes_generales ORDER BY timestamp DESC LIMIT 50";
-        
-        // Obtener mensajes privados donde el usuario es remitente o destinatario
-        String privateSql = "SELECT sender, recipient, message, timestamp FROM mensajes " +
-                           "WHERE sender = ? OR recipient = ? ORDER BY timestamp DESC LIMIT 50";
-        
-        try (Connection conn = DatabaseConfig.getConnection()) {
-            // Obtener mensajes generales
-            try (PreparedStatement generalStmt = conn.prepareStatement(generalSql);
-                 ResultSet generalRs = generalStmt.executeQuery()) {
-                
-                while (generalRs.next()) {
-                    String sender = generalRs.getString("sender");
-                    String message = generalRs.getString("message");
-                    String timestamp = generalRs.getString("timestamp");
-                    messages.add("[" + timestamp + "] " + sender + ": " + message);
-                }
+    // Tamaño máximo de página que se sirve aunque el cliente pida más
+    private static final int MAX_PAGE_SIZE = 200;
+
+    private static final MessageStore store = MessageStore.fromConfig();
+
+    private static final MessageWriter writer = new MessageWriter(store,
+            ServerConfig.WRITE_QUEUE_CAPACITY,
+            ServerConfig.WRITE_BATCH_SIZE,
+            ServerConfig.WRITE_FLUSH_MS,
+            MessageWriter.OverflowPolicy.valueOf(ServerConfig.WRITE_OVERFLOW),
+            Paths.get(ServerConfig.WRITE_SPILL_FILE),
+            MessageManager::afterWrite);
+
+    private static final AtomicBoolean closed = new AtomicBoolean();
+
+    // Aviso al guardar cada privado; true si ya se entregó y hay que marcarlo como leído
+    private static volatile Predicate<ChatMessage> privateStored = m -> false;
+
+    private static final RecentMessageCache cache = new RecentMessageCache(
+            ServerConfig.CACHE_PER_CONVERSATION, ServerConfig.CACHE_MAX_BYTES);
+
+    // Latencia de las consultas (solo cuando se llega al almacén, no los aciertos de caché)
+    private static final Metrics.Histogram DB_PRIVATE_HISTORY = Metrics.dbTimer("MessageManager.getPrivateHistory");
+    private static final Metrics.Histogram DB_HISTORY_PAGE = Metrics.dbTimer("MessageManager.getHistoryPage");
+    private static final Metrics.Histogram DB_HISTORY_SINCE = Metrics.dbTimer("MessageManager.getHistorySince");
+    private static final Metrics.Histogram DB_ROOM_HISTORY = Metrics.dbTimer("MessageManager.getRoomHistory");
+    private static final Metrics.Histogram DB_UNREAD = Metrics.dbTimer("MessageManager.getUnreadMessages");
+
+    /**
+     * Encola el mensaje para guardarlo en segundo plano.
+     * Devuelve false si la cola está llena y la política es rechazar.
+     */
+    public static boolean saveMessage(String sender, String recipient, String message) {
+        if (recipient != null && recipient.isEmpty()) {
+            recipient = null;
+        }
+        return saveMessage(ChatMessage.create(sender, recipient, message));
+    }
+
+    public static boolean saveMessage(ChatMessage message) {
+        if (!writer.submit(message)) {
+            return false;
+        }
+        cache.add(message);
+        return true;
+    }
+
+    /**
+     * Quién sigue a los privados hasta que se guardan (la cola sin conexión del servidor)
+     */
+    static void onPrivateStored(Predicate<ChatMessage> listener) {
+        privateStored = listener;
+    }
+
+    // En el hilo escritor, tras el commit de un lote. Un privado entregado
+    // mientras se guardaba quedó escrito como no leído: se marca ahora por id
+    private static void afterWrite(List<ChatMessage> batch) {
+        List<ChatMessage> read = new ArrayList<>();
+        for (ChatMessage m : batch) {
+            if (m.isGeneral() || m.isRoom() || m.getId() == 0) {
+                continue;
             }
-            
-            // Obtener mensajes privados
-            try (PreparedStatement privateStmt = conn.prepareStatement(privateSql)) {
-                privateStmt.setString(1, username);
-                privateStmt.setString(2, username);
-                
-                try (ResultSet privateRs = privateStmt.executeQuery()) {
-                    while (privateRs.next()) {
-                        String sender = privateRs.getString("sender");
-                        String recipient = privateRs.getString("recipient");
-                        String message = privateRs.getString("message");
-                        String timestamp = privateRs.getString("timestamp");
-                        
-                        // Formatear de manera diferente según sea mensaje enviado o recibido
-                        if (sender.equals(username)) {
-                            messages.add("[" + timestamp + "] Tú -> " + recipient + ": " + message);
-                        } else {
-                            messages.add("[" + timestamp + "] " + sender + " -> Tú: " + message);
-                        }
-                    }
-                }
+            m.markStored();
+            boolean deliveredFromQueue = privateStored.test(m);
+            if ((deliveredFromQueue || m.isDelivered()) && !m.isStoredRead()) {
+                read.add(m);
             }
-        } catch (SQLException e) {
-            Logger.error("Error obteniendo historial de mensajes", e);
         }
+        if (read.isEmpty()) {
+            return;
+        }
+        try {
+            store.markRead(read);
+        } catch (MessageStore.StoreException e) {
+            Logger.error("Error marcando como leídos " + read.size() + " mensajes entregados al guardarse", e);
+        }
+    }
+
+    /**
+     * Guarda todos los mensajes pendientes antes de cerrar el servidor,
+     * esperando como máximo timeoutMs al escritor. Solo actúa la primera vez.
+     */
+    public static void shutdown(long timeoutMs) {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        writer.shutdown(timeoutMs);
+        store.close();
+    }
+
+    public static String getWriterStats() {
+        return writer.getStats();
+    }
+
+    public static String getStoreStats() {
+        return store.getStats();
+    }
+
+    public static String getCacheStats() {
+        return cache.getStats();
+    }
+
+    /**
+     * Texto de un mensaje visto por un usuario, con el formato que entiende el
+     * cliente: "[fecha] Tú -> otro: texto", "[fecha] otro -> Tú: texto" o
+     * "[fecha] remitente: texto" para el chat general y las salas.
+     */
+    public static String formatForUser(ChatMessage m, String viewer) {
+        String sender = m.getSender().equals(viewer) ? "Tú" : m.getSender();
+        if (m.isGeneral() || m.isRoom()) {
+            return "[" + m.getTimestamp() + "] " + sender + ": " + m.getMessage();
+        }
+        if (m.getSender().equals(viewer)) {
+            return "[" + m.getTimestamp() + "] Tú -> " + m.getRecipient() + ": " + m.getMessage();
+        }
+        return "[" + m.getTimestamp() + "] " + m.getSender() + " -> " + (m.getRecipient().equals(viewer) ? "Tú" : m.getRecipient())
+                + ": " + m.getMessage();
+    }
 
-        // Ordenar los mensajes por fecha (los más recientes primero)
-        messages.sort((m1, m2) -> {
+    /**
+     * Últimos mensajes de una sala en orden cronológico, desde la caché si los tiene
+     */
+    public static List<ChatMessage> getRoomHistory(String room, int limit) {
+        String key = RecentMessageCache.roomKey(room);
+        List<ChatMessage> messages = cache.recent(key, limit);
+        if (messages == null) {
+            long start = System.nanoTime();
             try {
-                String timestamp1 = m1.substring(m1.indexOf("[") + 1, m1.indexOf("]"));
-                String timestamp2 = m2.substring(m2.indexOf("[") + 1, m2.indexOf("]"));
-                return timestamp2.compareTo(timestamp1);
-            } catch (Exception e) {
-                return 0;
+                messages = store.roomHistory(room, limit);
+            } catch (MessageStore.StoreException e) {
+                Logger.error("Error obteniendo historial de la sala " + room, e);
+                return new ArrayList<>();
+            } finally {
+                DB_ROOM_HISTORY.observeSince(start);
             }
-        });
-        
-        // Limitar a los 100 mensajes más recientes
-        if (messages.size() > 100) {
-            messages = messages.subList(0, 100);
+            cache.load(key, messages, messages.size() < limit);
         }
+        messages = new ArrayList<>(messages);
+        Collections.reverse(messages);
+        return messages;
+    }
 
+    /**
+     * Privados que el usuario recibió sin estar conectado, en orden
+     * cronológico; en el almacén quedan marcados como leídos. queued son los
+     * de la cola en memoria ({@link OfflineQueue}), que pueden no haberse
+     * guardado todavía: se mezclan con los del almacén sin repetir ninguno.
+     */
+    public static List<ChatMessage> getUnreadMessages(String username, List<ChatMessage> queued) {
+        List<ChatMessage> messages = new ArrayList<>();
+        long start = System.nanoTime();
+        try {
+            messages.addAll(store.takeUnread(username));
+        } catch (MessageStore.StoreException e) {
+            Logger.error("Error obteniendo mensajes no leídos", e);
+        } finally {
+            DB_UNREAD.observeSince(start);
+        }
+        if (!queued.isEmpty()) {
+            Set<Long> stored = new HashSet<>();
+            for (ChatMessage m : messages) {
+                stored.add(m.getId());
+            }
+            List<ChatMessage> fromStore = new ArrayList<>(messages);
+            for (ChatMessage m : queued) {
+                // Sin id puede ser la copia del fichero de desbordamiento que ya se ha guardado
+                if (m.getId() != 0 ? !stored.contains(m.getId()) : fromStore.stream().noneMatch(m::sameAs)) {
+                    messages.add(m);
+                }
+            }
+            messages.sort(Comparator.comparing(ChatMessage::getTimestamp).thenComparingLong(ChatMessage::getId));
+        }
         return messages;
     }
 
-    public static List<String> getUnreadMessages(String username) {
-        List<String> messages = new ArrayList<>();
-        String sql = "SELECT sender, message, timestamp FROM mensajes " +
-                    "WHERE recipient = ? AND is_read = 0 ORDER BY timestamp";
+    public static void clearMessageHistory() {
+        try {
+            store.clear();
+        } catch (MessageStore.StoreException e) {
+            Logger.error("Error borrando historial de mensajes", e);
+        }
+        cache.clear();
+    }
 
-        try (Connection conn = DatabaseConfig.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, username);
-            ResultSet rs = stmt.executeQuery();
+    /**
+     * Mensajes de una conversación con id mayor que lastId, en orden de id.
+     * Con otherUser vacío se devuelve el chat general.
+     */
+    public static List<ChatMessage> getHistorySince(String username, String otherUser, long lastId) {
+        List<ChatMessage> messages;
+        long start = System.nanoTime();
+        try {
+            messages = store.since(username, otherUser, lastId);
+        } catch (MessageStore.StoreException e) {
+            Logger.error("Error obteniendo historial incremental", e);
+            return new ArrayList<>();
+        } finally {
+            DB_HISTORY_SINCE.observeSince(start);
+        }
+        // Los que aún están en la cola del escritor no salen en la consulta
+        return withUnsaved(messages, cache.newerThan(conversationKey(username, otherUser), lastId));
+    }
 
-            while (rs.next()) {
-                String sender = rs.getString("sender");
-                String message = rs.getString("message");
-                String timestamp = rs.getString("timestamp");
-                messages.add("[" + timestamp + "] " + sender + " (privado): " + message);
-            }
+    private static String conversationKey(String username, String otherUser) {
+        return otherUser.isEmpty() ? RecentMessageCache.generalKey() : RecentMessageCache.pairKey(username, otherUser);
+    }
 
-            // Marcar mensajes como leídos
-            if (!messages.isEmpty()) {
-                markMessagesAsRead(username);
+    // Añade a las filas del almacén los de la caché que no estén entre ellas, en orden cronológico
+    private static List<ChatMessage> withUnsaved(List<ChatMessage> rows, List<ChatMessage> cached) {
+        List<ChatMessage> merged = new ArrayList<>(rows);
+        for (ChatMessage m : cached) {
+            if (rows.stream().noneMatch(m::sameAs) && (m.getId() == 0
+                    || rows.stream().noneMatch(r -> r.getId() == m.getId()))) {
+                merged.add(m);
             }
-        } catch (SQLException e) {
-            Logger.error("Error obteniendo mensajes no leídos", e);
         }
-
-        return messages;
+        merged.sort(Comparator.comparing(ChatMessage::getTimestamp).thenComparingLong(ChatMessage::getId));
+        return merged;
     }
 
-    private static void markMessagesAsRead(String username) {
-        String sql = "UPDATE mensajes SET is_read = 1 WHERE recipient = ? AND is_read = 0";
-        try (Connection conn = DatabaseConfig.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, username);
-            stmt.executeUpdate();
-        } catch (SQLException e) {
-            Logger.error("Error marcando mensajes como leídos", e);
+    /**
+     * Página de historial: mensajes en orden cronológico y el token para
+     * pedir la página anterior (null si no hay más mensajes antiguos).
+     */
+    public static class HistoryPage {
+        private final List<ChatMessage> messages;
+        private final String olderToken;
+
+        HistoryPage(List<ChatMessage> messages, String olderToken) {
+            this.messages = messages;
+            this.olderToken = olderToken;
         }
+
+        public List<ChatMessage> getMessages() { return messages; }
+        public String getOlderToken() { return olderToken; }
+        public boolean hasMore() { return olderToken != null; }
     }
 
-    public static void clearMessageHistory() {
-        String[] tables = {"mensajes", "mensajes_generales"};
-        for (String table : tables) {
-            String sql = "DELETE FROM " + table;
-            try (Connection conn = DatabaseConfig.getConnection();
-                 PreparedStatement stmt = conn.prepareStatement(sql)) {
-                stmt.executeUpdate();
-                Logger.log("Historial de mensajes borrado: " + table);
-            } catch (SQLException e) {
-                Logger.error("Error borrando historial de mensajes", e);
+    /**
+     * Paginación por clave (timestamp, id) hacia atrás: devuelve los mensajes
+     * anteriores a beforeToken (o los más recientes si es vacío). El coste no
+     * depende de la longitud de la conversación, solo del tamaño de página.
+     */
+    public static HistoryPage getHistoryPage(String username, String otherUser, String beforeToken, int limit) {
+        int pageSize = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+        Timestamp beforeTs = null;
+        long beforeId = 0;
+        if (beforeToken != null && !beforeToken.isEmpty()) {
+            // Token: milisegundos.nanosegundos.id del último mensaje de la página anterior
+            String[] parts = beforeToken.split("\\.");
+            try {
+                beforeTs = new Timestamp(Long.parseLong(parts[0]));
+                beforeTs.setNanos(Integer.parseInt(parts[1]));
+                beforeId = Long.parseLong(parts[2]);
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Token de página inválido: " + beforeToken, e);
+            }
+        }
+
+        List<ChatMessage> messages = new ArrayList<>();
+        String olderToken = null;
+        long start = System.nanoTime();
+        try {
+            // Se pide un mensaje más para saber si quedan mensajes anteriores
+            if (beforeTs == null) {
+                // La página más reciente sale de la caché si la tiene entera,
+                // incluidos los que aún no se han guardado
+                String key = conversationKey(username, otherUser);
+                messages = cache.recent(key, pageSize + 1);
+                if (messages == null) {
+                    List<ChatMessage> rows = store.page(username, otherUser, null, 0, pageSize + 1);
+                    cache.load(key, rows, rows.size() <= pageSize);
+                    messages = withUnsaved(rows, cache.newerThan(key, Long.MAX_VALUE));
+                    Collections.reverse(messages);
+                }
+            } else {
+                messages = store.page(username, otherUser, beforeTs, beforeId, pageSize + 1);
+            }
+            if (messages.size() > pageSize) {
+                messages = new ArrayList<>(messages.subList(0, pageSize));
+                olderToken = pageToken(messages.get(pageSize - 1));
             }
+        } catch (MessageStore.StoreException e) {
+            Logger.error("Error obteniendo página de historial", e);
+        } finally {
+            DB_HISTORY_PAGE.observeSince(start);
         }
+        Collections.reverse(messages);
+        return new HistoryPage(messages, olderToken);
+    }
+
+    // Token "milisegundos.nanosegundos.id" con la clave de un mensaje; uno
+    // sin guardar aún va detrás de todos los guardados con su mismo timestamp
+    private static String pageToken(ChatMessage m) {
+        Timestamp ts = m.getTimestamp();
+        return ts.getTime() + "." + ts.getNanos() + "." + (m.getId() == 0 ? Long.MAX_VALUE : m.getId());
     }
 
+    /**
+     * Conversación privada completa en orden cronológico, desde la caché si la
+     * tiene entera en memoria.
+     */
     public static List<String> getPrivateHistory(String user1, String user2) {
-        List<String> messages = new ArrayList<>();
-        String sql = "SELECT sender, recipient, message, timestamp FROM mensajes " +
-                     "WHERE (sender = ? AND recipient = ?) OR (sender = ? AND recipient = ?) " +
-                     "ORDER BY timestamp ASC";
-        try (Connection conn = DatabaseConfig.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, user1);
-            stmt.setString(2, user2);
-            stmt.setString(3, user2);
-            stmt.setString(4, user1);
-            ResultSet rs = stmt.executeQuery();
-            while (rs.next()) {
-                String sender = rs.getString("sender");
-                String recipient = rs.getString("recipient");
-                String message = rs.getString("message");
-                String timestamp = rs.getString("timestamp");
-                
-                // Formatear de manera que indique claramente si es mensaje enviado o recibido
-                if (sender.equals(user1)) {
-                    messages.add("[" + timestamp + "] Tú -> " + recipient + ": " + message);
-                } else {
-                    messages.add("[" + timestamp + "] " + sender + " -> Tú: " + message);
-                }
+        String key = RecentMessageCache.pairKey(user1, user2);
+        List<ChatMessage> conversation = cache.all(key);
+        if (conversation == null) {
+            long start = System.nanoTime();
+            try {
+                conversation = store.conversation(user1, user2);
+            } catch (MessageStore.StoreException e) {
+                Logger.error("Error obteniendo historial privado", e);
+                return new ArrayList<>();
+            } finally {
+                DB_PRIVATE_HISTORY.observeSince(start);
             }
-        } catch (SQLException e) {
-            Logger.error("Error obteniendo historial privado", e);
+            cache.load(key, conversation, true);
+        }
+
+        List<String> messages = new ArrayList<>(conversation.size());
+        for (ChatMessage m : conversation) {
+            // Formatear de manera que indique claramente si es mensaje enviado o recibido
+            messages.add(formatForUser(m, user1));
         }
         return messages;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,96 @@
+package server;
+
+import java.nio.file.Paths;
+import java.sql.Timestamp;
+import java.util.List;
+
+/**
+ * Dónde se guardan los mensajes. MessageManager decide qué se sirve desde la
+ * caché y qué se pide aquí; MessageWriter es el único que escribe.
+ * Se elige con -Dchat.store: JDBC (la base de datos de DatabaseConfig) o LOG
+ * (log local de solo añadir, sin base de datos).
+ */
+interface MessageStore {
+
+    /**
+     * Error de almacenamiento, sea cual sea el backend
+     */
+    class StoreException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final boolean rejected;
+
+        StoreException(String message, Throwable cause) {
+            this(message, cause, false);
+        }
+
+        StoreException(String message, Throwable cause, boolean rejected) {
+            super(message, cause);
+            this.rejected = rejected;
+        }
+
+        /**
+         * true si el almacén rechaza los datos (p. ej. una restricción de
+         * integridad): reintentar el mismo mensaje volverá a fallar
+         */
+        boolean isRejected() {
+            return rejected;
+        }
+    }
+
+    /**
+     * Guarda el lote y asigna a cada mensaje su id. Si falla, los mensajes
+     * que no llegaron a guardarse quedan con id 0.
+     */
+    void append(List<ChatMessage> batch) throws StoreException;
+
+    /**
+     * Conversación privada completa en orden cronológico
+     */
+    List<ChatMessage> conversation(String user1, String user2) throws StoreException;
+
+    /**
+     * Mensajes de la conversación (general si otherUser es vacío) con id mayor que lastId, en orden de id
+     */
+    List<ChatMessage> since(String username, String otherUser, long lastId) throws StoreException;
+
+    /**
+     * Hasta limit mensajes de la conversación anteriores a (beforeTs, beforeId), los más recientes
+     * primero. Con beforeTs null, los más recientes.
+     */
+    List<ChatMessage> page(String username, String otherUser, Timestamp beforeTs, long beforeId, int limit)
+            throws StoreException;
+
+    /**
+     * Últimos mensajes de la sala, los más recientes primero
+     */
+    List<ChatMessage> roomHistory(String room, int limit) throws StoreException;
+
+    /**
+     * Mensajes privados del usuario que no se le entregaron en vivo, en orden
+     * cronológico; quedan marcados como leídos
+     */
+    List<ChatMessage> takeUnread(String username) throws StoreException;
+
+    /**
+     * Marca como leídos privados ya guardados (con id), entregados mientras se guardaban
+     */
+    void markRead(List<ChatMessage> messages) throws StoreException;
+
+    /**
+     * Borra todos los mensajes
+     */
+    void clear() throws StoreException;
+
+    String getStats();
+
+    void close();
+
+    static MessageStore fromConfig() {
+        if ("LOG".equals(ServerConfig.MESSAGE_STORE)) {
+            return new LogMessageStore(Paths.get(ServerConfig.STORE_DIR), ServerConfig.STORE_SEGMENT_BYTES,
+                    ServerConfig.STORE_FSYNC);
+        }
+        return new JdbcMessageStore();
+    }
+}
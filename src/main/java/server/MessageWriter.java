@@ -0,0 +1,462 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Persistencia diferida de mensajes.
+ * Los mensajes se encolan y un único hilo los escribe en lotes
+ * con {@link MessageStore#append} (en JDBC, addBatch/executeBatch en una sola
+ * transacción), de forma que la entrega a los usuarios conectados no espera
+ * al almacenamiento. Tras guardar cada lote se avisa a afterWrite.
+ * Si un lote falla se reintenta mensaje a mensaje: los que el almacén
+ * rechaza (p. ej. un destinatario que no existe) van al fichero de
+ * descartados y el resto se guarda o, si el fallo es pasajero, pasa al
+ * fichero de desbordamiento.
+ */
+class MessageWriter {
+
+    // Qué hacer cuando la cola está llena
+    enum OverflowPolicy {
+        BLOCK,   // Esperar a que haya sitio
+        SPILL,   // Guardar en el fichero de desbordamiento y reintentar más tarde
+        REJECT   // Rechazar el mensaje
+    }
+
+    private static final Metrics.Histogram DB_WRITE_BATCH = Metrics.dbTimer("MessageWriter.writeBatch");
+
+    // Espera entre intentos fallidos de reprocesar el fichero de desbordamiento
+    private static final long REPLAY_BACKOFF_MIN_MS = 1000;
+    private static final long REPLAY_BACKOFF_MAX_MS = 60000;
+    // Cada cuánto mira el hilo escritor si se está cerrando mientras espera mensajes
+    private static final long SHUTDOWN_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final MessageStore store;
+    private final BlockingQueue<ChatMessage> queue;
+    private final int batchSize;
+    private final long flushIntervalMs;
+    private final OverflowPolicy policy;
+    private final Path spillFile;
+    private final Path replayFile;
+    private final Path replayOffsetFile;
+    private final Path deadLetterFile;
+    private final Consumer<List<ChatMessage>> afterWrite;
+    private final Object spillLock = new Object();
+    private final Thread thread;
+    private volatile boolean running = true;
+    // Solo los usa el hilo escritor
+    private long replayBackoffMs;
+    private long nextReplayAt;
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong deadLettered = new AtomicLong();
+    private final AtomicLong malformed = new AtomicLong();
+
+    MessageWriter(MessageStore store, int capacity, int batchSize, long flushIntervalMs, OverflowPolicy policy,
+                  Path spillFile, Consumer<List<ChatMessage>> afterWrite) {
+        this.store = store;
+        this.afterWrite = afterWrite;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.flushIntervalMs = flushIntervalMs;
+        this.policy = policy;
+        this.spillFile = spillFile;
+        this.replayFile = spillFile.resolveSibling(spillFile.getFileName() + ".replay");
+        this.replayOffsetFile = spillFile.resolveSibling(spillFile.getFileName() + ".replay.offset");
+        this.deadLetterFile = spillFile.resolveSibling(spillFile.getFileName() + ".dead");
+        this.thread = new Thread(this::run, "message-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Encola un mensaje para guardarlo. Devuelve false si se ha rechazado.
+     */
+    boolean submit(ChatMessage message) {
+        if (!running) {
+            // Tras el cierre se guarda de forma síncrona para no perderlo
+            List<ChatMessage> single = new ArrayList<>(1);
+            single.add(message);
+            writeOrSpill(single);
+            return true;
+        }
+        if (queue.offer(message)) {
+            return true;
+        }
+        switch (policy) {
+            case BLOCK:
+                try {
+                    queue.put(message);
+                    return true;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    rejected.incrementAndGet();
+                    return false;
+                }
+            case SPILL:
+                List<ChatMessage> single = new ArrayList<>(1);
+                single.add(message);
+                spill(single);
+                return true;
+            default:
+                rejected.incrementAndGet();
+                Logger.log(Logger.Level.WARNING, "Cola de persistencia llena, mensaje rechazado de " + message.getSender());
+                return false;
+        }
+    }
+
+    private void run() {
+        List<ChatMessage> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                ChatMessage first = queue.poll(Math.min(flushIntervalMs, TimeUnit.NANOSECONDS.toMillis(SHUTDOWN_CHECK_NANOS)),
+                        TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    replaySpill();
+                    continue;
+                }
+                // Agrupar hasta completar el lote o agotar el intervalo
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+                while (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= batchSize || remaining <= 0 || !running) {
+                        break;
+                    }
+                    // En tramos cortos, para que un cierre no espere a completar el intervalo
+                    ChatMessage next = queue.poll(Math.min(remaining, SHUTDOWN_CHECK_NANOS), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        continue;
+                    }
+                    batch.add(next);
+                }
+                writeOrSpill(batch);
+            } catch (InterruptedException e) {
+                // No debería ocurrir: se guarda lo agrupado y el bucle sigue hasta vaciar la cola
+                writeOrSpill(batch);
+            } catch (RuntimeException e) {
+                Logger.error("Error inesperado en el escritor de mensajes", e);
+                spill(batch);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void writeOrSpill(List<ChatMessage> batch) {
+        int done = writeResolving(batch, false);
+        if (done < batch.size()) {
+            spill(new ArrayList<>(batch.subList(done, batch.size())));
+        }
+    }
+
+    /**
+     * Guarda el lote y, si falla, lo reintenta mensaje a mensaje; los que el
+     * almacén rechaza van al fichero de descartados. Devuelve cuántos mensajes
+     * del principio del lote quedan resueltos (guardados o descartados): los
+     * siguientes no se guardaron por un fallo que puede ser pasajero.
+     */
+    private int writeResolving(List<ChatMessage> batch, boolean replaying) {
+        MessageStore.StoreException failure;
+        try {
+            write(batch);
+            return batch.size();
+        } catch (MessageStore.StoreException e) {
+            failure = e;
+        }
+        if (batch.size() > 1) {
+            Logger.log(Logger.Level.WARNING, "Error guardando lote de " + batch.size()
+                    + " mensajes, se reintentan uno a uno: " + failure.getMessage());
+            List<ChatMessage> single = new ArrayList<>(1);
+            for (int i = 0; i < batch.size(); i++) {
+                ChatMessage m = batch.get(i);
+                if (m.getId() != 0) {
+                    continue;
+                }
+                single.clear();
+                single.add(m);
+                try {
+                    write(single);
+                } catch (MessageStore.StoreException e) {
+                    if (!e.isRejected()) {
+                        logTransient(batch.size() - i, e, replaying);
+                        return i;
+                    }
+                    deadLetter(m, e);
+                }
+            }
+            return batch.size();
+        }
+        if (failure.isRejected()) {
+            deadLetter(batch.get(0), failure);
+            return 1;
+        }
+        logTransient(1, failure, replaying);
+        return 0;
+    }
+
+    private void logTransient(int pending, MessageStore.StoreException e, boolean replaying) {
+        if (replaying) {
+            Logger.log(Logger.Level.WARNING, "No se pudo reprocesar el fichero de desbordamiento: " + e.getMessage());
+        } else {
+            Logger.error("Error guardando " + pending + " mensajes, se pasan al fichero de desbordamiento", e);
+        }
+    }
+
+    // Mensaje que el almacén no acepta: reintentarlo no sirve, se aparta para revisarlo a mano
+    private void deadLetter(ChatMessage m, MessageStore.StoreException e) {
+        deadLettered.incrementAndGet();
+        Logger.log(Logger.Level.WARNING, "Mensaje de " + m.getSender() + " rechazado por el almacén, se guarda en "
+                + deadLetterFile + ": " + e.getMessage());
+        List<ChatMessage> single = new ArrayList<>(1);
+        single.add(m);
+        appendLines(deadLetterFile, single);
+    }
+
+    // Guarda el lote entero o nada
+    private void write(List<ChatMessage> batch) throws MessageStore.StoreException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            store.append(batch);
+        } finally {
+            DB_WRITE_BATCH.observeSince(start);
+        }
+        written.addAndGet(batch.size());
+        batches.incrementAndGet();
+        Logger.debug(() -> "Lote de " + batch.size() + " mensajes guardado");
+        try {
+            afterWrite.accept(batch);
+        } catch (RuntimeException e) {
+            // El lote ya está guardado: no debe acabar en el fichero de desbordamiento
+            Logger.error("Error tras guardar lote de " + batch.size() + " mensajes", e);
+        }
+    }
+
+    private void spill(List<ChatMessage> batch) {
+        spilled.addAndGet(appendLines(spillFile, batch));
+    }
+
+    // Añade al fichero los mensajes aún sin guardar; devuelve cuántos ha escrito
+    private int appendLines(Path file, List<ChatMessage> batch) {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        synchronized (spillLock) {
+            try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                int count = 0;
+                for (ChatMessage m : batch) {
+                    if (m.getId() != 0) {
+                        // Ya guardado antes de que fallara el lote
+                        continue;
+                    }
+                    count++;
+                    // Sala vacía si no es de sala; la última columna es si el privado ya se entregó
+                    out.write(m.getTimestamp().getTime() + "\t" + escape(m.getSender()) + "\t"
+                            + escape(m.getRecipient() == null ? "" : m.getRecipient()) + "\t" + escape(m.getMessage())
+                            + "\t" + (m.isRoom() ? escape(m.getRoom()) : "") + "\t" + (m.isDelivered() ? "1" : "0"));
+                    out.newLine();
+                }
+                return count;
+            } catch (IOException e) {
+                Logger.error("Error escribiendo " + file + ", se pierden " + batch.size() + " mensajes", e);
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Reintenta guardar lo que quedó en el fichero de desbordamiento.
+     * Solo se llama desde el hilo escritor cuando la cola está vacía.
+     * Tras cada lote guardado se anota en replayOffsetFile cuántas líneas van
+     * ya guardadas: si falla a mitad, el siguiente intento sigue desde ahí
+     * sin volver a insertar los lotes anteriores. Tras un fallo se espera
+     * cada vez más (hasta REPLAY_BACKOFF_MAX_MS) antes de volver a intentarlo.
+     */
+    private void replaySpill() {
+        if (System.currentTimeMillis() < nextReplayAt) {
+            return;
+        }
+        try {
+            if (!Files.exists(replayFile)) {
+                synchronized (spillLock) {
+                    if (!Files.exists(spillFile)) {
+                        return;
+                    }
+                    // El de un fichero anterior ya terminado no vale para este
+                    Files.deleteIfExists(replayOffsetFile);
+                    Files.move(spillFile, replayFile, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            long done = readReplayOffset();
+            long lineNo = 0;
+            int skipped = 0;
+            List<ChatMessage> batch = new ArrayList<>(batchSize);
+            List<Long> lines = new ArrayList<>(batchSize);
+            try (BufferedReader in = Files.newBufferedReader(replayFile, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (++lineNo <= done) {
+                        continue;
+                    }
+                    ChatMessage m = parseLine(line);
+                    if (m == null) {
+                        skipped++;
+                        continue;
+                    }
+                    batch.add(m);
+                    lines.add(lineNo);
+                    if (batch.size() == batchSize && !replayBatch(batch, lines)) {
+                        replayFailed();
+                        return;
+                    }
+                }
+            }
+            if (!replayBatch(batch, lines)) {
+                replayFailed();
+                return;
+            }
+            Files.delete(replayFile);
+            Files.deleteIfExists(replayOffsetFile);
+            replayBackoffMs = 0;
+            nextReplayAt = 0;
+            if (skipped > 0) {
+                malformed.addAndGet(skipped);
+                Logger.log(Logger.Level.WARNING, "Fichero de desbordamiento: " + skipped + " líneas ilegibles descartadas");
+            }
+            Logger.log("Mensajes del fichero de desbordamiento guardados");
+        } catch (IOException e) {
+            Logger.log(Logger.Level.WARNING, "No se pudo reprocesar el fichero de desbordamiento: " + e.getMessage());
+            replayFailed();
+        }
+    }
+
+    // Guarda un lote del reproceso y anota hasta qué línea está resuelto; false si queda algo sin guardar
+    private boolean replayBatch(List<ChatMessage> batch, List<Long> lines) throws IOException {
+        int resolved = writeResolving(batch, true);
+        if (resolved > 0) {
+            writeReplayOffset(lines.get(resolved - 1));
+        }
+        boolean complete = resolved == batch.size();
+        batch.clear();
+        lines.clear();
+        return complete;
+    }
+
+    private void replayFailed() {
+        replayBackoffMs = replayBackoffMs == 0 ? REPLAY_BACKOFF_MIN_MS : Math.min(replayBackoffMs * 2, REPLAY_BACKOFF_MAX_MS);
+        nextReplayAt = System.currentTimeMillis() + replayBackoffMs;
+    }
+
+    // Línea del fichero de desbordamiento, o null si está incompleta o mal formada
+    private static ChatMessage parseLine(String line) {
+        String[] parts = line.split("\t", -1);
+        // Ficheros de versiones anteriores: 4 columnas, o 5 con la sala y sin la marca de entregado
+        if (parts.length < 4 || parts.length > 6) {
+            return null;
+        }
+        long ts;
+        try {
+            ts = Long.parseLong(parts[0]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        String recipient = unescape(parts[2]);
+        String room = parts.length >= 5 ? unescape(parts[4]) : "";
+        ChatMessage m = new ChatMessage(0, unescape(parts[1]), recipient.isEmpty() ? null : recipient,
+                room.isEmpty() ? null : room, unescape(parts[3]), new Timestamp(ts));
+        if (parts.length == 6 && "1".equals(parts[5])) {
+            m.markDelivered();
+        }
+        return m;
+    }
+
+    // Líneas del fichero de reproceso ya guardadas (0 si no se ha guardado ningún lote)
+    private long readReplayOffset() throws IOException {
+        if (!Files.exists(replayOffsetFile)) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(Files.readString(replayOffsetFile, StandardCharsets.UTF_8).trim());
+        } catch (NumberFormatException e) {
+            Logger.log(Logger.Level.WARNING, "Posición de reproceso ilegible en " + replayOffsetFile
+                    + ", se reprocesa el fichero completo");
+            return 0;
+        }
+    }
+
+    private void writeReplayOffset(long lines) throws IOException {
+        Path tmp = replayOffsetFile.resolveSibling(replayOffsetFile.getFileName() + ".tmp");
+        Files.writeString(tmp, Long.toString(lines), StandardCharsets.UTF_8);
+        Files.move(tmp, replayOffsetFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Detiene el escritor guardando antes todo lo pendiente
+     */
+    void shutdown(long timeoutMs) {
+        // Sin interrumpir: el hilo ve el cambio en menos de SHUTDOWN_CHECK_NANOS, guarda su lote y vacía la cola
+        running = false;
+        try {
+            thread.join(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive() || !queue.isEmpty()) {
+            List<ChatMessage> remaining = new ArrayList<>();
+            queue.drainTo(remaining);
+            spill(remaining);
+            Logger.log(Logger.Level.WARNING, "Cierre: " + remaining.size() + " mensajes pasados al fichero de desbordamiento");
+        }
+        Logger.log("Escritor de mensajes detenido: " + getStats());
+    }
+
+    int getQueueDepth() {
+        return queue.size();
+    }
+
+    String getStats() {
+        return "Escritor de mensajes: en cola=" + queue.size() + " guardados=" + written.get()
+                + " lotes=" + batches.get() + " desbordados=" + spilled.get() + " rechazados=" + rejected.get()
+                + " descartados=" + deadLettered.get() + " líneasIlegibles=" + malformed.get();
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char next = s.charAt(++i);
+                sb.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,359 @@
+package server;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Métricas del servidor en memoria: contadores, histogramas de latencia y
+ * valores que se calculan al consultarlos. Registrar cuesta un LongAdder por
+ * evento; el texto para Prometheus y el resumen de consola se generan solo
+ * cuando se piden.
+ */
+final class Metrics {
+
+    /**
+     * Valor que solo crece
+     */
+    static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        void inc() {
+            value.increment();
+        }
+
+        void add(long n) {
+            value.add(n);
+        }
+
+        long get() {
+            return value.sum();
+        }
+    }
+
+    /**
+     * Histograma de duraciones con cubetas fijas (en segundos, como espera Prometheus)
+     */
+    static final class Histogram {
+        private static final double[] BOUNDS = {
+                0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+        private static final long[] BOUNDS_NANOS = new long[BOUNDS.length];
+
+        static {
+            for (int i = 0; i < BOUNDS.length; i++) {
+                BOUNDS_NANOS[i] = (long) (BOUNDS[i] * 1e9);
+            }
+        }
+
+        // Una cubeta más para lo que supera el último límite
+        private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void observeNanos(long nanos) {
+            int i = 0;
+            while (i < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            sumNanos.add(nanos);
+        }
+
+        /**
+         * Registra el tiempo transcurrido desde start (System.nanoTime())
+         */
+        void observeSince(long start) {
+            observeNanos(System.nanoTime() - start);
+        }
+
+        long count() {
+            long total = 0;
+            for (LongAdder bucket : buckets) {
+                total += bucket.sum();
+            }
+            return total;
+        }
+
+        /**
+         * Límite superior de la cubeta donde cae el cuantil q, en segundos
+         */
+        double quantile(double q) {
+            long[] counts = new long[buckets.length];
+            long total = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < BOUNDS.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return BOUNDS[i];
+                }
+            }
+            return Double.POSITIVE_INFINITY;
+        }
+
+        double sumSeconds() {
+            return sumNanos.sum() / 1e9;
+        }
+    }
+
+    // Métrica con nombre y tipo; puede tener varias series según una etiqueta
+    private static final class Family {
+        final String name;
+        final String help;
+        final String type;
+        final String labelName;
+        final Map<String, Object> series = new LinkedHashMap<>();
+
+        Family(String name, String help, String type, String labelName) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.labelName = labelName;
+        }
+    }
+
+    private static final Map<String, Family> families = new LinkedHashMap<>();
+
+    // Conexiones y sesiones
+    static final Counter CONNECTIONS_OPENED = counter("chat_connections_opened_total",
+            "Conexiones aceptadas", null, null);
+    static final Counter CONNECTIONS_CLOSED = counter("chat_connections_closed_total",
+            "Conexiones cerradas", null, null);
+    static final Counter LOGINS_OK = counter("chat_logins_total", "Intentos de login por resultado", "result", "ok");
+    static final Counter LOGINS_FAILED = counter("chat_logins_total", null, "result", "failed");
+    static final Counter LOGINS_REJECTED = counter("chat_logins_total", null, "result", "rejected");
+    static final Counter NIO_READ_PAUSED = counter("chat_nio_read_paused_total",
+            "Veces que se dejó de leer una conexión NIO por tener demasiados comandos pendientes", null, null);
+
+    // Mensajes
+    static final Counter MESSAGES_GENERAL = counter("chat_messages_total", "Mensajes recibidos por tipo", "type", "general");
+    static final Counter MESSAGES_PRIVATE = counter("chat_messages_total", null, "type", "private");
+    static final Counter MESSAGES_ROOM = counter("chat_messages_total", null, "type", "room");
+    static final Counter OFFLINE_DELIVERED = counter("chat_offline_delivered_total",
+            "Privados recibidos sin conexión y entregados al hacer login", null, null);
+    static final Histogram BROADCAST = histogram("chat_broadcast_seconds",
+            "Tiempo en repartir un mensaje a los destinatarios de un shard", null, null);
+    static final Counter PRESENCE_DELTAS = counter("chat_presence_updates_total",
+            "Avisos de presencia enviados por tipo", "type", "delta");
+    static final Counter PRESENCE_SNAPSHOTS = counter("chat_presence_updates_total", null, "type", "snapshot");
+    static final Counter OUTBOUND_DROPPED = counter("chat_outbound_dropped_total",
+            "Mensajes descartados en las colas de salida (incluidas listas de usuarios agrupadas)", null, null);
+
+    static {
+        registerJvmGauges();
+    }
+
+    private Metrics() {
+    }
+
+    static synchronized Counter counter(String name, String help, String labelName, String labelValue) {
+        return (Counter) register(name, help, "counter", labelName, labelValue, new Counter());
+    }
+
+    static synchronized Histogram histogram(String name, String help, String labelName, String labelValue) {
+        return (Histogram) register(name, help, "histogram", labelName, labelValue, new Histogram());
+    }
+
+    /**
+     * Valor calculado en el momento de consultarlo. Si ya existe se sustituye.
+     */
+    static synchronized void gauge(String name, String help, String labelName, String labelValue, DoubleSupplier value) {
+        Family family = family(name, help, "gauge", labelName);
+        family.series.put(labelValue == null ? "" : labelValue, value);
+    }
+
+    /**
+     * Contador mantenido por otro componente (p. ej. la JVM), leído al consultarlo
+     */
+    static synchronized void counterFunction(String name, String help, String labelName, String labelValue,
+                                             DoubleSupplier value) {
+        Family family = family(name, help, "counter", labelName);
+        family.series.put(labelValue == null ? "" : labelValue, value);
+    }
+
+    /**
+     * Latencia de un método que accede a la base de datos
+     */
+    static Histogram dbTimer(String method) {
+        return histogram("chat_db_call_seconds", "Duración de las llamadas a la base de datos por método",
+                "method", method);
+    }
+
+    private static Object register(String name, String help, String type, String labelName, String labelValue,
+                                   Object metric) {
+        Family family = family(name, help, type, labelName);
+        String key = labelValue == null ? "" : labelValue;
+        Object existing = family.series.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        family.series.put(key, metric);
+        return metric;
+    }
+
+    private static Family family(String name, String help, String type, String labelName) {
+        Family family = families.get(name);
+        if (family == null) {
+            family = new Family(name, help, type, labelName);
+            families.put(name, family);
+        } else if (!family.type.equals(type)) {
+            throw new IllegalArgumentException("Métrica " + name + " ya registrada como " + family.type);
+        }
+        return family;
+    }
+
+    private static void registerJvmGauges() {
+        gauge("jvm_memory_heap_used_bytes", "Memoria heap en uso", null, null,
+                () -> ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+        gauge("jvm_memory_heap_committed_bytes", "Memoria heap reservada", null, null,
+                () -> ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getCommitted());
+        gauge("jvm_memory_heap_max_bytes", "Memoria heap máxima", null, null,
+                () -> ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getMax());
+        gauge("jvm_threads_live", "Hilos de plataforma vivos", null, null,
+                () -> ManagementFactory.getThreadMXBean().getThreadCount());
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            counterFunction("jvm_gc_collections_total", "Recolecciones por colector", "gc", gc.getName(),
+                    gc::getCollectionCount);
+            counterFunction("jvm_gc_collection_seconds_total", "Tiempo total de recolección por colector", "gc", gc.getName(),
+                    () -> gc.getCollectionTime() / 1000.0);
+        }
+    }
+
+    /**
+     * Todas las métricas en el formato de texto de Prometheus
+     */
+    static synchronized String toPrometheus() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Family family : families.values()) {
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> entry : family.series.entrySet()) {
+                String label = family.labelName == null ? ""
+                        : family.labelName + "=\"" + escape(entry.getKey()) + "\"";
+                Object metric = entry.getValue();
+                if (metric instanceof Counter) {
+                    sample(out, family.name, label, ((Counter) metric).get());
+                } else if (metric instanceof DoubleSupplier) {
+                    sample(out, family.name, label, ((DoubleSupplier) metric).getAsDouble());
+                } else {
+                    appendHistogram(out, family.name, label, (Histogram) metric);
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private static void appendHistogram(StringBuilder out, String name, String label, Histogram h) {
+        String prefix = label.isEmpty() ? "" : label + ",";
+        long cumulative = 0;
+        for (int i = 0; i < Histogram.BOUNDS.length; i++) {
+            cumulative += h.buckets[i].sum();
+            sample(out, name + "_bucket", prefix + "le=\"" + Histogram.BOUNDS[i] + "\"", cumulative);
+        }
+        cumulative += h.buckets[Histogram.BOUNDS.length].sum();
+        sample(out, name + "_bucket", prefix + "le=\"+Inf\"", cumulative);
+        sample(out, name + "_sum", label, h.sumSeconds());
+        sample(out, name + "_count", label, cumulative);
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        if (value == (long) value) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    // Valores del último resumen, para calcular ritmos por segundo
+    private static long lastSummaryNanos = System.nanoTime();
+    private static long lastLogins;
+    private static long lastGeneral;
+    private static long lastPrivate;
+    private static long lastRoom;
+
+    /**
+     * Resumen legible para la consola, con ritmos desde el resumen anterior
+     */
+    static synchronized List<String> summary(long openSessions, long queuedFrames, long maxQueue) {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-3, (now - lastSummaryNanos) / 1e9);
+        long logins = LOGINS_OK.get() + LOGINS_FAILED.get() + LOGINS_REJECTED.get();
+        long general = MESSAGES_GENERAL.get();
+        long privados = MESSAGES_PRIVATE.get();
+        long salas = MESSAGES_ROOM.get();
+
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format(Locale.ROOT, "Conexiones abiertas=%d sesiones=%d logins/s=%.1f (fallidos=%d rechazados=%d)",
+                CONNECTIONS_OPENED.get() - CONNECTIONS_CLOSED.get(), openSessions,
+                (logins - lastLogins) / seconds, LOGINS_FAILED.get(), LOGINS_REJECTED.get()));
+        lines.add(String.format(Locale.ROOT, "Mensajes/s: generales=%.1f privados=%.1f salas=%.1f (total %d / %d / %d)",
+                (general - lastGeneral) / seconds, (privados - lastPrivate) / seconds, (salas - lastRoom) / seconds,
+                general, privados, salas));
+        lines.add("Broadcast: " + describe(BROADCAST));
+        lines.add("Colas de salida: mensajes=" + queuedFrames + " máx=" + maxQueue
+                + " descartados=" + OUTBOUND_DROPPED.get());
+        Family db = families.get("chat_db_call_seconds");
+        if (db != null) {
+            for (Map.Entry<String, Object> entry : db.series.entrySet()) {
+                Histogram h = (Histogram) entry.getValue();
+                if (h.count() > 0) {
+                    lines.add("BD " + entry.getKey() + ": " + describe(h));
+                }
+            }
+        }
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        long gcCount = 0;
+        long gcMillis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += Math.max(0, gc.getCollectionCount());
+            gcMillis += Math.max(0, gc.getCollectionTime());
+        }
+        lines.add("JVM: heap=" + (heap.getUsed() >> 20) + "MB/" + (heap.getMax() >> 20) + "MB GC=" + gcCount
+                + " (" + gcMillis + " ms)");
+
+        lastSummaryNanos = now;
+        lastLogins = logins;
+        lastGeneral = general;
+        lastPrivate = privados;
+        lastRoom = salas;
+        return lines;
+    }
+
+    private static String describe(Histogram h) {
+        long count = h.count();
+        if (count == 0) {
+            return "sin datos";
+        }
+        return String.format(Locale.ROOT, "n=%d media=%.2fms p50<=%.2fms p99<=%.2fms", count,
+                h.sumSeconds() * 1000 / count, h.quantile(0.5) * 1000, h.quantile(0.99) * 1000);
+    }
+}
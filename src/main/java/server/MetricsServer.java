@@ -0,0 +1,71 @@
+package server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/**
+ * Endpoint HTTP local con las métricas en formato Prometheus
+ * (GET http://127.0.0.1:9400/metrics por defecto). Se desactiva con
+ * -Dchat.metrics.port=0.
+ */
+final class MetricsServer {
+    private static HttpServer server;
+
+    private MetricsServer() {
+    }
+
+    /**
+     * Arranca el endpoint si está configurado y no está ya en marcha
+     */
+    static synchronized void start() {
+        if (server != null || ServerConfig.METRICS_PORT <= 0) {
+            return;
+        }
+        try {
+            server = HttpServer.create(new InetSocketAddress(ServerConfig.METRICS_HOST, ServerConfig.METRICS_PORT), 0);
+            server.createContext("/metrics", MetricsServer::handle);
+            // Un único hilo basta: las consultas son esporádicas
+            server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "metrics-http");
+                t.setDaemon(true);
+                return t;
+            }));
+            server.start();
+            Logger.log("Métricas disponibles en http://" + ServerConfig.METRICS_HOST + ":"
+                    + ServerConfig.METRICS_PORT + "/metrics");
+        } catch (IOException e) {
+            Logger.error("No se pudo iniciar el endpoint de métricas", e);
+            server = null;
+        }
+    }
+
+    static synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+
+    private static void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = Metrics.toPrometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
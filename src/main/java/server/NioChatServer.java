@@ -0,0 +1,529 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Modo no bloqueante del servidor de chat.
+ * Un hilo acepta conexiones y las reparte entre unos pocos bucles de E/S
+ * basados en {@link Selector}. Cada bucle lee y escribe los bytes de sus
+ * conexiones; los comandos completos se ejecutan en un pool de trabajadores
+ * para que los accesos a la base de datos no bloqueen la E/S.
+ */
+class NioChatServer {
+    private static final int READ_BUFFER_SIZE = 8192;
+    // Máximo de frames que se envían juntos en una escritura agrupada (writev)
+    private static final int MAX_GATHER = 64;
+
+    // Protocolo de cada conexión: se decide con el primer byte recibido
+    private static final int MODE_UNKNOWN = 0;
+    private static final int MODE_TEXT = 1;
+    private static final int MODE_BINARY = 2;
+
+    private final ChatServer chatServer;
+    private final int port;
+    private final ExecutorService workers;
+    private final IoLoop[] loops;
+    private final AtomicBoolean isRunning = new AtomicBoolean(true);
+    private ServerSocketChannel serverChannel;
+    private Selector acceptSelector;
+    private int nextLoop;
+
+    NioChatServer(ChatServer chatServer, int port, int ioLoops, ExecutorService workers) {
+        this.chatServer = chatServer;
+        this.port = port;
+        this.workers = workers;
+        this.loops = new IoLoop[ioLoops];
+    }
+
+    /**
+     * Acepta conexiones en el hilo actual hasta que se llame a {@link #shutdown()}
+     */
+    void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IoLoop(i);
+            loops[i].start();
+        }
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        acceptSelector = Selector.open();
+        serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+        Logger.log("Servidor NIO iniciado en el puerto " + port + " con " + loops.length + " bucles de E/S");
+
+        try {
+            while (isRunning.get()) {
+                acceptSelector.select();
+                acceptSelector.selectedKeys().clear();
+                SocketChannel channel;
+                while ((channel = serverChannel.accept()) != null) {
+                    Logger.log("Nueva conexión desde: " + channel.socket().getInetAddress().getHostAddress());
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    IoLoop loop = loops[nextLoop];
+                    nextLoop = (nextLoop + 1) % loops.length;
+                    loop.register(channel);
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            // Cierre ordenado desde shutdown()
+        } catch (IOException e) {
+            if (isRunning.get()) {
+                throw e;
+            }
+        }
+    }
+
+    void shutdown() {
+        if (!isRunning.compareAndSet(true, false)) {
+            return;
+        }
+        try {
+            if (acceptSelector != null) {
+                acceptSelector.close();
+            }
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            Logger.error("Error cerrando el canal del servidor", e);
+        }
+        for (IoLoop loop : loops) {
+            if (loop != null) {
+                loop.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Bucle de eventos que atiende un subconjunto de las conexiones.
+     * Todo el acceso a los canales y a las claves ocurre en su propio hilo.
+     */
+    private final class IoLoop extends Thread {
+        private final Selector selector;
+        private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+        IoLoop(int index) throws IOException {
+            super("nio-io-" + index);
+            setDaemon(true);
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    NioSession session = new NioSession(channel, this);
+                    session.key = channel.register(selector, SelectionKey.OP_READ, session);
+                    if (!session.protocol.isAdmitted()) {
+                        Logger.log(Logger.Level.WARNING, "Conexión rechazada por el límite de conexiones: "
+                                + session.getClientAddress());
+                        session.sendMessage(ConnectionLimits.FULL_MESSAGE);
+                        session.disconnect();
+                    }
+                } catch (IOException e) {
+                    Logger.error("Error registrando conexión", e);
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        void execute(Runnable task) {
+            pendingTasks.add(task);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            execute(() -> {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof NioSession) {
+                        NioSession session = (NioSession) key.attachment();
+                        session.disconnect();
+                        closeQuietly(session.channel);
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    Logger.error("Error cerrando el selector", e);
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (selector.isOpen()) {
+                    selector.select();
+                    Runnable task;
+                    while ((task = pendingTasks.poll()) != null) {
+                        task.run();
+                    }
+                    if (!selector.isOpen()) {
+                        break;
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioSession session = (NioSession) key.attachment();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isReadable()) {
+                            session.onReadable(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            session.flush();
+                        }
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                // Cierre ordenado
+            } catch (IOException e) {
+                Logger.error("Error en el bucle de E/S " + getName(), e);
+            }
+        }
+    }
+
+    /**
+     * Conexión no bloqueante con sus propios búferes de lectura y escritura
+     */
+    private final class NioSession implements ClientSession {
+        private final SocketChannel channel;
+        private final IoLoop loop;
+        private final String address;
+        private final ProtocolHandler protocol;
+        private final SerialExecutor commands;
+        private final OutboundQueue outbound = OutboundQueue.fromConfig();
+        // Frames que se están escribiendo con una sola llamada (escritura agrupada);
+        // solo los usa el hilo del bucle
+        private final ByteBuffer[] pending = new ByteBuffer[MAX_GATHER];
+        private int pendingStart;
+        private int pendingEnd;
+        private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+        private final AtomicBoolean isOpen = new AtomicBoolean(true);
+        // Bytes recibidos aún sin procesar; solo los usa el hilo del bucle
+        private byte[] lineBuffer = new byte[256];
+        private int lineLength;
+        private int scanFrom;
+        private volatile int mode = MODE_UNKNOWN;
+        private volatile boolean closeAfterFlush;
+        // Sin OP_READ porque hay demasiados comandos sin ejecutar
+        private volatile boolean readPaused;
+        SelectionKey key;
+
+        NioSession(SocketChannel channel, IoLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+            this.address = channel.socket().getInetAddress().getHostAddress();
+            this.protocol = new ProtocolHandler(chatServer, this, false);
+            // Hasta el login los comandos (hash de la contraseña incluido) van a los hilos de autenticación
+            Executor login = AuthExecutor.loginExecutor(workers);
+            this.commands = new SerialExecutor(task -> (protocol.isLoggedIn() ? workers : login).execute(task),
+                    this::commandRejected);
+        }
+
+        // Se ejecuta en el hilo del bucle
+        void onReadable(ByteBuffer buffer) {
+            int read;
+            try {
+                buffer.clear();
+                read = channel.read(buffer);
+            } catch (IOException e) {
+                read = -1;
+            }
+            if (read < 0) {
+                key.cancel();
+                closeQuietly(channel);
+                commands.execute(this::disconnect);
+                return;
+            }
+            buffer.flip();
+            if (lineLength + buffer.remaining() > lineBuffer.length) {
+                if (lineLength + buffer.remaining() > ServerConfig.MAX_LINE_BYTES + READ_BUFFER_SIZE + 16) {
+                    tooLong();
+                    return;
+                }
+                lineBuffer = Arrays.copyOf(lineBuffer, Math.max(lineBuffer.length * 2, lineLength + buffer.remaining()));
+            }
+            buffer.get(lineBuffer, lineLength, buffer.remaining());
+            lineLength += read;
+            try {
+                int consumed = mode == MODE_BINARY ? readFrames() : readLines();
+                if (consumed > 0) {
+                    System.arraycopy(lineBuffer, consumed, lineBuffer, 0, lineLength - consumed);
+                    lineLength -= consumed;
+                    scanFrom = Math.max(0, scanFrom - consumed);
+                }
+            } catch (IOException e) {
+                Logger.log("Frame inválido, cerrando conexión: " + address + " (" + e.getMessage() + ")");
+                closeNow();
+                return;
+            }
+            if (mode == MODE_TEXT && lineLength > ServerConfig.MAX_LINE_BYTES) {
+                tooLong();
+                return;
+            }
+            if (commands.size() >= ServerConfig.NIO_MAX_PENDING_COMMANDS && key.isValid()) {
+                // El cliente envía más rápido de lo que se ejecuta: deja de leer hasta que baje la cola
+                readPaused = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                Metrics.NIO_READ_PAUSED.inc();
+                // Si los trabajadores ya la vaciaron antes de ver readPaused nadie volvería a activar la lectura
+                resumeReadingIfDrained();
+            }
+        }
+
+        // Se ejecuta en el hilo del bucle
+        private void resumeReadingIfDrained() {
+            if (readPaused && key.isValid() && commands.size() <= ServerConfig.NIO_MAX_PENDING_COMMANDS / 2) {
+                readPaused = false;
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+
+        // Tras cada comando, en el trabajador
+        private void commandDone() {
+            if (readPaused && commands.size() <= ServerConfig.NIO_MAX_PENDING_COMMANDS / 2) {
+                loop.execute(this::resumeReadingIfDrained);
+            }
+        }
+
+        // El pool no admite más tareas: se cierra solo esta conexión
+        private void commandRejected(RejectedExecutionException e) {
+            Logger.log(Logger.Level.WARNING, "Comandos rechazados por el pool, cerrando conexión: "
+                    + getClientAddress() + " (" + e.getMessage() + ")");
+            disconnect();
+        }
+
+        // Líneas completas terminadas en '\n'; devuelve los bytes consumidos
+        private int readLines() {
+            if (mode == MODE_UNKNOWN) {
+                if (lineBuffer[0] == (byte) BinaryProtocol.MAGIC) {
+                    return negotiateBinary();
+                }
+                mode = MODE_TEXT;
+            }
+            int start = 0;
+            for (int i = scanFrom; i < lineLength; i++) {
+                if (lineBuffer[i] == '\n') {
+                    int end = i > start && lineBuffer[i - 1] == '\r' ? i - 1 : i;
+                    // El buffer se reutiliza: el comando viaja al trabajador con su propia copia
+                    byte[] line = Arrays.copyOfRange(lineBuffer, start, end);
+                    commands.execute(() -> handleCommand(BinaryProtocol.OP_RAW, line));
+                    start = i + 1;
+                }
+            }
+            scanFrom = lineLength;
+            return start;
+        }
+
+        // Primer contacto de un cliente binario: MAGIC y versión
+        private int negotiateBinary() {
+            if (lineLength < 2) {
+                return 0;
+            }
+            mode = MODE_BINARY;
+            int version = Math.min(lineBuffer[1] & 0xFF, BinaryProtocol.VERSION);
+            sendFrame(Frame.binaryHandshake(version));
+            System.arraycopy(lineBuffer, 2, lineBuffer, 0, lineLength - 2);
+            lineLength -= 2;
+            try {
+                return readFrames();
+            } catch (IOException e) {
+                Logger.log("Frame inválido, cerrando conexión: " + address + " (" + e.getMessage() + ")");
+                closeNow();
+                return 0;
+            }
+        }
+
+        // Frames binarios completos; devuelve los bytes consumidos
+        private int readFrames() throws IOException {
+            int pos = 0;
+            int length;
+            while ((length = BinaryProtocol.frameLength(lineBuffer, pos, lineLength - pos, ServerConfig.MAX_LINE_BYTES)) > 0) {
+                int opcode = lineBuffer[pos] & 0xFF;
+                byte[] body = Arrays.copyOfRange(lineBuffer, BinaryProtocol.bodyOffset(lineBuffer, pos), pos + length);
+                commands.execute(() -> handleCommand(opcode, body));
+                pos += length;
+            }
+            return pos;
+        }
+
+        private void tooLong() {
+            Logger.log("Línea demasiado larga, cerrando conexión: " + address);
+            closeNow();
+        }
+
+        private void closeNow() {
+            key.cancel();
+            closeQuietly(channel);
+            lineLength = 0;
+            commands.execute(this::disconnect);
+        }
+
+        // Se ejecuta en el pool de trabajadores, en orden para esta conexión
+        private void handleCommand(int opcode, byte[] data) {
+            if (!isOpen.get()) {
+                return;
+            }
+            try {
+                if (!protocol.handleCommand(opcode, data, 0, data.length)) {
+                    disconnect();
+                }
+            } finally {
+                commandDone();
+            }
+        }
+
+        @Override
+        public void sendFrame(Frame frame) {
+            if (!isOpen.get()) {
+                return;
+            }
+            if (!outbound.offer(frame)) {
+                Logger.log(Logger.Level.WARNING, "Cliente lento desconectado: " + getUsername()
+                        + " (" + getClientAddress() + ") " + outbound.getStats());
+                dropSlowConsumer();
+                return;
+            }
+            scheduleFlush();
+        }
+
+        // Cierra sin enviar lo pendiente: el cliente no está leyendo
+        private void dropSlowConsumer() {
+            if (isOpen.compareAndSet(true, false)) {
+                protocol.connectionClosed();
+                outbound.close();
+                outbound.clear();
+                loop.execute(() -> {
+                    key.cancel();
+                    closeQuietly(channel);
+                    clearPending();
+                });
+            }
+        }
+
+        private void scheduleFlush() {
+            if (flushScheduled.compareAndSet(false, true)) {
+                loop.execute(this::flush);
+            }
+        }
+
+        // Se ejecuta en el hilo del bucle
+        void flush() {
+            flushScheduled.set(false);
+            if (!channel.isOpen() || !key.isValid()) {
+                outbound.clear();
+                clearPending();
+                return;
+            }
+            try {
+                while (true) {
+                    if (pendingStart == pendingEnd) {
+                        clearPending();
+                        // Se juntan los frames encolados para enviarlos en una sola escritura
+                        Frame frame;
+                        while (pendingEnd < pending.length && (frame = outbound.poll()) != null) {
+                            pending[pendingEnd++] = frame.buffer(mode == MODE_BINARY);
+                        }
+                        if (pendingEnd == 0) {
+                            break;
+                        }
+                    }
+                    channel.write(pending, pendingStart, pendingEnd - pendingStart);
+                    while (pendingStart < pendingEnd && !pending[pendingStart].hasRemaining()) {
+                        pending[pendingStart++] = null;
+                    }
+                    if (pendingStart < pendingEnd) {
+                        // Socket lleno: esperar a OP_WRITE
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                if (closeAfterFlush) {
+                    key.cancel();
+                    closeQuietly(channel);
+                }
+            } catch (IOException e) {
+                key.cancel();
+                closeQuietly(channel);
+                outbound.clear();
+                clearPending();
+                commands.execute(this::disconnect);
+            }
+        }
+
+        private void clearPending() {
+            Arrays.fill(pending, pendingStart, pendingEnd, null);
+            pendingStart = 0;
+            pendingEnd = 0;
+        }
+
+        @Override
+        public void disconnect() {
+            if (isOpen.compareAndSet(true, false)) {
+                protocol.connectionClosed();
+                // Cerrar cuando se hayan enviado las respuestas pendientes (p.ej. ERROR:)
+                closeAfterFlush = true;
+                flushScheduled.set(true);
+                loop.execute(this::flush);
+            }
+        }
+
+        @Override
+        public int getQueueDepth() {
+            return outbound.size();
+        }
+
+        @Override
+        public String getQueueStats() {
+            return outbound.getStats();
+        }
+
+        @Override
+        public boolean takePresenceResync() {
+            return outbound.takePresenceLost();
+        }
+
+        @Override
+        public String getUsername() {
+            return protocol.getUsername();
+        }
+
+        @Override
+        public String getClientAddress() {
+            return address + (mode == MODE_BINARY ? " (NIO, binario)" : " (NIO)");
+        }
+
+        @Override
+        public String getRemoteIp() {
+            return address;
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignorar: la conexión ya se está cerrando
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Mensajes privados pendientes de entregar, por destinatario. Un privado
+ * cuyo destinatario no está conectado se queda aquí hasta que el escritor en
+ * segundo plano lo guarda como no leído ({@link #stored}); si el destinatario
+ * entra antes, se le envía desde aquí al hacer login. Así la cola solo tiene
+ * lo que aún no está en el almacén y puede descartar los más antiguos de un
+ * usuario si pasa de maxPerUser, que se recuperan del almacén en el login.
+ */
+final class OfflineQueue {
+
+    /**
+     * Lo de un destinatario; cada entrada del mapa se modifica solo dentro de compute
+     */
+    private static final class Inbox {
+        final List<ChatMessage> pending = new ArrayList<>();
+        // Entregados desde la cola antes de guardarse: al guardarlos hay que marcarlos como leídos
+        final List<ChatMessage> deliveredUnsaved = new ArrayList<>();
+
+        boolean isEmpty() {
+            return pending.isEmpty() && deliveredUnsaved.isEmpty();
+        }
+    }
+
+    private final int maxPerUser;
+    private final ConcurrentHashMap<String, Inbox> inboxes = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger unsaved = new AtomicInteger();
+
+    OfflineQueue(int maxPerUser) {
+        this.maxPerUser = maxPerUser;
+    }
+
+    static OfflineQueue fromConfig() {
+        return new OfflineQueue(ServerConfig.OFFLINE_MAX_PER_USER);
+    }
+
+    /**
+     * Deja el mensaje pendiente, salvo que ya esté guardado: entonces el login lo lee del almacén
+     */
+    void add(ChatMessage message) {
+        inboxes.compute(message.getRecipient(), (recipient, inbox) -> {
+            if (message.isStored()) {
+                return inbox;
+            }
+            Inbox box = inbox == null ? new Inbox() : inbox;
+            box.pending.add(message);
+            size.incrementAndGet();
+            if (box.pending.size() > maxPerUser) {
+                box.pending.remove(0);
+                size.decrementAndGet();
+            }
+            return box;
+        });
+    }
+
+    /**
+     * Quita un mensaje concreto si sigue pendiente; false si ya se lo llevó un login
+     */
+    boolean remove(ChatMessage message) {
+        boolean[] removed = {false};
+        inboxes.computeIfPresent(message.getRecipient(), (recipient, inbox) -> {
+            removed[0] = inbox.pending.remove(message);
+            if (removed[0]) {
+                size.decrementAndGet();
+            }
+            return inbox.isEmpty() ? null : inbox;
+        });
+        return removed[0];
+    }
+
+    /**
+     * Saca todos los pendientes del usuario y los marca como entregados, así
+     * los que aún no se han guardado se guardan ya como leídos. Los que el
+     * escritor ya tenía entre manos se anotan para marcarlos al guardarse.
+     */
+    List<ChatMessage> take(String username) {
+        List<ChatMessage> taken = new ArrayList<>();
+        inboxes.computeIfPresent(username, (recipient, inbox) -> {
+            for (ChatMessage m : inbox.pending) {
+                m.markDelivered();
+                taken.add(m);
+                // Ya guardado: el login lo lee también del almacén y lo marca allí
+                if (!m.isStored()) {
+                    inbox.deliveredUnsaved.add(m);
+                    unsaved.incrementAndGet();
+                }
+            }
+            size.addAndGet(-inbox.pending.size());
+            inbox.pending.clear();
+            return inbox.isEmpty() ? null : inbox;
+        });
+        return taken;
+    }
+
+    /**
+     * Aviso del escritor cuando un privado queda guardado: deja de estar en la
+     * cola. Devuelve true si ya se había entregado desde aquí y por tanto hay
+     * que marcarlo como leído en el almacén. Acepta también la copia que se
+     * reescribe desde el fichero de desbordamiento.
+     */
+    boolean stored(ChatMessage message) {
+        boolean[] delivered = {false};
+        inboxes.computeIfPresent(message.getRecipient(), (recipient, inbox) -> {
+            if (removeSame(inbox.pending, message)) {
+                size.decrementAndGet();
+            } else if (removeSame(inbox.deliveredUnsaved, message)) {
+                unsaved.decrementAndGet();
+                delivered[0] = true;
+            }
+            return inbox.isEmpty() ? null : inbox;
+        });
+        return delivered[0];
+    }
+
+    private static boolean removeSame(List<ChatMessage> messages, ChatMessage message) {
+        for (Iterator<ChatMessage> it = messages.iterator(); it.hasNext(); ) {
+            if (it.next().sameAs(message)) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    String getStats() {
+        return "Pendientes sin conexión: mensajes=" + size.get() + " usuarios=" + inboxes.size()
+                + " entregadosSinGuardar=" + unsaved.get();
+    }
+}
@@ -0,0 +1,201 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cola acotada de frames pendientes de enviar a un cliente.
+ * Quien envía (broadcast, mensajes privados...) solo encola y nunca espera a
+ * la red; el hilo escritor de la conexión la vacía. Si el cliente no lee lo
+ * bastante rápido se aplica la política configurada.
+ */
+class OutboundQueue {
+
+    // Qué hacer cuando el cliente no consume sus mensajes a tiempo
+    enum Policy {
+        DROP_OLDEST,  // Descartar los mensajes más antiguos
+        COALESCE,     // Una lista de usuarios sustituye a los avisos de presencia pendientes; si se llena,
+                      // se descartan primero los avisos de presencia y luego los más antiguos
+        DISCONNECT    // Desconectar al cliente si lleva más de slowConsumerMs sin sacar nada de la cola
+                      // (hasta entonces, si se llena, se descartan los más antiguos)
+    }
+
+    private final int capacity;
+    private final Policy policy;
+    private final long slowConsumerNanos;
+    private final ArrayDeque<Frame> queue = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private boolean closed;
+    // Última vez que el escritor sacó un mensaje o que la cola dejó de estar vacía
+    private long lastProgress = System.nanoTime();
+
+    private int maxDepth;
+    private long dropped;
+    private long coalesced;
+    // Se descartó algún aviso de presencia: el cliente necesita la lista completa
+    private boolean presenceLost;
+
+    OutboundQueue(int capacity, Policy policy, long slowConsumerMs) {
+        this.capacity = capacity;
+        this.policy = policy;
+        this.slowConsumerNanos = TimeUnit.MILLISECONDS.toNanos(slowConsumerMs);
+    }
+
+    /**
+     * Cola con los parámetros de ServerConfig
+     */
+    static OutboundQueue fromConfig() {
+        return new OutboundQueue(ServerConfig.OUTBOUND_CAPACITY,
+                Policy.valueOf(ServerConfig.OUTBOUND_POLICY), ServerConfig.OUTBOUND_SLOW_CONSUMER_MS);
+    }
+
+    /**
+     * Encola un mensaje. Devuelve false si el cliente es demasiado lento y hay
+     * que desconectarlo.
+     */
+    boolean offer(Frame frame) {
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            if (closed) {
+                return true;
+            }
+            if (queue.isEmpty()) {
+                lastProgress = now;
+            } else if (policy == Policy.DISCONNECT && now - lastProgress > slowConsumerNanos) {
+                return false;
+            }
+            if (policy == Policy.COALESCE && frame.isPresenceSnapshot()) {
+                removePresence();
+            }
+            while (queue.size() >= capacity) {
+                if (policy == Policy.COALESCE && removePresence()) {
+                    presenceLost = true;
+                    continue;
+                }
+                if (queue.pollFirst().isPresence()) {
+                    presenceLost = true;
+                }
+                dropped++;
+                Metrics.OUTBOUND_DROPPED.inc();
+            }
+            if (frame.isPresenceSnapshot()) {
+                presenceLost = false;
+            }
+            queue.addLast(frame);
+            maxDepth = Math.max(maxDepth, queue.size());
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Quita los avisos de presencia pendientes; devuelve true si había alguno
+    private boolean removePresence() {
+        boolean removed = false;
+        Iterator<Frame> it = queue.iterator();
+        while (it.hasNext()) {
+            if (it.next().isPresence()) {
+                it.remove();
+                coalesced++;
+                Metrics.OUTBOUND_DROPPED.inc();
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Devuelve si se descartó algún aviso de presencia y olvida la marca
+     */
+    boolean takePresenceLost() {
+        lock.lock();
+        try {
+            boolean lost = presenceLost;
+            presenceLost = false;
+            return lost;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Siguiente mensaje sin esperar, o null si no hay ninguno
+     */
+    Frame poll() {
+        lock.lock();
+        try {
+            Frame frame = queue.pollFirst();
+            if (frame != null) {
+                lastProgress = System.nanoTime();
+            }
+            return frame;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Espera al siguiente mensaje. Devuelve null cuando la cola está cerrada y vacía.
+     */
+    Frame take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (queue.isEmpty()) {
+                if (closed) {
+                    return null;
+                }
+                notEmpty.await();
+            }
+            lastProgress = System.nanoTime();
+            return queue.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * No admite más mensajes; el escritor termina al vaciar los pendientes
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void clear() {
+        lock.lock();
+        try {
+            queue.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    String getStats() {
+        lock.lock();
+        try {
+            return "cola=" + queue.size() + " máx=" + maxDepth + " descartados=" + dropped + " agrupados=" + coalesced;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package server;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Base64;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Hash de contraseñas con PBKDF2-HMAC-SHA256. En password_hash se guarda el
+ * algoritmo y las iteraciones junto al hash ("pbkdf2-sha256$iteraciones$hash"),
+ * así se pueden subir las iteraciones sin invalidar las contraseñas ya
+ * guardadas: se recalculan al hacer login. Un hash sin prefijo es del formato
+ * antiguo (un solo SHA-256 de salt + contraseña).
+ */
+final class PasswordHasher {
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final String PREFIX = "pbkdf2-sha256$";
+    private static final int KEY_BITS = 256;
+
+    private static final Metrics.Histogram HASH_TIME = Metrics.histogram("chat_auth_hash_seconds",
+            "Tiempo en calcular el hash de una contraseña", null, null);
+
+    private PasswordHasher() {
+    }
+
+    static String hash(String password, String salt, int iterations) {
+        byte[] hash = pbkdf2(password, Base64.getDecoder().decode(salt), iterations);
+        return PREFIX + iterations + "$" + Base64.getEncoder().encodeToString(hash);
+    }
+
+    /**
+     * Comprueba la contraseña contra el hash guardado, en el formato que tenga
+     */
+    static boolean verify(String password, String salt, String stored) {
+        byte[] saltBytes = Base64.getDecoder().decode(salt);
+        byte[] expected;
+        byte[] actual;
+        if (stored.startsWith(PREFIX)) {
+            int sep = stored.indexOf('$', PREFIX.length());
+            if (sep < 0) {
+                return false;
+            }
+            int iterations = Integer.parseInt(stored.substring(PREFIX.length(), sep));
+            expected = Base64.getDecoder().decode(stored.substring(sep + 1));
+            actual = pbkdf2(password, saltBytes, iterations);
+        } else {
+            expected = Base64.getDecoder().decode(stored);
+            actual = legacySha256(password, saltBytes);
+        }
+        // Comparación en tiempo constante
+        return MessageDigest.isEqual(expected, actual);
+    }
+
+    /**
+     * true si el hash es del formato antiguo o usa otras iteraciones que las configuradas
+     */
+    static boolean needsRehash(String stored, int iterations) {
+        return !stored.startsWith(PREFIX + iterations + "$");
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        long start = System.nanoTime();
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, KEY_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            Logger.error("Error en el algoritmo de hash", e);
+            throw new IllegalStateException("Error en el algoritmo de hash", e);
+        } finally {
+            spec.clearPassword();
+            HASH_TIME.observeSince(start);
+        }
+    }
+
+    private static byte[] legacySha256(String password, byte[] salt) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            return digest.digest(password.getBytes());
+        } catch (GeneralSecurityException e) {
+            Logger.error("Error en el algoritmo de hash", e);
+            throw new IllegalStateException("Error en el algoritmo de hash", e);
+        }
+    }
+}
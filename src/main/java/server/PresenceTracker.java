@@ -0,0 +1,133 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Usuarios conectados y avisos de presencia a los clientes.
+ * Al hacer login el cliente recibe la lista completa (USERLIST:) y después
+ * solo los cambios (PRESENCE:+ana,-bob). Los cambios de una ventana de
+ * windowMs se agrupan en un solo aviso, así en una ola de reconexiones cada
+ * cliente recibe unos pocos avisos pequeños en lugar de la lista entera por
+ * cada login. Si la cola de salida de un cliente descartó algún aviso, el
+ * siguiente le llega como lista completa.
+ */
+final class PresenceTracker {
+    private final SessionRegistry registry;
+    private final long windowMs;
+    private final ScheduledExecutorService scheduler;
+    private final Object lock = new Object();
+
+    // Protegido por lock
+    private final Set<String> online = new LinkedHashSet<>();
+    // Usuarios que han cambiado desde el último aviso, con su estado al empezar la ventana
+    private final Map<String, Boolean> changed = new LinkedHashMap<>();
+    private boolean flushScheduled;
+
+    PresenceTracker(SessionRegistry registry, long windowMs) {
+        this.registry = registry;
+        this.windowMs = windowMs;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "presence");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    static PresenceTracker fromConfig(SessionRegistry registry) {
+        return new PresenceTracker(registry, ServerConfig.PRESENCE_WINDOW_MS);
+    }
+
+    /**
+     * Usuario con sesión iniciada: recibe la lista completa y los demás lo verán en el próximo aviso
+     */
+    void joined(String username, ClientSession session) {
+        synchronized (lock) {
+            online.add(username);
+            changed.putIfAbsent(username, Boolean.FALSE);
+            // Dentro del lock y por el hilo de su shard: ningún aviso posterior a la lista puede llegar antes que ella
+            registry.send(username, session, snapshotFrame());
+            Metrics.PRESENCE_SNAPSHOTS.inc();
+            scheduleFlush();
+        }
+    }
+
+    void left(String username) {
+        synchronized (lock) {
+            if (online.remove(username)) {
+                changed.putIfAbsent(username, Boolean.TRUE);
+                scheduleFlush();
+            }
+        }
+    }
+
+    /**
+     * Usuarios conectados en este momento, sin consultar la base de datos
+     */
+    List<String> snapshot() {
+        synchronized (lock) {
+            return new ArrayList<>(online);
+        }
+    }
+
+    private void scheduleFlush() {
+        if (windowMs <= 0) {
+            flush();
+        } else if (!flushScheduled) {
+            flushScheduled = true;
+            scheduler.schedule(this::flush, windowMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Envía a todos los conectados los cambios de la ventana; quien entra y
+     * sale dentro de la misma ventana no genera aviso
+     */
+    private void flush() {
+        synchronized (lock) {
+            flushScheduled = false;
+            StringBuilder delta = new StringBuilder("PRESENCE:");
+            int changes = 0;
+            for (Map.Entry<String, Boolean> e : changed.entrySet()) {
+                boolean now = online.contains(e.getKey());
+                if (now != e.getValue()) {
+                    if (changes++ > 0) {
+                        delta.append(',');
+                    }
+                    delta.append(now ? '+' : '-').append(e.getKey());
+                }
+            }
+            changed.clear();
+            if (changes == 0) {
+                return;
+            }
+            Frame frame = Frame.of(delta.toString());
+            // La lista se prepara ya: los shards la usan después, con el estado de este aviso
+            Frame snapshot = snapshotFrame();
+            registry.fanOut((username, session) -> {
+                if (session.takePresenceResync()) {
+                    session.sendFrame(snapshot);
+                    Metrics.PRESENCE_SNAPSHOTS.inc();
+                } else {
+                    session.sendFrame(frame);
+                }
+            });
+            Metrics.PRESENCE_DELTAS.inc();
+        }
+    }
+
+    private Frame snapshotFrame() {
+        return Frame.of("USERLIST:" + String.join(",", online));
+    }
+
+    void shutdown() {
+        scheduler.shutdownNow();
+    }
+}
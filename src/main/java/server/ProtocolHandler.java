@@ -0,0 +1,427 @@
+package server;
+
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Lógica del protocolo (LOGIN:, MESSAGE:, PRIVATE:...) compartida
+ * por todos los tipos de conexión. No hace E/S directamente: recibe las
+ * comandos ya leídos y responde a través de la {@link ClientSession}.
+ */
+class ProtocolHandler {
+    static final String RECORD_SEPARATOR = "\u001E";
+
+    private final ChatServer server;
+    private final ClientSession session;
+    private final boolean isSecure;
+    private volatile String username;
+    private volatile boolean loggedIn;
+    // Plaza en ConnectionLimits; la previa al login se deja una sola vez (login o cierre)
+    private final boolean admitted;
+    private final AtomicBoolean preAuthSlot;
+    // IP con la que se ocupó la plaza, la misma para liberarla
+    private final String remoteIp;
+
+    ProtocolHandler(ChatServer server, ClientSession session, boolean isSecure) {
+        this.server = server;
+        this.session = session;
+        this.isSecure = isSecure;
+        this.remoteIp = session.getRemoteIp();
+        this.admitted = ConnectionLimits.tryOpen(remoteIp);
+        this.preAuthSlot = new AtomicBoolean(admitted);
+        Metrics.CONNECTIONS_OPENED.inc();
+    }
+
+    // Qué hace cada comando una vez iniciada la sesión, indexado por opcode
+    private interface CommandHandler {
+        boolean handle(ProtocolHandler handler, Command command);
+    }
+
+    private static final CommandHandler[] HANDLERS = new CommandHandler[BinaryProtocol.OP_ROOM_MESSAGE + 1];
+
+    // Límite de ritmo que gasta cada comando: mensajes o consultas (historial, usuarios y salas)
+    private static final RateLimiter USER_MESSAGES = new RateLimiter("user_messages",
+            ServerConfig.LIMIT_MESSAGES_PER_SEC, ServerConfig.LIMIT_MESSAGE_BURST);
+    private static final RateLimiter IP_MESSAGES = new RateLimiter("ip_messages",
+            ServerConfig.LIMIT_IP_MESSAGES_PER_SEC, ServerConfig.LIMIT_IP_MESSAGE_BURST);
+    private static final RateLimiter USER_QUERIES = new RateLimiter("user_queries",
+            ServerConfig.LIMIT_QUERIES_PER_SEC, ServerConfig.LIMIT_QUERY_BURST);
+    private static final RateLimiter IP_QUERIES = new RateLimiter("ip_queries",
+            ServerConfig.LIMIT_IP_QUERIES_PER_SEC, ServerConfig.LIMIT_IP_QUERY_BURST);
+    private static final RateLimiter[] USER_LIMITS = new RateLimiter[HANDLERS.length];
+    private static final RateLimiter[] IP_LIMITS = new RateLimiter[HANDLERS.length];
+
+    static {
+        HANDLERS[BinaryProtocol.OP_REGISTER] = (h, c) -> h.handleRegister(c);
+        HANDLERS[BinaryProtocol.OP_MESSAGE] = (h, c) -> h.handleGeneralMessage(c);
+        HANDLERS[BinaryProtocol.OP_PRIVATE] = (h, c) -> h.handlePrivateMessage(c);
+        HANDLERS[BinaryProtocol.OP_GET_USERS] = (h, c) -> h.handleGetUsers();
+        HANDLERS[BinaryProtocol.OP_LOGOUT] = (h, c) -> false;
+        HANDLERS[BinaryProtocol.OP_GET_PRIVATE_HISTORY] = (h, c) -> h.handlePrivateHistory(c);
+        HANDLERS[BinaryProtocol.OP_GET_HISTORY_PAGE] = (h, c) -> h.handleHistoryPage(c);
+        HANDLERS[BinaryProtocol.OP_GET_HISTORY_SINCE] = (h, c) -> h.handleHistorySince(c);
+        HANDLERS[BinaryProtocol.OP_JOIN_ROOM] = (h, c) -> h.handleJoinRoom(c);
+        HANDLERS[BinaryProtocol.OP_LEAVE_ROOM] = (h, c) -> h.handleLeaveRoom(c);
+        HANDLERS[BinaryProtocol.OP_ROOM_MESSAGE] = (h, c) -> h.handleRoomMessage(c);
+
+        for (int op : new int[]{BinaryProtocol.OP_MESSAGE, BinaryProtocol.OP_PRIVATE, BinaryProtocol.OP_ROOM_MESSAGE}) {
+            USER_LIMITS[op] = USER_MESSAGES;
+            IP_LIMITS[op] = IP_MESSAGES;
+        }
+        for (int op : new int[]{BinaryProtocol.OP_GET_USERS, BinaryProtocol.OP_GET_PRIVATE_HISTORY,
+                BinaryProtocol.OP_GET_HISTORY_PAGE, BinaryProtocol.OP_GET_HISTORY_SINCE,
+                BinaryProtocol.OP_JOIN_ROOM, BinaryProtocol.OP_LEAVE_ROOM}) {
+            USER_LIMITS[op] = USER_QUERIES;
+            IP_LIMITS[op] = IP_QUERIES;
+        }
+    }
+
+    // Cada conexión procesa sus comandos de uno en uno: se reutiliza siempre el mismo
+    private final Command command = new Command();
+
+    /**
+     * Procesa un comando recibido del cliente: el cuerpo de un frame binario
+     * con su opcode, o una línea de texto completa con {@link BinaryProtocol#OP_RAW}.
+     * Los bytes solo se leen durante la llamada.
+     * Devuelve false cuando la conexión debe cerrarse.
+     */
+    boolean handleCommand(int opcode, byte[] buf, int off, int len) {
+        if (!admitted) {
+            session.sendMessage(ConnectionLimits.FULL_MESSAGE);
+            return false;
+        }
+        CommandDecoder.decodeFrame(opcode, buf, off, len, command);
+        if (!loggedIn) {
+            return handleInitialMessage(command);
+        }
+        return handleMessage(command);
+    }
+
+    private boolean handleInitialMessage(Command login) {
+        // Permitir registro antes del login
+        if (login.opcode() == BinaryProtocol.OP_REGISTER) {
+            handleRegister(login);
+            return false;
+        }
+
+        // Continuar con el proceso de login
+        if (login.opcode() != BinaryProtocol.OP_LOGIN) {
+            session.sendMessage("ERROR: Formato de login inválido");
+            return false;
+        }
+
+        // Obtener username y password del mensaje de login (formato LOGIN:username:password)
+        if (login.fieldCount() != 2) {
+            session.sendMessage("ERROR: Formato de login inválido (debe incluir usuario y contraseña)");
+            return false;
+        }
+
+        String user = login.field(0);
+        String password = login.field(1);
+
+        Logger.log("Procesando mensaje: " + user);
+
+        if (!LoginGate.enter()) {
+            Metrics.LOGINS_REJECTED.inc();
+            session.sendMessage("ERROR: Servidor ocupado, inténtalo más tarde");
+            return false;
+        }
+        try {
+            // Verificar credenciales usando UserManager
+            boolean authenticated;
+            try {
+                authenticated = UserManager.authenticateUser(user, password);
+            } catch (RejectedExecutionException e) {
+                Metrics.LOGINS_REJECTED.inc();
+                session.sendMessage("ERROR: Servidor ocupado, inténtalo más tarde");
+                return false;
+            }
+            if (!authenticated) {
+                Metrics.LOGINS_FAILED.inc();
+                session.sendMessage("ERROR: Usuario o contraseña incorrectos");
+                return false;
+            }
+
+            // El nombre solo se asigna si el registro en el servidor tiene éxito,
+            // así un intento duplicado no puede desconectar la sesión existente
+            if (!server.addClient(user, session)) {
+                Metrics.LOGINS_REJECTED.inc();
+                session.sendMessage("ERROR: Usuario ya conectado");
+                return false;
+            }
+        } finally {
+            LoginGate.exit();
+        }
+        username = user;
+        loggedIn = true;
+        if (preAuthSlot.compareAndSet(true, false)) {
+            ConnectionLimits.leavePreAuth();
+        }
+        Metrics.LOGINS_OK.inc();
+
+        session.sendMessage("OK: Conectado como " + username);
+        Logger.log("Cliente conectado: " + username + (isSecure ? " (conexión segura)" : ""));
+
+        // Solo los privados que recibió sin conexión; el historial lo pide el cliente por páginas
+        server.deliverPending(username, session);
+        return true;
+    }
+
+    private boolean handleMessage(Command command) {
+        int opcode = command.opcode();
+        CommandHandler handler = opcode >= 0 && opcode < HANDLERS.length ? HANDLERS[opcode] : null;
+        if (handler == null) {
+            session.sendMessage("ERROR: Comando no reconocido");
+            return true;
+        }
+        RateLimiter userLimit = USER_LIMITS[opcode];
+        if (userLimit != null) {
+            // Primero el del usuario, para que quien se pasa no gaste el cupo de los demás de su IP;
+            // si lo rechaza la IP se le devuelve la ficha, la petición no se ha atendido
+            boolean allowed = userLimit.tryAcquire(username);
+            if (allowed && !IP_LIMITS[opcode].tryAcquire(remoteIp)) {
+                userLimit.refund(username);
+                allowed = false;
+            }
+            if (!allowed) {
+                session.sendMessage("ERROR: Demasiadas peticiones, espera un momento");
+                return true;
+            }
+        }
+        try {
+            return handler.handle(this, command);
+        } catch (Exception e) {
+            Logger.error("Error procesando mensaje", e);
+            session.sendMessage("ERROR: Error procesando mensaje");
+        }
+        return true;
+    }
+
+    private boolean handlePrivateHistory(Command command) {
+        String otherUser = command.field(0);
+        List<String> historial = MessageManager.getPrivateHistory(username, otherUser);
+        StringBuilder sb = new StringBuilder();
+        for (String msg : historial) {
+            sb.append(msg).append("\n");
+        }
+        session.sendMessage("HISTORIAL_PRIVADO:" + sb.toString());
+        return true;
+    }
+
+    // Formato: GET_HISTORY_SINCE:otroUsuario:ultimoId (otroUsuario vacío = general)
+    private boolean handleHistorySince(Command command) {
+        long lastId;
+        try {
+            lastId = command.longField(1);
+        } catch (NumberFormatException e) {
+            session.sendMessage("ERROR: Formato de petición de historial inválido");
+            return true;
+        }
+        String otherUser = command.field(0);
+        List<ChatMessage> historial = MessageManager.getHistorySince(username, otherUser, lastId);
+        // Un único frame de una línea: los registros se separan con RS (0x1E)
+        session.sendMessage("HISTORIAL_NUEVO:" + otherUser + ":" + formatRecords(historial));
+        return true;
+    }
+
+    // Formato: GET_HISTORY_PAGE:otroUsuario:token:limite (token vacío = página más reciente)
+    private boolean handleHistoryPage(Command command) {
+        if (command.fieldCount() != 3) {
+            session.sendMessage("ERROR: Formato de petición de historial inválido");
+            return true;
+        }
+        String otherUser = command.field(0);
+        String token = command.field(1);
+        MessageManager.HistoryPage page;
+        try {
+            int limit = command.intField(2);
+            page = MessageManager.getHistoryPage(username, otherUser, token, limit);
+        } catch (IllegalArgumentException e) {
+            session.sendMessage("ERROR: Formato de petición de historial inválido");
+            return true;
+        }
+        session.sendMessage("HISTORIAL_PAGINA:" + otherUser + ":"
+                + (page.hasMore() ? page.getOlderToken() : "") + ":"
+                + formatRecords(page.getMessages()));
+        return true;
+    }
+
+    // Registros "id|[fecha] texto" separados por RS, para que el cliente avance su cursor
+    private String formatRecords(List<ChatMessage> messages) {
+        StringBuilder sb = new StringBuilder();
+        for (ChatMessage m : messages) {
+            if (sb.length() > 0) {
+                sb.append(RECORD_SEPARATOR);
+            }
+            sb.append(m.getId()).append('|').append(MessageManager.formatForUser(m, username));
+        }
+        return sb.toString();
+    }
+
+    private boolean handleRegister(Command command) {
+        if (command.fieldCount() != 2) {
+            session.sendMessage("ERROR: Formato de registro inválido");
+            return true;
+        }
+        String newUser = command.field(0);
+        String newPass = command.field(1);
+        boolean ok;
+        try {
+            ok = UserManager.registerUser(newUser, newPass);
+        } catch (RejectedExecutionException e) {
+            session.sendMessage("ERROR: Servidor ocupado, inténtalo más tarde");
+            return true;
+        }
+        if (ok) {
+            session.sendMessage("OK: Usuario registrado correctamente");
+        } else {
+            session.sendMessage("ERROR: Usuario ya existe o error en el registro");
+        }
+        return true;
+    }
+
+    private boolean handleGeneralMessage(Command command) {
+        ChatMessage chatMessage = ChatMessage.create(username, null, command.field(0));
+
+        // Guardar el mensaje original (sin cifrar) en la base de datos, en segundo plano
+        if (!MessageManager.saveMessage(chatMessage)) {
+            session.sendMessage("ERROR: Servidor ocupado, mensaje no enviado");
+            return true;
+        }
+
+        Metrics.MESSAGES_GENERAL.inc();
+        // Enviar el mensaje a todos los clientes, con fecha para que lo puedan mostrar en su sitio
+        server.broadcast("GENERAL:" + MessageManager.formatForUser(chatMessage, null), username);
+        return true;
+    }
+
+    private boolean handlePrivateMessage(Command command) {
+        if (command.fieldCount() != 2) {
+            session.sendMessage("ERROR: Formato de mensaje privado inválido");
+            return true;
+        }
+
+        String recipient = command.field(0);
+        String content = command.field(1);
+        // Un destinatario inexistente no se puede guardar (clave foránea) y se descartaría más tarde
+        if (!server.isConnected(recipient) && !UserManager.userExists(recipient)) {
+            session.sendMessage("ERROR: El usuario " + recipient + " no existe");
+            return true;
+        }
+
+        ChatMessage chatMessage = ChatMessage.create(username, recipient, content);
+        // Con el destinatario conectado se guarda ya como leído; si no, queda pendiente para su login
+        if (server.isConnected(recipient)) {
+            chatMessage.markDelivered();
+        }
+
+        // Guardar el mensaje sin cifrar en la base de datos, en segundo plano
+        if (!MessageManager.saveMessage(chatMessage)) {
+            session.sendMessage("ERROR: Servidor ocupado, mensaje no enviado");
+            return true;
+        }
+
+        Metrics.MESSAGES_PRIVATE.inc();
+        // Enviar el mensaje al destinatario
+        server.sendPrivateMessage(chatMessage);
+        return true;
+    }
+
+    // Formato: JOIN_ROOM:sala. La respuesta es el historial reciente de la sala
+    private boolean handleJoinRoom(Command command) {
+        String room = command.field(0);
+        if (!RoomRegistry.isValidName(room)) {
+            session.sendMessage("ERROR: Nombre de sala inválido");
+            return true;
+        }
+        if (!server.joinRoom(room, username)) {
+            session.sendMessage("ERROR: Ya estás en el máximo de salas (" + ServerConfig.ROOMS_MAX_PER_USER + ")");
+            return true;
+        }
+        List<ChatMessage> historial = MessageManager.getRoomHistory(room, ServerConfig.ROOM_HISTORY_LIMIT);
+        session.sendMessage("HISTORIAL_SALA:" + room + ":" + formatRecords(historial));
+        return true;
+    }
+
+    private boolean handleLeaveRoom(Command command) {
+        String room = command.field(0);
+        if (server.leaveRoom(room, username)) {
+            session.sendMessage("OK: Has salido de la sala " + room);
+        } else {
+            session.sendMessage("ERROR: No estás en la sala " + room);
+        }
+        return true;
+    }
+
+    // Formato: ROOM_MESSAGE:sala:texto. Solo pueden escribir los miembros de la sala
+    private boolean handleRoomMessage(Command command) {
+        if (command.fieldCount() != 2) {
+            session.sendMessage("ERROR: Formato de mensaje de sala inválido");
+            return true;
+        }
+        String room = command.field(0);
+        if (!server.isInRoom(room, username)) {
+            session.sendMessage("ERROR: No estás en la sala " + room);
+            return true;
+        }
+
+        ChatMessage chatMessage = ChatMessage.createInRoom(username, room, command.field(1));
+        if (!MessageManager.saveMessage(chatMessage)) {
+            session.sendMessage("ERROR: Servidor ocupado, mensaje no enviado");
+            return true;
+        }
+
+        Metrics.MESSAGES_ROOM.inc();
+        server.sendRoomMessage(chatMessage);
+        return true;
+    }
+
+    private boolean handleGetUsers() {
+        // Usuarios conectados menos el actual y admin; los cambios llegan después con PRESENCE:
+        List<String> users = server.getConnectedUsers();
+        users.remove(username);
+        users.remove("admin");
+        session.sendMessage("USERLIST:" + String.join(",", users));
+        return true;
+    }
+
+    /**
+     * Libera el nombre de usuario cuando la conexión se cierra
+     */
+    void connectionClosed() {
+        // Cada conexión lo llama una sola vez
+        Metrics.CONNECTIONS_CLOSED.inc();
+        if (admitted) {
+            if (preAuthSlot.getAndSet(false)) {
+                ConnectionLimits.leavePreAuth();
+            }
+            ConnectionLimits.closed(remoteIp);
+        }
+        if (loggedIn) {
+            loggedIn = false;
+            server.removeClient(username, session);
+            Logger.log("Cliente desconectado: " + username);
+        }
+    }
+
+    String getUsername() {
+        return username;
+    }
+
+    boolean isLoggedIn() {
+        return loggedIn;
+    }
+
+    /**
+     * false si la conexión no cabe en ConnectionLimits y hay que cerrarla
+     */
+    boolean isAdmitted() {
+        return admitted;
+    }
+
+    static String getLimitStats() {
+        return "Límites de ritmo (claves): " + USER_MESSAGES.getStats() + " " + IP_MESSAGES.getStats() + " "
+                + USER_QUERIES.getStats() + " " + IP_QUERIES.getStats();
+    }
+}
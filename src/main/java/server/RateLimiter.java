@@ -0,0 +1,105 @@
+package server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Límite de ritmo por clave (usuario o IP) con cubo de fichas: admite ráfagas
+ * de hasta burst peticiones y después perSecond por segundo. Cada cubo es un
+ * solo AtomicLong con el instante en que volvería a estar lleno (algoritmo
+ * GCRA), así comprobar y gastar una ficha es un CAS, sin locks.
+ */
+final class RateLimiter {
+    private static final int MIN_SWEEP_SIZE = 1024;
+
+    private final String name;
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+    private volatile int sweepAt = MIN_SWEEP_SIZE;
+    private final Metrics.Counter rejected;
+
+    /**
+     * Con perSecond <= 0 no limita nada
+     */
+    RateLimiter(String name, double perSecond, int burst) {
+        this.name = name;
+        this.intervalNanos = perSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / perSecond) : 0;
+        this.toleranceNanos = intervalNanos * Math.max(0, burst - 1);
+        this.rejected = Metrics.counter("chat_rate_limited_total",
+                "Peticiones rechazadas por límite de ritmo", "limit", name);
+    }
+
+    /**
+     * Gasta una ficha de la clave; false si no queda ninguna
+     */
+    boolean tryAcquire(String key) {
+        if (intervalNanos == 0) {
+            return true;
+        }
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(Long.MIN_VALUE));
+            maybeSweep();
+        }
+        long now = System.nanoTime();
+        while (true) {
+            long full = bucket.get();
+            // Long.MIN_VALUE: cubo nuevo, lleno
+            long start = full == Long.MIN_VALUE || full - now < 0 ? now : full;
+            if (start - now > toleranceNanos) {
+                rejected.inc();
+                return false;
+            }
+            if (bucket.compareAndSet(full, start + intervalNanos)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Devuelve la ficha de un tryAcquire que al final no se usó (p. ej. porque
+     * otro límite rechazó la petición)
+     */
+    void refund(String key) {
+        if (intervalNanos == 0) {
+            return;
+        }
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        while (true) {
+            long full = bucket.get();
+            // Ya lleno: no hay nada que devolver
+            if (full == Long.MIN_VALUE || full - now <= 0) {
+                return;
+            }
+            if (bucket.compareAndSet(full, full - intervalNanos)) {
+                return;
+            }
+        }
+    }
+
+    // Quita los cubos que ya se han llenado de nuevo: equivalen a no tener ninguno
+    private void maybeSweep() {
+        if (buckets.size() < sweepAt || !sweeping.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long now = System.nanoTime();
+            buckets.values().removeIf(b -> b.get() == Long.MIN_VALUE || b.get() - now < 0);
+            sweepAt = Math.max(MIN_SWEEP_SIZE, buckets.size() * 2);
+        } finally {
+            sweeping.set(false);
+        }
+    }
+
+    String getStats() {
+        return name + "=" + buckets.size();
+    }
+}
@@ -0,0 +1,282 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caché en memoria de los últimos mensajes de cada conversación.
+ * Cada conversación (chat general, sala o par de usuarios) guarda sus
+ * mensajes más recientes en un buffer circular acotado. Un buffer siempre contiene un sufijo contiguo de la
+ * conversación, así que sirve cualquier ventana de los últimos N mensajes con
+ * N menor o igual que su tamaño, o la conversación entera si está completa.
+ * Cuando se supera el límite global de memoria se descartan las
+ * conversaciones usadas hace más tiempo (LRU).
+ */
+class RecentMessageCache {
+
+    // Orden cronológico con el id como desempate, igual que las consultas
+    private static final Comparator<ChatMessage> CHRONOLOGICAL =
+            Comparator.comparing(ChatMessage::getTimestamp).thenComparingLong(ChatMessage::getId);
+
+    private final int perConversation;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Conversation> conversations = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    RecentMessageCache(int perConversation, long maxBytes) {
+        this.perConversation = perConversation;
+        this.maxBytes = maxBytes;
+    }
+
+    static String generalKey() {
+        return "G";
+    }
+
+    static String pairKey(String user1, String user2) {
+        return user1.compareTo(user2) <= 0 ? "P:" + user1 + "\0" + user2 : "P:" + user2 + "\0" + user1;
+    }
+
+    static String roomKey(String room) {
+        return "R:" + room;
+    }
+
+    /**
+     * Añade un mensaje recién enviado a todas las conversaciones a las que pertenece
+     */
+    synchronized void add(ChatMessage m) {
+        if (m.isRoom()) {
+            append(roomKey(m.getRoom()), m);
+            return;
+        }
+        if (m.isGeneral()) {
+            append(generalKey(), m);
+            return;
+        }
+        append(pairKey(m.getSender(), m.getRecipient()), m);
+    }
+
+    /**
+     * Los últimos limit mensajes de la conversación, del más reciente al más
+     * antiguo, o null si la caché no puede asegurar que estén todos.
+     */
+    synchronized List<ChatMessage> recent(String key, int limit) {
+        Conversation c = conversations.get(key);
+        if (c == null || (c.size < limit && !c.complete)) {
+            misses++;
+            return null;
+        }
+        hits++;
+        int n = Math.min(limit, c.size);
+        List<ChatMessage> result = new ArrayList<>(n);
+        for (int i = c.size - 1; i >= c.size - n; i--) {
+            result.add(c.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Conversación completa en orden cronológico, o null si no está entera en memoria
+     */
+    synchronized List<ChatMessage> all(String key) {
+        Conversation c = conversations.get(key);
+        if (c == null || !c.complete) {
+            misses++;
+            return null;
+        }
+        hits++;
+        List<ChatMessage> result = new ArrayList<>(c.size);
+        for (int i = 0; i < c.size; i++) {
+            result.add(c.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Mensajes de la conversación con id mayor que afterId o sin id todavía
+     * (encolados en el escritor y aún no guardados), en orden cronológico.
+     * Es lo que puede faltar en una consulta al almacén hecha ahora.
+     */
+    synchronized List<ChatMessage> newerThan(String key, long afterId) {
+        Conversation c = conversations.get(key);
+        List<ChatMessage> result = new ArrayList<>();
+        if (c == null) {
+            return result;
+        }
+        for (int i = 0; i < c.size; i++) {
+            ChatMessage m = c.get(i);
+            if (m.getId() == 0 || m.getId() > afterId) {
+                result.add(m);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Carga en la caché lo leído de la base de datos. Las filas deben ser los
+     * mensajes más recientes de la conversación (un sufijo); complete indica
+     * que no hay ninguno más antiguo. Se mezclan con los que ya estuvieran en
+     * memoria, que pueden no haberse guardado todavía.
+     */
+    synchronized void load(String key, List<ChatMessage> rows, boolean complete) {
+        Conversation c = conversations.get(key);
+        List<ChatMessage> merged = new ArrayList<>(rows);
+        boolean wasComplete = false;
+        if (c != null) {
+            wasComplete = c.complete;
+            for (int i = 0; i < c.size; i++) {
+                ChatMessage cached = c.get(i);
+                if (!containsSame(rows, cached)) {
+                    merged.add(cached);
+                }
+            }
+            bytes -= c.bytes;
+        } else {
+            c = new Conversation(perConversation);
+            conversations.put(key, c);
+        }
+        merged.sort(CHRONOLOGICAL);
+        c.reset();
+        int from = Math.max(0, merged.size() - perConversation);
+        for (int i = from; i < merged.size(); i++) {
+            c.append(merged.get(i));
+        }
+        c.complete = (complete || wasComplete) && from == 0;
+        bytes += c.bytes;
+        evictIfNeeded(key);
+    }
+
+    synchronized void clear() {
+        conversations.clear();
+        bytes = 0;
+    }
+
+    synchronized String getStats() {
+        long total = hits + misses;
+        return String.format("Caché de mensajes: conversaciones=%d memoria=%dKB aciertos=%d fallos=%d (%.1f%%) expulsadas=%d",
+                conversations.size(), bytes / 1024, hits, misses,
+                total == 0 ? 0.0 : hits * 100.0 / total, evictions);
+    }
+
+    private void append(String key, ChatMessage m) {
+        Conversation c = conversations.get(key);
+        if (c == null) {
+            c = new Conversation(perConversation);
+            // Empieza vacía: solo puede servir los mensajes que reciba desde ahora
+            conversations.put(key, c);
+        }
+        long before = c.bytes;
+        c.insert(m);
+        bytes += c.bytes - before;
+        evictIfNeeded(key);
+    }
+
+    // Expulsa las conversaciones menos usadas, nunca la que se acaba de tocar
+    private void evictIfNeeded(String keep) {
+        Iterator<Map.Entry<String, Conversation>> it = conversations.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Conversation> e = it.next();
+            if (e.getKey().equals(keep)) {
+                continue;
+            }
+            bytes -= e.getValue().bytes;
+            it.remove();
+            evictions++;
+        }
+    }
+
+    // Mismo mensaje aunque uno de los dos no tenga todavía el id de la base de datos
+    private static boolean containsSame(List<ChatMessage> list, ChatMessage m) {
+        for (ChatMessage other : list) {
+            if (m.getId() != 0 && other.getId() != 0) {
+                if (m.getId() == other.getId()) {
+                    return true;
+                }
+            } else if (m.getTimestamp().equals(other.getTimestamp())
+                    && m.getSender().equals(other.getSender())
+                    && m.getMessage().equals(other.getMessage())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Tamaño aproximado en memoria de un mensaje (cabeceras y cadenas UTF-16)
+    private static long sizeOf(ChatMessage m) {
+        int chars = m.getSender().length() + m.getMessage().length()
+                + (m.getRecipient() == null ? 0 : m.getRecipient().length())
+                + (m.getRoom() == null ? 0 : m.getRoom().length());
+        return 96 + 2L * chars;
+    }
+
+    /**
+     * Buffer circular en orden cronológico
+     */
+    private static final class Conversation {
+        private final ChatMessage[] items;
+        private int start;
+        private int size;
+        private long bytes;
+        // true si contiene todos los mensajes de la conversación
+        private boolean complete;
+
+        Conversation(int capacity) {
+            this.items = new ChatMessage[capacity];
+        }
+
+        ChatMessage get(int i) {
+            return items[(start + i) % items.length];
+        }
+
+        private void set(int i, ChatMessage m) {
+            items[(start + i) % items.length] = m;
+        }
+
+        void append(ChatMessage m) {
+            if (size == items.length) {
+                dropOldest();
+            }
+            set(size++, m);
+            bytes += sizeOf(m);
+        }
+
+        // Inserta manteniendo el orden; casi siempre el mensaje va al final
+        void insert(ChatMessage m) {
+            if (size == items.length) {
+                dropOldest();
+            }
+            int i = size;
+            while (i > 0 && CHRONOLOGICAL.compare(get(i - 1), m) > 0) {
+                set(i, get(i - 1));
+                i--;
+            }
+            set(i, m);
+            size++;
+            bytes += sizeOf(m);
+        }
+
+        private void dropOldest() {
+            bytes -= sizeOf(get(0));
+            set(0, null);
+            start = (start + 1) % items.length;
+            size--;
+            complete = false;
+        }
+
+        void reset() {
+            for (int i = 0; i < size; i++) {
+                set(i, null);
+            }
+            start = 0;
+            size = 0;
+            bytes = 0;
+            complete = false;
+        }
+    }
+}
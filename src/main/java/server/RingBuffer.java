@@ -0,0 +1,82 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Buffer circular acotado sin bloqueos para muchos productores y un único
+ * consumidor. Cada casilla lleva un número de secuencia que indica si está
+ * libre o ya publicada, así los productores solo compiten por un CAS sobre
+ * la posición de escritura y nunca esperan al consumidor.
+ */
+final class RingBuffer<E> {
+    private final int mask;
+    private final AtomicReferenceArray<E> items;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    // Solo lo usa el consumidor
+    private long head;
+
+    RingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.items = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Publica un elemento. Devuelve false si el buffer está lleno.
+     */
+    boolean offer(E item) {
+        long pos = tail.get();
+        while (true) {
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    items.lazySet(index, item);
+                    // La escritura volátil de la secuencia publica el elemento
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                // Otro productor se ha quedado esta casilla
+                pos = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Siguiente elemento, o null si no hay ninguno publicado. Solo desde el consumidor.
+     */
+    E poll() {
+        int index = (int) (head & mask);
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+        E item = items.get(index);
+        items.lazySet(index, null);
+        // La casilla queda libre para la siguiente vuelta
+        sequences.set(index, head + mask + 1);
+        head++;
+        return item;
+    }
+
+    /**
+     * Solo desde el consumidor
+     */
+    boolean isEmpty() {
+        return sequences.get((int) (head & mask)) != head + 1;
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+}
@@ -0,0 +1,125 @@
+package server;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Salas con nombre y quién está en cada una. Una sala existe mientras tenga
+ * algún miembro. Los conjuntos de miembros no se modifican nunca: entrar o
+ * salir publica un conjunto nuevo (copia al escribir), así repartir un
+ * mensaje de sala lee los miembros sin locks y solo recorre esa sala.
+ * Cada usuario guarda también sus salas para sacarlo de todas al desconectar.
+ */
+final class RoomRegistry {
+    // Sin ':' para que ROOM_MESSAGE:sala:texto se pueda cortar en el primer ':'
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_-]{1,50}");
+
+    private final int maxPerUser;
+    // Sala -> miembros y usuario -> salas; los valores son conjuntos inmutables
+    private final ConcurrentHashMap<String, Set<String>> members = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<String>> roomsByUser = new ConcurrentHashMap<>();
+
+    RoomRegistry(int maxPerUser) {
+        this.maxPerUser = maxPerUser;
+    }
+
+    static RoomRegistry fromConfig() {
+        return new RoomRegistry(ServerConfig.ROOMS_MAX_PER_USER);
+    }
+
+    static boolean isValidName(String room) {
+        return room != null && NAME.matcher(room).matches();
+    }
+
+    /**
+     * Añade el usuario a la sala (la crea si no existe); false si ya está en maxPerUser salas.
+     * Los cambios de un mismo usuario se serializan en su entrada de roomsByUser.
+     */
+    boolean join(String room, String username) {
+        boolean[] joined = {false};
+        roomsByUser.compute(username, (u, rooms) -> {
+            Set<String> current = rooms == null ? Set.of() : rooms;
+            if (current.contains(room)) {
+                joined[0] = true;
+                return rooms;
+            }
+            if (current.size() >= maxPerUser) {
+                return rooms;
+            }
+            members.compute(room, (r, m) -> with(m, username));
+            joined[0] = true;
+            return with(current, room);
+        });
+        return joined[0];
+    }
+
+    /**
+     * Saca al usuario de la sala; false si no estaba en ella
+     */
+    boolean leave(String room, String username) {
+        boolean[] left = {false};
+        roomsByUser.computeIfPresent(username, (u, rooms) -> {
+            if (!rooms.contains(room)) {
+                return rooms;
+            }
+            members.computeIfPresent(room, (r, m) -> without(m, username));
+            left[0] = true;
+            return without(rooms, room);
+        });
+        return left[0];
+    }
+
+    /**
+     * Saca al usuario de todas sus salas (al desconectar)
+     */
+    void leaveAll(String username) {
+        roomsByUser.computeIfPresent(username, (u, rooms) -> {
+            for (String room : rooms) {
+                members.computeIfPresent(room, (r, m) -> without(m, username));
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Miembros de la sala en este momento, sin locks; vacío si no existe
+     */
+    Set<String> members(String room) {
+        Set<String> m = members.get(room);
+        return m == null ? Set.of() : m;
+    }
+
+    boolean isMember(String room, String username) {
+        return members(room).contains(username);
+    }
+
+    int size() {
+        return members.size();
+    }
+
+    String getStats() {
+        long memberships = 0;
+        for (Set<String> m : members.values()) {
+            memberships += m.size();
+        }
+        return "Salas: " + members.size() + " miembros=" + memberships;
+    }
+
+    private static Set<String> with(Set<String> set, String value) {
+        Set<String> copy = set == null ? new HashSet<>() : new HashSet<>(set);
+        copy.add(value);
+        return Set.copyOf(copy);
+    }
+
+    // null cuando queda vacío: compute quita la entrada
+    private static Set<String> without(Set<String> set, String value) {
+        if (set.size() == 1 && set.contains(value)) {
+            return null;
+        }
+        Set<String> copy = new HashSet<>(set);
+        copy.remove(value);
+        return Set.copyOf(copy);
+    }
+}
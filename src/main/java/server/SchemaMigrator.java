@@ -0,0 +1,204 @@
+package server;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Migraciones de esquema versionadas.
+ * Cada migración se aplica una sola vez, en orden y en su propia transacción,
+ * y queda registrada en la tabla schema_version. Para cambiar el esquema se
+ * añade una migración nueva al final; nunca se modifica una ya publicada.
+ */
+final class SchemaMigrator {
+
+    private static final String CREATE_VERSION_TABLE =
+            "CREATE TABLE IF NOT EXISTS schema_version (" +
+            "    version INTEGER PRIMARY KEY," +
+            "    description VARCHAR(200) NOT NULL," +
+            "    applied_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP" +
+            ")";
+
+    /**
+     * Migración: sentencias portables y sentencias que solo se ejecutan en
+     * PostgreSQL (índices de expresión y parciales).
+     */
+    private static final class Migration {
+        final int version;
+        final String description;
+        final String[] statements;
+        final String[] postgresStatements;
+
+        Migration(int version, String description, String[] statements, String[] postgresStatements) {
+            this.version = version;
+            this.description = description;
+            this.statements = statements;
+            this.postgresStatements = postgresStatements;
+        }
+    }
+
+    private static final List<Migration> MIGRATIONS = new ArrayList<>();
+
+    static {
+        // 1: tablas originales. IF NOT EXISTS para adoptar las bases de datos ya creadas
+        MIGRATIONS.add(new Migration(1, "Tablas de usuarios y mensajes", new String[]{
+                "CREATE TABLE IF NOT EXISTS usuarios (" +
+                "    id SERIAL PRIMARY KEY," +
+                "    username VARCHAR(50) UNIQUE NOT NULL," +
+                "    password_hash VARCHAR(255) NOT NULL," +
+                "    salt VARCHAR(255) NOT NULL," +
+                "    created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP," +
+                "    is_admin BOOLEAN DEFAULT FALSE" +
+                ")",
+                "CREATE TABLE IF NOT EXISTS mensajes (" +
+                "    id SERIAL PRIMARY KEY," +
+                "    sender VARCHAR(50) NOT NULL," +
+                "    recipient VARCHAR(50) NOT NULL," +
+                "    message TEXT NOT NULL," +
+                "    timestamp TIMESTAMP DEFAULT CURRENT_TIMESTAMP," +
+                "    is_read BOOLEAN DEFAULT FALSE," +
+                "    FOREIGN KEY (sender) REFERENCES usuarios(username)," +
+                "    FOREIGN KEY (recipient) REFERENCES usuarios(username)" +
+                ")",
+                "CREATE TABLE IF NOT EXISTS mensajes_generales (" +
+                "    id SERIAL PRIMARY KEY," +
+                "    sender VARCHAR(50) NOT NULL," +
+                "    message TEXT NOT NULL," +
+                "    timestamp TIMESTAMP DEFAULT CURRENT_TIMESTAMP," +
+                "    FOREIGN KEY (sender) REFERENCES usuarios(username)" +
+                ")"
+        }, new String[0]));
+
+        // 2: índices para los patrones de acceso de las consultas de historial
+        MIGRATIONS.add(new Migration(2, "Índices de historial y mensajes no leídos", new String[]{
+                // Historial de login: sender = ? OR recipient = ? ordenado por fecha
+                "CREATE INDEX IF NOT EXISTS idx_mensajes_sender_ts ON mensajes (sender, timestamp, id)",
+                "CREATE INDEX IF NOT EXISTS idx_mensajes_recipient_ts ON mensajes (recipient, timestamp, id)",
+                // Chat general: paginación y sincronización por (timestamp, id)
+                "CREATE INDEX IF NOT EXISTS idx_mensajes_generales_ts ON mensajes_generales (timestamp, id)"
+        }, new String[]{
+                // Clave canónica de la conversación: el mismo par sea quien sea el remitente
+                "CREATE INDEX IF NOT EXISTS idx_mensajes_conversacion ON mensajes " +
+                "((LEAST(sender, recipient)), (GREATEST(sender, recipient)), timestamp, id)",
+                // Solo las filas pendientes de leer, que son pocas comparadas con la tabla
+                "CREATE INDEX IF NOT EXISTS idx_mensajes_no_leidos ON mensajes (recipient, timestamp) " +
+                "WHERE is_read = FALSE"
+        }));
+
+        // 3: salas. Una tabla aparte para no tocar las consultas del chat general ni de los privados
+        MIGRATIONS.add(new Migration(3, "Mensajes de salas", new String[]{
+                "CREATE TABLE IF NOT EXISTS mensajes_sala (" +
+                "    id SERIAL PRIMARY KEY," +
+                "    room VARCHAR(50) NOT NULL," +
+                "    sender VARCHAR(50) NOT NULL," +
+                "    message TEXT NOT NULL," +
+                "    timestamp TIMESTAMP DEFAULT CURRENT_TIMESTAMP," +
+                "    FOREIGN KEY (sender) REFERENCES usuarios(username)" +
+                ")",
+                // Historial al entrar en una sala: sus últimos mensajes por (timestamp, id)
+                "CREATE INDEX IF NOT EXISTS idx_mensajes_sala_ts ON mensajes_sala (room, timestamp, id)"
+        }, new String[0]));
+    }
+
+    private SchemaMigrator() {
+    }
+
+    /**
+     * Aplica las migraciones pendientes. Devuelve la versión final del esquema.
+     */
+    static int migrate(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute(CREATE_VERSION_TABLE);
+        }
+        boolean postgres = isPostgres(conn);
+        int current = currentVersion(conn);
+        for (Migration migration : MIGRATIONS) {
+            if (migration.version <= current) {
+                continue;
+            }
+            apply(conn, migration, postgres);
+            current = migration.version;
+            Logger.log("Migración de esquema " + migration.version + " aplicada: " + migration.description);
+        }
+        Logger.log("Esquema de base de datos en la versión " + current);
+        return current;
+    }
+
+    private static void apply(Connection conn, Migration migration, boolean postgres) throws SQLException {
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try (Statement stmt = conn.createStatement()) {
+            for (String sql : migration.statements) {
+                stmt.execute(sql);
+            }
+            if (postgres) {
+                for (String sql : migration.postgresStatements) {
+                    stmt.execute(sql);
+                }
+            } else if (migration.postgresStatements.length > 0) {
+                Logger.log(Logger.Level.WARNING, "Migración " + migration.version
+                        + ": se omiten " + migration.postgresStatements.length + " índices específicos de PostgreSQL");
+            }
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "INSERT INTO schema_version (version, description) VALUES (?, ?)")) {
+                ps.setInt(1, migration.version);
+                ps.setString(2, migration.description);
+                ps.executeUpdate();
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw new SQLException("Error aplicando la migración " + migration.version + ": " + e.getMessage(), e);
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    private static int currentVersion(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT MAX(version) FROM schema_version")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    private static boolean isPostgres(Connection conn) throws SQLException {
+        return conn.getMetaData().getDatabaseProductName().toLowerCase().contains("postgresql");
+    }
+
+    /**
+     * Registra en el log el plan de ejecución de las consultas más frecuentes,
+     * para detectar si alguna deja de usar sus índices. En PostgreSQL avisa
+     * cuando el plan recorre la tabla mensajes completa.
+     */
+    static void reportQueryPlans(Connection conn) {
+        String sample = "user1";
+        explain(conn, "página de conversación", JdbcMessageStore.CONVERSATION_SELECT
+                + " ORDER BY timestamp DESC, id DESC LIMIT ?", sample, sample, sample, sample, 51);
+        explain(conn, "mensajes no leídos", JdbcMessageStore.UNREAD_SQL, sample);
+        explain(conn, "marcar como leídos", JdbcMessageStore.MARK_READ_SQL, sample, Long.MAX_VALUE);
+    }
+
+    private static void explain(Connection conn, String name, String sql, Object... params) {
+        try (PreparedStatement stmt = conn.prepareStatement("EXPLAIN " + sql)) {
+            for (int i = 0; i < params.length; i++) {
+                stmt.setObject(i + 1, params[i]);
+            }
+            StringBuilder plan = new StringBuilder();
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    plan.append("\n    ").append(rs.getString(1));
+                }
+            }
+            Logger.debug("Plan de consulta (" + name + "):" + plan);
+            if (plan.indexOf("Seq Scan on mensajes ") >= 0) {
+                Logger.log(Logger.Level.WARNING, "La consulta '" + name + "' recorre la tabla mensajes completa:" + plan);
+            }
+        } catch (SQLException e) {
+            Logger.log(Logger.Level.WARNING, "No se pudo obtener el plan de la consulta '" + name + "': " + e.getMessage());
+        }
+    }
+}
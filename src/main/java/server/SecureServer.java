@@ -4,7 +4,7 @@ import javax.net.ssl.*;
 import java.io.FileInputStream;
 import java.security.KeyStore;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 public class SecureServer {
     private static final int PORT = 12345;
@@ -15,7 +15,7 @@ public class SecureServer {
 
     public SecureServer() {
         this.chatServer = new ChatServer();
-        this.pool = Executors.newCachedThreadPool();
+        this.pool = VirtualThreads.newConnectionExecutor();
         this.isRunning = true;
     }
 
@@ -31,6 +31,7 @@ public class SecureServer {
             serverSocket.setEnabledCipherSuites(serverSocket.getSupportedCipherSuites());
             
             Logger.log("🔐 Servidor seguro iniciado en el puerto " + PORT);
+            MetricsServer.start();
             
             while (isRunning) {
                 try {
@@ -38,7 +39,14 @@ public class SecureServer {
                     Logger.log("✅ Nueva conexión segura desde: " + clientSocket.getInetAddress().getHostAddress());
                     
                     ClientHandler clientHandler = new ClientHandler(clientSocket, chatServer);
-                    pool.execute(clientHandler);
+                    try {
+                        pool.execute(clientHandler);
+                    } catch (RejectedExecutionException e) {
+                        // El pool se está cerrando: no se deja el socket abierto ni la plaza ocupada
+                        Logger.log(Logger.Level.WARNING, "Conexión no atendida, el servidor se está cerrando: "
+                                + clientSocket.getInetAddress().getHostAddress());
+                        clientHandler.abort();
+                    }
                     
                 } catch (Exception e) {
                     if (isRunning) {
@@ -60,6 +68,9 @@ public class SecureServer {
     }
 
     public void shutdown() {
+        if (!isRunning) {
+            return;
+        }
         isRunning = false;
         try {
             if (serverSocket != null && !serverSocket.isClosed()) {
@@ -70,6 +81,8 @@ public class SecureServer {
         }
         
         pool.shutdown();
+        // Vacía la cola de persistencia y cierra el pool de la base de datos
+        chatServer.shutdown();
         Logger.log("Servidor seguro detenido");
     }
 
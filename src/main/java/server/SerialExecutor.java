@@ -0,0 +1,73 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * Ejecuta las tareas de una conexión de una en una y en orden de llegada,
+ * reutilizando los hilos de un ejecutor compartido. Si el ejecutor rechaza
+ * una tarea se descartan las pendientes y se avisa a onRejected, sin que la
+ * excepción llegue al hilo que encoló la tarea.
+ */
+class SerialExecutor implements Executor {
+    private final Queue<Runnable> tasks = new ArrayDeque<>();
+    private final Executor executor;
+    private final Consumer<RejectedExecutionException> onRejected;
+    private Runnable active;
+
+    SerialExecutor(Executor executor, Consumer<RejectedExecutionException> onRejected) {
+        this.executor = executor;
+        this.onRejected = onRejected;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        Runnable next;
+        synchronized (this) {
+            tasks.add(() -> {
+                try {
+                    task.run();
+                } finally {
+                    scheduleNext();
+                }
+            });
+            if (active != null) {
+                return;
+            }
+            next = active = tasks.poll();
+        }
+        submit(next);
+    }
+
+    /**
+     * Tareas pendientes, contando la que se está ejecutando
+     */
+    synchronized int size() {
+        return tasks.size() + (active == null ? 0 : 1);
+    }
+
+    private void scheduleNext() {
+        Runnable next;
+        synchronized (this) {
+            if ((next = active = tasks.poll()) == null) {
+                return;
+            }
+        }
+        submit(next);
+    }
+
+    private void submit(Runnable next) {
+        try {
+            executor.execute(next);
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                tasks.clear();
+                active = null;
+            }
+            onRejected.accept(e);
+        }
+    }
+}
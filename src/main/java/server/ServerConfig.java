@@ -0,0 +1,138 @@
+package server;
+
+/**
+ * Parámetros de arranque del servidor.
+ * Se leen de las propiedades del sistema (-Dchat.xxx=valor) para poder
+ * ajustarlos sin recompilar.
+ */
+public final class ServerConfig {
+
+    // Modos de E/S disponibles para el servidor de chat
+    public enum Mode {
+        BLOCKING,  // Un hilo por conexión (comportamiento original)
+        NIO        // Bucles de eventos con Selector y canales no bloqueantes
+    }
+
+    // Tipo de hilo que atiende cada conexión en modo bloqueante
+    public enum Threads {
+        PLATFORM,  // Pool de hilos del sistema operativo
+        VIRTUAL    // Un hilo virtual por conexión (requiere Java 21+)
+    }
+
+    public static final Mode MODE = Mode.valueOf(
+            System.getProperty("chat.server.mode", "blocking").trim().toUpperCase());
+
+    public static final Threads THREADS = Threads.valueOf(
+            System.getProperty("chat.threads", "platform").trim().toUpperCase());
+
+    // Máximo de handshakes TLS y logins en curso a la vez
+    public static final int MAX_CONCURRENT_LOGINS = Integer.getInteger("chat.maxConcurrentLogins", 64);
+
+    // Tiempo máximo de espera por un turno de login antes de rechazar la conexión
+    public static final long LOGIN_WAIT_MS = Long.getLong("chat.loginWaitMs", 5000L);
+
+    // Contraseñas: iteraciones de PBKDF2 para los hashes nuevos (los antiguos se recalculan al hacer login)
+    public static final int AUTH_ITERATIONS = Integer.getInteger("chat.auth.iterations", 310000);
+
+    // Hilos que calculan hashes de contraseñas y logins que pueden esperar turno antes de rechazarlos
+    public static final int AUTH_THREADS = Integer.getInteger("chat.auth.threads",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    public static final int AUTH_QUEUE_CAPACITY = Integer.getInteger("chat.auth.queueCapacity", 256);
+
+    // Conexiones abiertas a la vez y, de ellas, las que aún no han hecho login
+    public static final int MAX_CONNECTIONS = Integer.getInteger("chat.maxConnections", 10000);
+    public static final int MAX_PRE_AUTH_CONNECTIONS = Integer.getInteger("chat.maxPreAuthConnections", 1000);
+    // Conexiones abiertas a la vez desde una misma IP (0 = sin límite)
+    public static final int MAX_CONNECTIONS_PER_IP = Integer.getInteger("chat.maxConnectionsPerIp", 1000);
+
+    // Límites de ritmo (peticiones por segundo y ráfaga) por usuario y por IP; 0 para desactivarlos.
+    // Mensajes: MESSAGE, PRIVATE y ROOM_MESSAGE. Consultas: historial, lista de usuarios y entrar o salir de salas
+    public static final double LIMIT_MESSAGES_PER_SEC = doubleProperty("chat.limit.messagesPerSec", 20);
+    public static final int LIMIT_MESSAGE_BURST = Integer.getInteger("chat.limit.messageBurst", 40);
+    public static final double LIMIT_QUERIES_PER_SEC = doubleProperty("chat.limit.queriesPerSec", 2);
+    public static final int LIMIT_QUERY_BURST = Integer.getInteger("chat.limit.queryBurst", 10);
+    public static final double LIMIT_IP_MESSAGES_PER_SEC = doubleProperty("chat.limit.ipMessagesPerSec", 200);
+    public static final int LIMIT_IP_MESSAGE_BURST = Integer.getInteger("chat.limit.ipMessageBurst", 400);
+    public static final double LIMIT_IP_QUERIES_PER_SEC = doubleProperty("chat.limit.ipQueriesPerSec", 20);
+    public static final int LIMIT_IP_QUERY_BURST = Integer.getInteger("chat.limit.ipQueryBurst", 50);
+
+    // Shards del registro de sesiones, cada uno con su hilo de reparto. Con pocos núcleos conviene
+    // que sean más que los núcleos: un solo hilo de reparto compite por la CPU con todas las conexiones
+    public static final int REGISTRY_SHARDS = Integer.getInteger("chat.registry.shards",
+            Math.max(8, Runtime.getRuntime().availableProcessors()));
+
+    // Privados pendientes de entregar que se guardan en memoria por usuario desconectado
+    // (el resto se recupera del almacén al hacer login)
+    public static final int OFFLINE_MAX_PER_USER = Integer.getInteger("chat.offline.maxPerUser", 1000);
+
+    // Salas: en cuántas puede estar un usuario a la vez y mensajes de historial que recibe al entrar
+    public static final int ROOMS_MAX_PER_USER = Integer.getInteger("chat.rooms.maxPerUser", 50);
+    public static final int ROOM_HISTORY_LIMIT = Integer.getInteger("chat.rooms.historyLimit", 50);
+
+    // Número de bucles de E/S del modo NIO
+    public static final int NIO_IO_LOOPS = Integer.getInteger("chat.nio.loops",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+    // Hilos que ejecutan los comandos (acceso a BD incluido) en modo NIO
+    public static final int NIO_WORKERS = Integer.getInteger("chat.nio.workers",
+            Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+
+    // Comandos pendientes por conexión NIO; al llegar aquí se deja de leer su socket hasta que baje a la mitad
+    public static final int NIO_MAX_PENDING_COMMANDS = Integer.getInteger("chat.nio.maxPendingCommands", 256);
+
+    // Longitud máxima de una línea del protocolo antes de cortar la conexión
+    public static final int MAX_LINE_BYTES = Integer.getInteger("chat.maxLineBytes", 1024 * 1024);
+
+    // Persistencia diferida de mensajes
+    public static final int WRITE_QUEUE_CAPACITY = Integer.getInteger("chat.write.queueCapacity", 10000);
+    public static final int WRITE_BATCH_SIZE = Integer.getInteger("chat.write.batchSize", 100);
+    public static final long WRITE_FLUSH_MS = Long.getLong("chat.write.flushMs", 50L);
+    public static final String WRITE_OVERFLOW = System.getProperty("chat.write.overflow", "block").trim().toUpperCase();
+    public static final String WRITE_SPILL_FILE = System.getProperty("chat.write.spillFile", "messages.spill");
+    // Espera máxima al vaciar la cola al cerrar el servidor
+    public static final long WRITE_SHUTDOWN_MS = Long.getLong("chat.write.shutdownMs", 10000L);
+
+    // Almacenamiento de mensajes: JDBC (base de datos) o LOG (ficheros locales en STORE_DIR)
+    public static final String MESSAGE_STORE = System.getProperty("chat.store", "jdbc").trim().toUpperCase();
+    public static final String STORE_DIR = System.getProperty("chat.store.dir", "messages");
+    public static final int STORE_SEGMENT_BYTES = Integer.getInteger("chat.store.segmentBytes", 64 * 1024 * 1024);
+    // Forzar a disco cada lote (más lento; sin él un corte de luz puede perder lo último escrito)
+    public static final boolean STORE_FSYNC = Boolean.getBoolean("chat.store.fsync");
+
+    // Caché de mensajes recientes: mensajes por conversación y memoria total aproximada
+    public static final int CACHE_PER_CONVERSATION = Integer.getInteger("chat.cache.perConversation", 200);
+    public static final long CACHE_MAX_BYTES = Long.getLong("chat.cache.maxBytes", 32L * 1024 * 1024);
+
+    // Ventana en la que se agrupan los cambios de usuarios conectados en un solo aviso (0: aviso inmediato)
+    public static final long PRESENCE_WINDOW_MS = Long.getLong("chat.presence.windowMs", 100L);
+
+    // Caché de usuarios registrados: caducidad y número máximo de usuarios en memoria
+    public static final long USER_CACHE_TTL_MS = Long.getLong("chat.users.cacheTtlMs", 60000L);
+    public static final int USER_CACHE_MAX_ENTRIES = Integer.getInteger("chat.users.cacheMaxEntries", 10000);
+
+    // Cola de salida de cada cliente: capacidad, política si se llena y tiempo máximo de espera
+    public static final int OUTBOUND_CAPACITY = Integer.getInteger("chat.outbound.capacity", 1000);
+    public static final String OUTBOUND_POLICY = System.getProperty("chat.outbound.policy", "coalesce").trim().toUpperCase();
+    public static final long OUTBOUND_SLOW_CONSUMER_MS = Long.getLong("chat.outbound.slowConsumerMs", 10000L);
+
+    // Log: fichero, nivel mínimo, tamaño del buffer en memoria, política si se llena y rotación
+    public static final String LOG_FILE = System.getProperty("chat.log.file", "server.log");
+    public static final String LOG_LEVEL = System.getProperty("chat.log.level", "info").trim().toUpperCase();
+    public static final int LOG_BUFFER_SIZE = Integer.getInteger("chat.log.bufferSize", 8192);
+    public static final String LOG_OVERFLOW = System.getProperty("chat.log.overflow", "drop_low").trim().toUpperCase();
+    public static final long LOG_MAX_BYTES = Long.getLong("chat.log.maxBytes", 10L * 1024 * 1024);
+    public static final int LOG_MAX_FILES = Integer.getInteger("chat.log.maxFiles", 5);
+    public static final boolean LOG_ROTATE_DAILY = Boolean.parseBoolean(System.getProperty("chat.log.rotateDaily", "true"));
+
+    // Endpoint HTTP de métricas (formato Prometheus); puerto 0 para desactivarlo
+    public static final String METRICS_HOST = System.getProperty("chat.metrics.host", "127.0.0.1");
+    public static final int METRICS_PORT = Integer.getInteger("chat.metrics.port", 9400);
+
+    private ServerConfig() {
+    }
+
+    private static double doubleProperty(String key, double defaultValue) {
+        String value = System.getProperty(key);
+        return value == null ? defaultValue : Double.parseDouble(value.trim());
+    }
+}
@@ -0,0 +1,213 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Sesiones con login, repartidas en shards por nombre de usuario. Cada shard
+ * tiene su mapa y un único hilo de reparto: un broadcast se divide en una
+ * tarea por shard y los shards trabajan en paralelo, sin que el hilo que
+ * envía recorra a todos los clientes. Como todo lo que se reparte a un
+ * usuario (broadcast, salas, privados y presencia) pasa por el hilo de su
+ * shard, le llega en el mismo orden en que se envió.
+ */
+final class SessionRegistry {
+
+    private static final class Shard {
+        final ConcurrentHashMap<String, ClientSession> sessions = new ConcurrentHashMap<>();
+        final ThreadPoolExecutor worker;
+
+        Shard(int index) {
+            worker = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "fanout-" + index);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    private final Shard[] shards;
+
+    SessionRegistry(int shardCount) {
+        shards = new Shard[Math.max(1, shardCount)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(i);
+        }
+    }
+
+    static SessionRegistry fromConfig() {
+        return new SessionRegistry(ServerConfig.REGISTRY_SHARDS);
+    }
+
+    private int shardIndex(String username) {
+        int h = username.hashCode();
+        return Math.floorMod(h ^ (h >>> 16), shards.length);
+    }
+
+    private Shard shardFor(String username) {
+        return shards[shardIndex(username)];
+    }
+
+    /**
+     * Registra la sesión si el nombre está libre; false si ya hay otra con ese nombre
+     */
+    boolean putIfAbsent(String username, ClientSession session) {
+        return shardFor(username).sessions.putIfAbsent(username, session) == null;
+    }
+
+    /**
+     * Quita el nombre solo si sigue asociado a esta misma sesión
+     */
+    boolean remove(String username, ClientSession session) {
+        return shardFor(username).sessions.remove(username, session);
+    }
+
+    ClientSession get(String username) {
+        return shardFor(username).sessions.get(username);
+    }
+
+    boolean contains(String username) {
+        return get(username) != null;
+    }
+
+    int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            size += shard.sessions.size();
+        }
+        return size;
+    }
+
+    /**
+     * Recorre las sesiones en el hilo que llama (estadísticas); no mantiene el orden de reparto
+     */
+    void forEach(BiConsumer<String, ClientSession> action) {
+        for (Shard shard : shards) {
+            shard.sessions.forEach(action);
+        }
+    }
+
+    /**
+     * Ejecuta action para cada sesión en el hilo de su shard
+     */
+    void fanOut(BiConsumer<String, ClientSession> action) {
+        for (Shard shard : shards) {
+            shard.worker.execute(() -> {
+                long start = System.nanoTime();
+                shard.sessions.forEach(action);
+                Metrics.BROADCAST.observeSince(start);
+            });
+        }
+    }
+
+    /**
+     * Frame a todos menos a except (null para todos)
+     */
+    void broadcast(Frame frame, String except) {
+        fanOut((username, session) -> {
+            if (!username.equals(except)) {
+                session.sendFrame(frame);
+            }
+        });
+    }
+
+    /**
+     * Frame a los usuarios indicados menos a except: una tarea por cada shard
+     * que tenga alguno, así el coste depende de cuántos son y no del total de conectados
+     */
+    void multicast(Collection<String> usernames, Frame frame, String except) {
+        List<List<String>> byShard = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            byShard.add(null);
+        }
+        for (String username : usernames) {
+            if (username.equals(except)) {
+                continue;
+            }
+            int i = shardIndex(username);
+            List<String> targets = byShard.get(i);
+            if (targets == null) {
+                targets = new ArrayList<>();
+                byShard.set(i, targets);
+            }
+            targets.add(username);
+        }
+        for (int i = 0; i < shards.length; i++) {
+            List<String> targets = byShard.get(i);
+            if (targets == null) {
+                continue;
+            }
+            Shard shard = shards[i];
+            shard.worker.execute(() -> {
+                long start = System.nanoTime();
+                for (String username : targets) {
+                    ClientSession session = shard.sessions.get(username);
+                    if (session != null) {
+                        session.sendFrame(frame);
+                    }
+                }
+                Metrics.BROADCAST.observeSince(start);
+            });
+        }
+    }
+
+    /**
+     * Frame a la sesión actual del usuario, en orden con lo que se le reparte.
+     * Devuelve false si el usuario no estaba conectado.
+     */
+    boolean sendTo(String username, Frame frame) {
+        Shard shard = shardFor(username);
+        if (!shard.sessions.containsKey(username)) {
+            return false;
+        }
+        shard.worker.execute(() -> {
+            ClientSession session = shard.sessions.get(username);
+            if (session != null) {
+                session.sendFrame(frame);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Frame a una sesión concreta (aunque ya no esté registrada), en orden con lo que se reparte a su usuario
+     */
+    void send(String username, ClientSession session, Frame frame) {
+        shardFor(username).worker.execute(() -> session.sendFrame(frame));
+    }
+
+    /**
+     * Tareas de reparto pendientes en todos los shards
+     */
+    int pendingTasks() {
+        int pending = 0;
+        for (Shard shard : shards) {
+            pending += shard.worker.getQueue().size();
+        }
+        return pending;
+    }
+
+    /**
+     * Espera a que terminen los repartos encolados hasta ahora
+     */
+    void awaitPending() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(shards.length);
+        for (Shard shard : shards) {
+            shard.worker.execute(done::countDown);
+        }
+        done.await();
+    }
+
+    void shutdown() {
+        for (Shard shard : shards) {
+            shard.worker.shutdown();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package server;
+
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caché de usuarios registrados: credenciales y permiso de administrador.
+ * Las entradas caducan tras ttlMs y se invalidan al registrar un usuario. Si varios hilos piden a la vez el mismo usuario que
+ * no está en memoria, solo uno consulta la base de datos y el resto espera su
+ * resultado.
+ */
+class UserDirectory {
+
+    /**
+     * Datos de un usuario tal y como están en la tabla usuarios
+     */
+    static final class UserRecord {
+        final String passwordHash;
+        final String salt;
+        final boolean admin;
+
+        UserRecord(String passwordHash, String salt, boolean admin) {
+            this.passwordHash = passwordHash;
+            this.salt = salt;
+            this.admin = admin;
+        }
+    }
+
+    // Consulta a la base de datos; null si el usuario no existe
+    interface UserLoader {
+        UserRecord load(String username) throws SQLException;
+    }
+
+    private final UserLoader userLoader;
+    private final long ttlMs;
+    private final int maxEntries;
+    private final ConcurrentHashMap<String, Loaded<UserRecord>> users = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+
+    UserDirectory(UserLoader userLoader, long ttlMs, int maxEntries) {
+        this.userLoader = userLoader;
+        this.ttlMs = ttlMs;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Datos del usuario, o null si no está registrado
+     */
+    UserRecord get(String username) throws SQLException {
+        while (true) {
+            Loaded<UserRecord> current = users.get(username);
+            if (current != null && !current.isExpired()) {
+                hits.incrementAndGet();
+                return current.await();
+            }
+            Loaded<UserRecord> fresh = new Loaded<>();
+            boolean mine = current == null
+                    ? users.putIfAbsent(username, fresh) == null
+                    : users.replace(username, current, fresh);
+            if (!mine) {
+                // Otro hilo ya está cargando este usuario: se espera a su resultado
+                continue;
+            }
+            trimIfNeeded();
+            try {
+                loads.incrementAndGet();
+                return fresh.complete(userLoader.load(username));
+            } catch (SQLException | RuntimeException e) {
+                users.remove(username, fresh);
+                fresh.fail(e);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Olvida lo que se sabe de un usuario (p. ej. tras registrarlo)
+     */
+    void invalidate(String username) {
+        users.remove(username);
+    }
+
+    void clear() {
+        users.clear();
+    }
+
+    String getStats() {
+        return "Directorio de usuarios: en caché=" + users.size() + " aciertos=" + hits.get()
+                + " consultas a BD=" + loads.get();
+    }
+
+    // Mantiene acotado el número de entradas (p. ej. logins con nombres inexistentes)
+    private void trimIfNeeded() {
+        if (users.size() <= maxEntries) {
+            return;
+        }
+        users.values().removeIf(Loaded::isExpired);
+        Iterator<Map.Entry<String, Loaded<UserRecord>>> it = users.entrySet().iterator();
+        while (users.size() > maxEntries && it.hasNext()) {
+            if (it.next().getValue().isDone()) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Valor cargado (o cargándose) con su fecha de caducidad
+     */
+    private final class Loaded<T> {
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        // Mientras se carga no caduca
+        private volatile long expiresAt = Long.MAX_VALUE;
+
+        boolean isExpired() {
+            return System.currentTimeMillis() > expiresAt;
+        }
+
+        boolean isDone() {
+            return future.isDone();
+        }
+
+        T complete(T value) {
+            expiresAt = System.currentTimeMillis() + ttlMs;
+            future.complete(value);
+            return value;
+        }
+
+        void fail(Exception e) {
+            future.completeExceptionally(e);
+        }
+
+        T await() throws SQLException {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrumpido esperando la carga del usuario", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof SQLException) {
+                    throw (SQLException) cause;
+                }
+                throw new SQLException("Error cargando el usuario", cause);
+            }
+        }
+    }
+}
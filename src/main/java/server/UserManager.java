@@ -1,7 +1,5 @@
 package server;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -13,6 +11,19 @@ public class UserManager {
     private static final SecureRandom random = new SecureRandom();
     private static final int SALT_LENGTH = 16;
 
+    // Credenciales en memoria para no consultar la BD en cada login
+    private static final UserDirectory directory = new UserDirectory(UserManager::loadUser,
+            ServerConfig.USER_CACHE_TTL_MS, ServerConfig.USER_CACHE_MAX_ENTRIES);
+
+    private static final Metrics.Histogram DB_REGISTER = Metrics.dbTimer("UserManager.registerUser");
+    private static final Metrics.Histogram DB_LOAD_USER = Metrics.dbTimer("UserManager.loadUser");
+    private static final Metrics.Histogram DB_REHASH = Metrics.dbTimer("UserManager.rehashPassword");
+
+    /*
+     * registerUser y authenticateUser calculan el hash en AuthExecutor y
+     * lanzan RejectedExecutionException si está saturado.
+     */
+
     public static boolean registerUser(String username, String password) {
         Logger.log("Intentando registrar usuario: " + username);
         if (userExists(username)) {
@@ -22,11 +33,12 @@ public class UserManager {
 
         // Generar salt y hash para la contraseña
         String salt = generateSalt();
-        String passwordHash = hashPassword(password, salt);
+        String passwordHash = AuthExecutor.call(() -> hashPassword(password, salt));
         Logger.log("Hash y salt generados para el usuario: " + username);
         
         // Guardar usuario con contraseña cifrada
         String sql = "INSERT INTO usuarios (username, password_hash, salt) VALUES (?, ?, ?)";
+        long start = System.nanoTime();
         try (Connection conn = DatabaseConfig.getConnection();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
             stmt.setString(1, username);
@@ -38,77 +50,117 @@ public class UserManager {
         } catch (SQLException e) {
             Logger.error("Error SQL registrando usuario: " + e.getMessage(), e);
             return false;
+        } finally {
+            DB_REGISTER.observeSince(start);
+            // También si falla: puede que otro servidor lo haya registrado antes
+            directory.invalidate(username);
         }
     }
 
     public static boolean authenticateUser(String username, String password) {
         Logger.log("Autenticando usuario: " + username + " (usando hash+salt)");
-        String sql = "SELECT password_hash, salt FROM usuarios WHERE username = ?";
-        try (Connection conn = DatabaseConfig.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, username);
-            ResultSet rs = stmt.executeQuery();
-            
-            if (rs.next()) {
-                String storedHash = rs.getString("password_hash");
-                String salt = rs.getString("salt");
-                String calculatedHash = hashPassword(password, salt);
-                boolean authenticated = storedHash.equals(calculatedHash);
-                
-                if (authenticated) {
-                    Logger.log("Usuario autenticado correctamente: " + username);
-                } else {
-                    Logger.log("Intento de autenticación fallido (hash no coincide): " + username);
-                }
-                
-                return authenticated;
+        try {
+            UserDirectory.UserRecord user = directory.get(username);
+            if (user == null) {
+                Logger.log("Intento de autenticación fallido (usuario no existe): " + username);
+                return false;
             }
-            Logger.log("Intento de autenticación fallido (usuario no existe): " + username);
-            return false;
+            boolean authenticated = AuthExecutor.call(() -> verifyAndUpgrade(username, password, user));
+
+            if (authenticated) {
+                Logger.log("Usuario autenticado correctamente: " + username);
+            } else {
+                Logger.log("Intento de autenticación fallido (hash no coincide): " + username);
+            }
+
+            return authenticated;
         } catch (SQLException e) {
             Logger.error("Error SQL autenticando usuario: " + e.getMessage(), e);
             return false;
         }
     }
 
-    public static boolean userExists(String username) {
-        String sql = "SELECT COUNT(*) FROM usuarios WHERE username = ?";
+    // Se ejecuta en un hilo de autenticación: comprueba y, si el hash usa parámetros antiguos, lo recalcula
+    private static boolean verifyAndUpgrade(String username, String password, UserDirectory.UserRecord user) {
+        if (!PasswordHasher.verify(password, user.salt, user.passwordHash)) {
+            return false;
+        }
+        if (PasswordHasher.needsRehash(user.passwordHash, ServerConfig.AUTH_ITERATIONS)) {
+            rehashPassword(username, password);
+        }
+        return true;
+    }
+
+    // Un fallo aquí no impide el login: se volverá a intentar en el siguiente
+    private static void rehashPassword(String username, String password) {
+        String salt = generateSalt();
+        String passwordHash = hashPassword(password, salt);
+        String sql = "UPDATE usuarios SET password_hash = ?, salt = ? WHERE username = ?";
+        long start = System.nanoTime();
         try (Connection conn = DatabaseConfig.getConnection();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, username);
-            ResultSet rs = stmt.executeQuery();
-            return rs.next() && rs.getInt(1) > 0;
+            stmt.setString(1, passwordHash);
+            stmt.setString(2, salt);
+            stmt.setString(3, username);
+            stmt.executeUpdate();
+            Logger.log("Hash de contraseña actualizado a " + ServerConfig.AUTH_ITERATIONS + " iteraciones: " + username);
+        } catch (SQLException e) {
+            Logger.error("Error SQL actualizando el hash de contraseña: " + e.getMessage(), e);
+        } finally {
+            DB_REHASH.observeSince(start);
+            directory.invalidate(username);
+        }
+    }
+
+    public static boolean userExists(String username) {
+        try {
+            return directory.get(username) != null;
         } catch (SQLException e) {
             Logger.error("Error verificando existencia de usuario", e);
             return false;
         }
     }
 
+    public static String getDirectoryStats() {
+        return directory.getStats();
+    }
+
+    // Lee un usuario de la base de datos; null si no existe
+    private static UserDirectory.UserRecord loadUser(String username) throws SQLException {
+        String sql = "SELECT password_hash, salt, is_admin FROM usuarios WHERE username = ?";
+        long start = System.nanoTime();
+        try (Connection conn = DatabaseConfig.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, username);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                return new UserDirectory.UserRecord(rs.getString("password_hash"), rs.getString("salt"),
+                        rs.getBoolean("is_admin"));
+            }
+        } finally {
+            DB_LOAD_USER.observeSince(start);
+        }
+    }
+
     public static String generateSalt() {
         byte[] salt = new byte[SALT_LENGTH];
         random.nextBytes(salt);
         return Base64.getEncoder().encodeToString(salt);
     }
 
+    /**
+     * Hash con las iteraciones configuradas; se calcula en el hilo que llama
+     */
     public static String hashPassword(String password, String salt) {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            digest.update(Base64.getDecoder().decode(salt));
-            byte[] hash = digest.digest(password.getBytes());
-            return Base64.getEncoder().encodeToString(hash);
-        } catch (NoSuchAlgorithmException e) {
-            Logger.error("Error en el algoritmo de hash", e);
-            throw new RuntimeException("Error en el algoritmo de hash", e);
-        }
+        return PasswordHasher.hash(password, salt, ServerConfig.AUTH_ITERATIONS);
     }
 
     public static boolean isAdmin(String username) {
-        String sql = "SELECT is_admin FROM usuarios WHERE username = ?";
-        try (Connection conn = DatabaseConfig.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, username);
-            ResultSet rs = stmt.executeQuery();
-            return rs.next() && rs.getBoolean("is_admin");
+        try {
+            UserDirectory.UserRecord user = directory.get(username);
+            return user != null && user.admin;
         } catch (SQLException e) {
             Logger.error("Error verificando privilegios de administrador", e);
             return false;
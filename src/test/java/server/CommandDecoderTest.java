@@ -0,0 +1,113 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static server.BinaryProtocol.*;
+
+class CommandDecoderTest {
+
+    private static Command line(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        Command command = new Command();
+        CommandDecoder.decodeLine(bytes, 0, bytes.length, command);
+        return command;
+    }
+
+    @Test
+    void loginSplitsOnTheFirstColon() {
+        Command c = line("LOGIN:ana:pa:ss");
+        assertEquals(OP_LOGIN, c.opcode());
+        assertEquals(2, c.fieldCount());
+        assertEquals("ana", c.field(0));
+        assertEquals("pa:ss", c.field(1));
+    }
+
+    @Test
+    void privateMessageKeepsColonsInTheText() {
+        Command c = line("PRIVATE:bob:hola: ¿qué tal?");
+        assertEquals(OP_PRIVATE, c.opcode());
+        assertEquals("bob", c.field(0));
+        assertEquals("hola: ¿qué tal?", c.field(1));
+    }
+
+    @Test
+    void historyPageSplitsOnTheLastTwoColons() {
+        Command c = line("GET_HISTORY_PAGE:bob:1700000000000.0.42:50");
+        assertEquals(OP_GET_HISTORY_PAGE, c.opcode());
+        assertEquals(3, c.fieldCount());
+        assertEquals("bob", c.field(0));
+        assertEquals("1700000000000.0.42", c.field(1));
+        assertEquals(50, c.intField(2));
+
+        // Token vacío: la página más reciente
+        c = line("GET_HISTORY_PAGE:bob::20");
+        assertEquals("", c.field(1));
+        assertEquals(20, c.intField(2));
+
+        assertEquals(0, line("GET_HISTORY_PAGE:bob").fieldCount());
+    }
+
+    @Test
+    void historySinceAllowsAnEmptyUser() {
+        Command c = line("GET_HISTORY_SINCE::17");
+        assertEquals(OP_GET_HISTORY_SINCE, c.opcode());
+        assertEquals("", c.field(0));
+        assertEquals(17, c.longField(1));
+    }
+
+    @Test
+    void commandsWithoutBodyRejectTrailingText() {
+        assertEquals(OP_GET_USERS, line("GET_USERS").opcode());
+        assertEquals(Command.UNKNOWN, line("GET_USERSx").opcode());
+        assertEquals(OP_LOGOUT, line("LOGOUT").opcode());
+        assertEquals(OP_LOGOUT, line("LOGOUT:ana").opcode());
+        assertEquals(Command.UNKNOWN, line("LOGOUTx").opcode());
+    }
+
+    @Test
+    void unknownAndEmptyLines() {
+        assertEquals(Command.UNKNOWN, line("").opcode());
+        assertEquals(Command.UNKNOWN, line("HOLA").opcode());
+        assertEquals(Command.UNKNOWN, line("login:ana:x").opcode());
+    }
+
+    @Test
+    void decodesAtAnOffsetInsideTheBuffer() {
+        byte[] buf = "xxMESSAGE:hola\nyy".getBytes(StandardCharsets.UTF_8);
+        Command c = new Command();
+        CommandDecoder.decodeLine(buf, 2, 12, c);
+        assertEquals(OP_MESSAGE, c.opcode());
+        assertEquals("hola", c.field(0));
+    }
+
+    @Test
+    void framesUseTheOpcodeAndRawFramesCarryALine() {
+        byte[] body = "bob:hola".getBytes(StandardCharsets.UTF_8);
+        Command c = new Command();
+        CommandDecoder.decodeFrame(OP_PRIVATE, body, 0, body.length, c);
+        assertEquals(OP_PRIVATE, c.opcode());
+        assertEquals("bob", c.field(0));
+        assertEquals("hola", c.field(1));
+
+        byte[] raw = "JOIN_ROOM:java".getBytes(StandardCharsets.UTF_8);
+        CommandDecoder.decodeFrame(OP_RAW, raw, 0, raw.length, c);
+        assertEquals(OP_JOIN_ROOM, c.opcode());
+        assertEquals("java", c.field(0));
+
+        CommandDecoder.decodeFrame(0x7F, body, 0, body.length, c);
+        assertEquals(Command.UNKNOWN, c.opcode());
+    }
+
+    @Test
+    void numericFieldsFollowLongParseLongRules() {
+        Command c = line("GET_HISTORY_SINCE:bob:-5");
+        assertEquals(-5, c.longField(1));
+        assertThrows(NumberFormatException.class, () -> line("GET_HISTORY_SINCE:bob:").longField(1));
+        assertThrows(NumberFormatException.class, () -> line("GET_HISTORY_SINCE:bob:12a").longField(1));
+        assertThrows(NumberFormatException.class, () -> line("GET_HISTORY_SINCE:bob:99999999999999999999").longField(1));
+        assertEquals(Long.MIN_VALUE, line("GET_HISTORY_SINCE:bob:" + Long.MIN_VALUE).longField(1));
+    }
+}
@@ -0,0 +1,179 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LogMessageStoreTest {
+
+    private static final int SEGMENT_BYTES = 1 << 16;
+
+    @TempDir
+    Path dir;
+
+    private LogMessageStore open(int segmentBytes) {
+        return new LogMessageStore(dir, segmentBytes, false);
+    }
+
+    private static void appendPrivate(LogMessageStore store, int count, String prefix) throws MessageStore.StoreException {
+        List<ChatMessage> batch = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            batch.add(i % 2 == 0 ? ChatMessage.create("ana", "bob", prefix + i) : ChatMessage.create("bob", "ana", prefix + i));
+        }
+        store.append(batch);
+    }
+
+    private static List<String> texts(List<ChatMessage> messages) {
+        List<String> result = new ArrayList<>();
+        for (ChatMessage m : messages) {
+            result.add(m.getMessage());
+        }
+        return result;
+    }
+
+    private Path onlySegment() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.seg")) {
+            files.forEach(segments::add);
+        }
+        assertEquals(1, segments.size());
+        return segments.get(0);
+    }
+
+    // Posición de cada registro del segmento, siguiendo las longitudes hasta la marca de final
+    private static List<Integer> recordOffsets(Path segment) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(segment));
+        List<Integer> offsets = new ArrayList<>();
+        int offset = 0;
+        int length;
+        while ((length = buffer.getInt(offset)) != 0) {
+            offsets.add(offset);
+            offset += 8 + length;
+        }
+        offsets.add(offset);
+        return offsets;
+    }
+
+    private static void overwrite(Path file, int offset, ByteBuffer bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(bytes, offset);
+        }
+    }
+
+    @Test
+    void reopenRecoversMessagesAndContinuesIds() throws Exception {
+        LogMessageStore store = open(SEGMENT_BYTES);
+        appendPrivate(store, 3, "m");
+        store.append(List.of(ChatMessage.create("ana", null, "general")));
+        store.close();
+
+        LogMessageStore reopened = open(SEGMENT_BYTES);
+        assertEquals(List.of("m0", "m1", "m2"), texts(reopened.since("ana", "bob", 0)));
+        assertEquals(List.of("general"), texts(reopened.since("ana", "", 0)));
+        ChatMessage next = ChatMessage.create("ana", "bob", "m3");
+        reopened.append(List.of(next));
+        assertEquals(5, next.getId());
+        reopened.close();
+    }
+
+    @Test
+    void tornTailIsDiscardedOnRecovery() throws Exception {
+        LogMessageStore store = open(SEGMENT_BYTES);
+        appendPrivate(store, 3, "m");
+        store.close();
+
+        // Cabecera de un registro cuyo cuerpo no llegó a escribirse entero
+        Path segment = onlySegment();
+        List<Integer> offsets = recordOffsets(segment);
+        ByteBuffer torn = ByteBuffer.allocate(8 + 20);
+        torn.putInt(200).putInt(0x12345678).putLong(4).putLong(System.currentTimeMillis()).putInt(0);
+        torn.flip();
+        overwrite(segment, offsets.get(offsets.size() - 1), torn);
+
+        LogMessageStore reopened = open(SEGMENT_BYTES);
+        assertEquals(List.of("m0", "m1", "m2"), texts(reopened.since("ana", "bob", 0)));
+        // Lo que se escribe después ocupa el sitio del registro roto y sobrevive a otro arranque
+        appendPrivate(reopened, 1, "n");
+        reopened.close();
+        LogMessageStore again = open(SEGMENT_BYTES);
+        assertEquals(List.of("m0", "m1", "m2", "n0"), texts(again.since("ana", "bob", 0)));
+        assertEquals(4, again.since("ana", "bob", 3).get(0).getId());
+        again.close();
+    }
+
+    @Test
+    void recordWithBadCrcIsDiscardedWithEverythingAfterIt() throws Exception {
+        LogMessageStore store = open(SEGMENT_BYTES);
+        appendPrivate(store, 4, "m");
+        store.close();
+
+        // Un byte cambiado en el texto del tercer registro
+        Path segment = onlySegment();
+        List<Integer> offsets = recordOffsets(segment);
+        int lastByte = offsets.get(3) - 1;
+        ByteBuffer original = ByteBuffer.wrap(Files.readAllBytes(segment));
+        overwrite(segment, lastByte, ByteBuffer.wrap(new byte[] {(byte) (original.get(lastByte) ^ 0x01)}));
+
+        LogMessageStore reopened = open(SEGMENT_BYTES);
+        assertEquals(List.of("m0", "m1"), texts(reopened.since("ana", "bob", 0)));
+        ChatMessage next = ChatMessage.create("ana", "bob", "n");
+        reopened.append(List.of(next));
+        assertEquals(3, next.getId());
+        reopened.close();
+
+        LogMessageStore again = open(SEGMENT_BYTES);
+        assertEquals(List.of("m0", "m1", "n"), texts(again.since("ana", "bob", 0)));
+        again.close();
+    }
+
+    @Test
+    void pagesWalkBackAcrossCheckpointsAndSegments() throws Exception {
+        // Segmentos pequeños y la conversación mezclada con el chat general,
+        // para que la búsqueda por id pase por varios puntos de entrada y segmentos
+        LogMessageStore store = open(4096);
+        int total = 300;
+        List<Long> expected = new ArrayList<>();
+        for (int i = 0; i < total; i++) {
+            ChatMessage direct = ChatMessage.create(i % 2 == 0 ? "ana" : "bob", i % 2 == 0 ? "bob" : "ana", "p" + i);
+            store.append(List.of(ChatMessage.create("eva", null, "g" + i), direct));
+            expected.add(0, direct.getId());
+        }
+        assertPagesMatch(store, expected);
+        store.close();
+
+        // Tras reconstruir el índice al arrancar las páginas son las mismas
+        LogMessageStore reopened = open(4096);
+        assertPagesMatch(reopened, expected);
+        reopened.close();
+    }
+
+    private static void assertPagesMatch(LogMessageStore store, List<Long> expectedNewestFirst) {
+        Timestamp anyTs = new Timestamp(0);
+        List<Long> seen = new ArrayList<>();
+        List<ChatMessage> page = store.page("bob", "ana", null, 0, 50);
+        while (!page.isEmpty()) {
+            for (ChatMessage m : page) {
+                seen.add(m.getId());
+            }
+            page = store.page("bob", "ana", anyTs, page.get(page.size() - 1).getId(), 50);
+        }
+        assertEquals(expectedNewestFirst, seen);
+
+        // Un beforeId cualquiera, sin que sea el de un mensaje de la conversación
+        long before = expectedNewestFirst.get(137) + 1;
+        List<ChatMessage> middle = store.page("ana", "bob", anyTs, before, 3);
+        assertEquals(expectedNewestFirst.subList(137, 140), List.of(middle.get(0).getId(), middle.get(1).getId(), middle.get(2).getId()));
+    }
+}
@@ -0,0 +1,51 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PasswordHasherTest {
+
+    private static final String SALT = Base64.getEncoder().encodeToString("0123456789abcdef".getBytes(StandardCharsets.US_ASCII));
+    private static final int ITERATIONS = 1000;
+
+    @Test
+    void pbkdf2HashVerifiesOnlyTheRightPassword() {
+        String stored = PasswordHasher.hash("secreto", SALT, ITERATIONS);
+        assertTrue(stored.startsWith("pbkdf2-sha256$" + ITERATIONS + "$"));
+        assertTrue(PasswordHasher.verify("secreto", SALT, stored));
+        assertFalse(PasswordHasher.verify("Secreto", SALT, stored));
+    }
+
+    @Test
+    void verifyUsesTheIterationsStoredInTheHash() {
+        String stored = PasswordHasher.hash("secreto", SALT, 500);
+        assertTrue(PasswordHasher.verify("secreto", SALT, stored));
+    }
+
+    @Test
+    void legacySha256HashStillVerifies() throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(Base64.getDecoder().decode(SALT));
+        String legacy = Base64.getEncoder().encodeToString(digest.digest("secreto".getBytes()));
+        assertTrue(PasswordHasher.verify("secreto", SALT, legacy));
+        assertFalse(PasswordHasher.verify("otra", SALT, legacy));
+    }
+
+    @Test
+    void malformedPbkdf2HashDoesNotVerify() {
+        assertFalse(PasswordHasher.verify("secreto", SALT, "pbkdf2-sha256$1000"));
+    }
+
+    @Test
+    void needsRehashForLegacyAndOtherIterations() {
+        String current = PasswordHasher.hash("secreto", SALT, ITERATIONS);
+        assertFalse(PasswordHasher.needsRehash(current, ITERATIONS));
+        assertTrue(PasswordHasher.needsRehash(current, ITERATIONS * 2));
+        assertTrue(PasswordHasher.needsRehash("c2hhMjU2LWFudGlndW8=", ITERATIONS));
+    }
+}
@@ -0,0 +1,74 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RateLimiterTest {
+
+    @Test
+    void allowsTheBurstAndThenRejects() {
+        // Una ficha por minuto: durante el test no se recupera ninguna
+        RateLimiter limiter = new RateLimiter("test-burst", 1.0 / 60, 3);
+        assertTrue(limiter.tryAcquire("ana"));
+        assertTrue(limiter.tryAcquire("ana"));
+        assertTrue(limiter.tryAcquire("ana"));
+        assertFalse(limiter.tryAcquire("ana"));
+        assertFalse(limiter.tryAcquire("ana"));
+    }
+
+    @Test
+    void keysHaveSeparateBuckets() {
+        RateLimiter limiter = new RateLimiter("test-keys", 1.0 / 60, 1);
+        assertTrue(limiter.tryAcquire("ana"));
+        assertFalse(limiter.tryAcquire("ana"));
+        assertTrue(limiter.tryAcquire("bob"));
+    }
+
+    @Test
+    void refillsAtTheConfiguredRate() throws InterruptedException {
+        // Una ficha cada 100 ms y ráfaga de 2
+        RateLimiter limiter = new RateLimiter("test-refill", 10, 2);
+        assertTrue(limiter.tryAcquire("ana"));
+        assertTrue(limiter.tryAcquire("ana"));
+        assertFalse(limiter.tryAcquire("ana"));
+        Thread.sleep(150);
+        assertTrue(limiter.tryAcquire("ana"));
+        assertFalse(limiter.tryAcquire("ana"));
+        // Tras un rato parado vuelve la ráfaga entera, no más
+        Thread.sleep(500);
+        assertTrue(limiter.tryAcquire("ana"));
+        assertTrue(limiter.tryAcquire("ana"));
+        assertFalse(limiter.tryAcquire("ana"));
+    }
+
+    @Test
+    void refundGivesBackOneToken() {
+        RateLimiter limiter = new RateLimiter("test-refund", 1.0 / 60, 2);
+        assertTrue(limiter.tryAcquire("ana"));
+        assertTrue(limiter.tryAcquire("ana"));
+        assertFalse(limiter.tryAcquire("ana"));
+        limiter.refund("ana");
+        assertTrue(limiter.tryAcquire("ana"));
+        assertFalse(limiter.tryAcquire("ana"));
+    }
+
+    @Test
+    void refundOnAFullBucketDoesNotRaiseTheBurst() {
+        RateLimiter limiter = new RateLimiter("test-refund-full", 1.0 / 60, 1);
+        limiter.refund("ana");
+        assertTrue(limiter.tryAcquire("ana"));
+        limiter.refund("ana");
+        limiter.refund("ana");
+        assertTrue(limiter.tryAcquire("ana"));
+        assertFalse(limiter.tryAcquire("ana"));
+    }
+
+    @Test
+    void zeroRateMeansNoLimit() {
+        RateLimiter limiter = new RateLimiter("test-off", 0, 1);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(limiter.tryAcquire("ana"));
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RecentMessageCacheTest {
+
+    private static final long BASE = 1_700_000_000_000L;
+
+    private static ChatMessage general(long id, int second, String text) {
+        return new ChatMessage(id, "ana", null, text, new Timestamp(BASE + second * 1000L));
+    }
+
+    private static ChatMessage direct(long id, int second, String from, String to, String text) {
+        return new ChatMessage(id, from, to, text, new Timestamp(BASE + second * 1000L));
+    }
+
+    private static List<String> texts(List<ChatMessage> messages) {
+        List<String> result = new ArrayList<>();
+        for (ChatMessage m : messages) {
+            result.add(m.getMessage());
+        }
+        return result;
+    }
+
+    @Test
+    void incompleteConversationOnlyServesWhatItHas() {
+        RecentMessageCache cache = new RecentMessageCache(10, 1 << 20);
+        String key = RecentMessageCache.generalKey();
+        assertNull(cache.recent(key, 1));
+
+        cache.add(general(1, 1, "a"));
+        cache.add(general(2, 2, "b"));
+        assertEquals(List.of("b", "a"), texts(cache.recent(key, 2)));
+        assertEquals(List.of("b"), texts(cache.recent(key, 1)));
+        // Puede haber mensajes más antiguos en el almacén
+        assertNull(cache.recent(key, 3));
+        assertNull(cache.all(key));
+    }
+
+    @Test
+    void completeConversationServesAnyWindow() {
+        RecentMessageCache cache = new RecentMessageCache(10, 1 << 20);
+        String key = RecentMessageCache.pairKey("ana", "bob");
+        cache.load(key, List.of(direct(1, 1, "ana", "bob", "a"), direct(2, 2, "bob", "ana", "b")), true);
+        assertEquals(List.of("b", "a"), texts(cache.recent(key, 50)));
+        assertEquals(List.of("a", "b"), texts(cache.all(key)));
+        // La clave del par no depende del orden de los usuarios
+        assertEquals(List.of("b"), texts(cache.recent(RecentMessageCache.pairKey("bob", "ana"), 1)));
+    }
+
+    @Test
+    void wraparoundKeepsTheNewestMessagesInOrder() {
+        RecentMessageCache cache = new RecentMessageCache(4, 1 << 20);
+        String key = RecentMessageCache.generalKey();
+        cache.load(key, List.of(), true);
+        for (int i = 1; i <= 10; i++) {
+            cache.add(general(i, i, "m" + i));
+        }
+        assertEquals(List.of("m10", "m9", "m8", "m7"), texts(cache.recent(key, 4)));
+        // Al descartar el más antiguo deja de estar completa
+        assertNull(cache.recent(key, 5));
+        assertNull(cache.all(key));
+    }
+
+    @Test
+    void lateMessageIsInsertedInChronologicalOrder() {
+        RecentMessageCache cache = new RecentMessageCache(10, 1 << 20);
+        String key = RecentMessageCache.generalKey();
+        cache.add(general(0, 1, "a"));
+        cache.add(general(0, 3, "c"));
+        cache.add(general(0, 2, "b"));
+        assertEquals(List.of("c", "b", "a"), texts(cache.recent(key, 3)));
+    }
+
+    @Test
+    void loadKeepsUnsavedMessagesAndDropsDuplicates() {
+        RecentMessageCache cache = new RecentMessageCache(10, 1 << 20);
+        String key = RecentMessageCache.pairKey("ana", "bob");
+        ChatMessage saved = direct(0, 1, "ana", "bob", "guardado");
+        ChatMessage pending = direct(0, 2, "bob", "ana", "pendiente");
+        cache.add(saved);
+        cache.add(pending);
+        // El almacén ya tiene el primero, con su id
+        cache.load(key, List.of(direct(7, 1, "ana", "bob", "guardado")), true);
+        assertEquals(List.of("guardado", "pendiente"), texts(cache.all(key)));
+        assertEquals(7, cache.all(key).get(0).getId());
+    }
+
+    @Test
+    void newerThanReturnsLaterAndUnsavedMessages() {
+        RecentMessageCache cache = new RecentMessageCache(10, 1 << 20);
+        String key = RecentMessageCache.generalKey();
+        cache.add(general(1, 1, "a"));
+        cache.add(general(2, 2, "b"));
+        cache.add(general(0, 3, "c"));
+        assertEquals(List.of("b", "c"), texts(cache.newerThan(key, 1)));
+        assertEquals(List.of("c"), texts(cache.newerThan(key, Long.MAX_VALUE)));
+        assertTrue(cache.newerThan(RecentMessageCache.roomKey("java"), 0).isEmpty());
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsedConversation() {
+        // Cada mensaje ocupa 96 + 2 * 10 bytes: caben dos
+        RecentMessageCache cache = new RecentMessageCache(10, 250);
+        cache.add(direct(1, 1, "ana", "bob", "hola"));
+        cache.add(direct(2, 2, "ana", "eva", "hola"));
+        assertNotNull(cache.recent(RecentMessageCache.pairKey("ana", "bob"), 1));
+        cache.add(direct(3, 3, "ana", "joe", "hola"));
+        assertNotNull(cache.recent(RecentMessageCache.pairKey("ana", "bob"), 1));
+        assertNull(cache.recent(RecentMessageCache.pairKey("ana", "eva"), 1));
+        assertNotNull(cache.recent(RecentMessageCache.pairKey("ana", "joe"), 1));
+    }
+}
@@ -0,0 +1,99 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RingBufferTest {
+
+    @Test
+    void capacityIsRoundedUpToAPowerOfTwo() {
+        assertEquals(8, new RingBuffer<Integer>(5).capacity());
+        assertEquals(8, new RingBuffer<Integer>(8).capacity());
+        assertEquals(4, new RingBuffer<Integer>(3).capacity());
+    }
+
+    @Test
+    void rejectsWhenFullAndAcceptsAgainAfterPoll() {
+        RingBuffer<Integer> ring = new RingBuffer<>(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(i));
+        }
+        assertFalse(ring.offer(4));
+        assertEquals(0, ring.poll());
+        assertTrue(ring.offer(4));
+        assertFalse(ring.offer(5));
+    }
+
+    @Test
+    void keepsOrderAcrossManyWraparounds() {
+        RingBuffer<Integer> ring = new RingBuffer<>(4);
+        int next = 0;
+        int expected = 0;
+        // Se llena a medias y se vacía, así cada vuelta empieza en otra casilla
+        for (int round = 0; round < 100; round++) {
+            for (int i = 0; i < 3; i++) {
+                assertTrue(ring.offer(next++));
+            }
+            for (int i = 0; i < 3; i++) {
+                assertEquals(expected++, ring.poll());
+            }
+        }
+        assertNull(ring.poll());
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    void pollOnEmptyReturnsNull() {
+        RingBuffer<String> ring = new RingBuffer<>(2);
+        assertTrue(ring.isEmpty());
+        assertNull(ring.poll());
+        ring.offer("a");
+        assertFalse(ring.isEmpty());
+        assertEquals("a", ring.poll());
+        assertNull(ring.poll());
+    }
+
+    @Test
+    void concurrentProducersLoseNothing() throws InterruptedException {
+        RingBuffer<Integer> ring = new RingBuffer<>(64);
+        int producers = 4;
+        int perProducer = 10_000;
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            int base = p * perProducer;
+            threads[p] = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    while (!ring.offer(base + i)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        boolean[] seen = new boolean[producers * perProducer];
+        // Último valor visto de cada productor: cada uno publica en orden
+        int[] last = new int[producers];
+        Arrays.fill(last, -1);
+        int received = 0;
+        while (received < seen.length) {
+            Integer v = ring.poll();
+            if (v == null) {
+                Thread.yield();
+                continue;
+            }
+            assertFalse(seen[v], "repetido: " + v);
+            seen[v] = true;
+            int producer = v / perProducer;
+            assertTrue(v > last[producer], "fuera de orden: " + v);
+            last[producer] = v;
+            received++;
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertNull(ring.poll());
+    }
+}